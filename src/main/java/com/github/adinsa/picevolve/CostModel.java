@@ -0,0 +1,280 @@
+package com.github.adinsa.picevolve;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.FunctionRegistry;
+import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
+import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
+import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
+import com.github.adinsa.picevolve.expression.Variable;
+import com.github.adinsa.picevolve.visitor.EvaluatorVisitor;
+import com.github.adinsa.picevolve.visitor.Visitor;
+
+/**
+ * Static estimate of the cost of evaluating an {@link Expression} into an {@link Image}.
+ *
+ * <p>
+ * Every node of an expression is evaluated over the whole image, so the cost of a render is the sum of the per-pixel cost of each node times the
+ * number of pixels. The model assigns each kind of node (each {@link Function} in the {@link FunctionRegistry}, plus scalar, vector and variable
+ * terminals) a number of pixel passes, a number of images allocated and a time per pixel. For example, {@code int-and} rescales both of its
+ * arguments (three passes each) before combining them, and {@code blur} draws its argument into a {@link java.awt.image.BufferedImage} pixel by
+ * pixel and convolves it with a 20x20 kernel.
+ * </p>
+ *
+ * <p>
+ * The {@link #DEFAULT} model derives times from the pass counts. {@link #calibrate(int, int)} measures them instead by timing each kind of node on
+ * this machine.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class CostModel {
+
+    private static final Logger logger = LoggerFactory.getLogger(CostModel.class);
+
+    /**
+     * Approximate heap footprint of one pixel of an {@link Image}: a {@link Image.Pixel} and its array slot
+     */
+    private static final long BYTES_PER_PIXEL = 48;
+
+    private static final double DEFAULT_NANOS_PER_PASS = 15;
+
+    private static final FunctionRegistry REGISTRY = FunctionRegistry.getInstance();
+
+    private static final int SCALAR = REGISTRY.size();
+    private static final int VECTOR = SCALAR + 1;
+    private static final int VARIABLE = SCALAR + 2;
+    private static final int KINDS = SCALAR + 3;
+
+    public static final CostModel DEFAULT = createDefault();
+
+    /**
+     * Pixel passes, images allocated and nanoseconds per pixel for each kind of node, indexed by function id (terminals come last)
+     */
+    private final double[] passes;
+    private final double[] images;
+    private final double[] nanosPerPixel;
+
+    private CostModel(final double[] passes, final double[] images, final double[] nanosPerPixel) {
+        this.passes = passes;
+        this.images = images;
+        this.nanosPerPixel = nanosPerPixel;
+    }
+
+    private static CostModel createDefault() {
+
+        final double[] passes = new double[KINDS];
+        final double[] images = new double[KINDS];
+
+        Arrays.fill(passes, 1);
+        Arrays.fill(images, 1);
+
+        for (final FunctionRegistry.Entry entry : REGISTRY.getEntries()) {
+            switch (entry.getName()) {
+            case "int-and":
+            case "int-or":
+            case "int-xor":
+                passes[entry.getId()] = 7;
+                images[entry.getId()] = 3;
+                break;
+            case "noise":
+                passes[entry.getId()] = 19;
+                images[entry.getId()] = 4;
+                break;
+            case "warped-noise":
+                passes[entry.getId()] = 25;
+                images[entry.getId()] = 6;
+                break;
+            case "blur":
+                passes[entry.getId()] = 125;
+                images[entry.getId()] = 3;
+                break;
+            case "sharpen":
+                passes[entry.getId()] = 28;
+                images[entry.getId()] = 3;
+                break;
+            case "emboss":
+                passes[entry.getId()] = 31;
+                images[entry.getId()] = 3;
+                break;
+            default:
+                break;
+            }
+        }
+        // Variables are scaled to [-1, 1] after they are drawn
+        passes[VARIABLE] = 4;
+        images[VARIABLE] = 2;
+
+        final double[] nanosPerPixel = new double[KINDS];
+        for (int kind = 0; kind < KINDS; kind++) {
+            nanosPerPixel[kind] = passes[kind] * DEFAULT_NANOS_PER_PASS;
+        }
+        return new CostModel(passes, images, nanosPerPixel);
+    }
+
+    /**
+     * Returns a copy of the {@link #DEFAULT} model whose times are measured by evaluating each kind of node on a {@code size x size} image. Every
+     * node is evaluated {@code repetitions} times to warm up first, and each measurement is then the fastest of {@code repetitions} runs, minus the
+     * time taken by the node's arguments.
+     *
+     * @param size
+     * @param repetitions
+     * @return
+     */
+    public static CostModel calibrate(final int size, final int repetitions) {
+
+        final Expression[] probes = new Expression[KINDS];
+        probes[SCALAR] = new ScalarNode(0.5);
+        probes[VECTOR] = new VectorNode(Arrays.asList(0.25, 0.5, 0.75));
+        probes[VARIABLE] = new VariableNode(Variable.X);
+        for (final FunctionRegistry.Entry entry : REGISTRY.getEntries()) {
+            final Function function = entry.newInstance();
+            final Expression[] children = new Expression[entry.getArity()];
+            for (int i = 0; i < children.length; i++) {
+                children[i] = new VariableNode(i % 2 == 0 ? Variable.X : Variable.Y);
+            }
+            function.setChildren(Arrays.asList(children));
+            probes[entry.getId()] = function;
+        }
+
+        for (final Expression probe : probes) {
+            time(probe, size, repetitions);
+        }
+
+        final double pixels = (double) size * size;
+        final double[] nanosPerPixel = new double[KINDS];
+        for (final int terminal : new int[] { SCALAR, VECTOR, VARIABLE }) {
+            nanosPerPixel[terminal] = time(probes[terminal], size, repetitions) / pixels;
+        }
+        for (final FunctionRegistry.Entry entry : REGISTRY.getEntries()) {
+            final double total = time(probes[entry.getId()], size, repetitions) / pixels;
+            nanosPerPixel[entry.getId()] = Math.max(0, total - entry.getArity() * nanosPerPixel[VARIABLE]);
+        }
+
+        final CostModel model = new CostModel(DEFAULT.passes, DEFAULT.images, nanosPerPixel);
+        logger.debug("Calibrated {}", model);
+        return model;
+    }
+
+    private static double time(final Expression expression, final int size, final int repetitions) {
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            expression.accept(new EvaluatorVisitor(size, size));
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+
+    /**
+     * Returns the estimated cost of evaluating the expression. O(n) in the size of the expression.
+     *
+     * @param expression
+     * @return
+     */
+    public Estimate estimate(final Expression expression) {
+
+        final double[] totals = new double[3];
+        expression.accept(new Visitor() {
+
+            @Override
+            public void visit(final ScalarNode scalarNode) {
+                add(SCALAR);
+            }
+
+            @Override
+            public void visit(final VariableNode variableNode) {
+                add(VARIABLE);
+            }
+
+            @Override
+            public void visit(final VectorNode vectorNode) {
+                add(VECTOR);
+            }
+
+            @Override
+            public void visit(final Function function) {
+                add(function.getId());
+            }
+
+            private void add(final int kind) {
+                totals[0] += passes[kind];
+                totals[1] += images[kind];
+                totals[2] += nanosPerPixel[kind];
+            }
+        });
+        return new Estimate(totals[0], totals[1], totals[2]);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("CostModel [nanosPerPixel={");
+        for (final FunctionRegistry.Entry entry : REGISTRY.getEntries()) {
+            builder.append(entry.getName()).append('=').append(String.format("%.1f", nanosPerPixel[entry.getId()])).append(", ");
+        }
+        return builder.append(String.format("scalar=%.1f, vector=%.1f, variable=%.1f}]", nanosPerPixel[SCALAR], nanosPerPixel[VECTOR],
+                nanosPerPixel[VARIABLE])).toString();
+    }
+
+    /**
+     * Estimated cost of evaluating an {@link Expression}, per pixel of the resulting image
+     */
+    public static class Estimate {
+
+        private final double pixelPasses;
+        private final double images;
+        private final double nanosPerPixel;
+
+        Estimate(final double pixelPasses, final double images, final double nanosPerPixel) {
+            this.pixelPasses = pixelPasses;
+            this.images = images;
+            this.nanosPerPixel = nanosPerPixel;
+        }
+
+        /**
+         * Returns the number of passes made over the pixels of the image.
+         *
+         * @return
+         */
+        public double getPixelPasses() {
+            return pixelPasses;
+        }
+
+        public double getNanosPerPixel() {
+            return nanosPerPixel;
+        }
+
+        /**
+         * Returns the estimated time to evaluate the expression at the given resolution.
+         *
+         * @param width
+         * @param height
+         * @return
+         */
+        public long getNanos(final int width, final int height) {
+            return (long) (nanosPerPixel * width * height);
+        }
+
+        /**
+         * Returns the estimated number of bytes allocated while evaluating the expression at the given resolution.
+         *
+         * @param width
+         * @param height
+         * @return
+         */
+        public long getAllocatedBytes(final int width, final int height) {
+            return (long) (images * BYTES_PER_PIXEL * width * height);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Estimate [pixelPasses=%.0f, images=%.0f, nanosPerPixel=%.1f]", pixelPasses, images, nanosPerPixel);
+        }
+    }
+}
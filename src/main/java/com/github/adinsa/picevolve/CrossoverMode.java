@@ -0,0 +1,31 @@
+package com.github.adinsa.picevolve;
+
+/**
+ * How {@link PicEvolve} chooses the subtree that dad donates to mom during crossover.
+ *
+ * @author amar
+ *
+ */
+public enum CrossoverMode {
+
+    /**
+     * The donor is any node of dad, chosen uniformly.
+     */
+    UNIFORM,
+
+    /**
+     * The donor is chosen uniformly among dad's nodes whose subtree size is similar to that of the replaced subtree (between half and twice its
+     * size) and which keep the offspring within the size limit. Falls back to {@link #UNIFORM} if dad has no such node.
+     */
+    SIZE_FAIR;
+
+    /**
+     * Returns the mode with the given name, ignoring case and treating '-' as '_' (e.g. "size-fair").
+     *
+     * @param name
+     * @return
+     */
+    public static CrossoverMode fromString(final String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
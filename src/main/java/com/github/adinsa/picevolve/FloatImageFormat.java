@@ -0,0 +1,273 @@
+package com.github.adinsa.picevolve;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Lossless formats for images, with each (r,g,b) value stored as a 32-bit float rather than rounded to 8 bits, for pipelines that work on the
+ * rendered values directly. Images are written and read by bulk transfers between their rows and NIO buffers (memory-mapped for files).
+ *
+ * @author amar
+ *
+ */
+public enum FloatImageFormat {
+
+    /**
+     * Portable float map: the ASCII header {@code "PF\n<width> <height>\n-1.0\n"} (a negative scale means little-endian), followed by the rows
+     * from bottom to top, each of interleaved (r,g,b) values. Grayscale ({@code "Pf"}) maps can also be read.
+     */
+    PFM {
+        @Override
+        void encode(final Image image, final ByteBuffer buffer) {
+            buffer.put(pfmHeader(image.getWidth(), image.getHeight()));
+            final FloatBuffer data = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            final Rows rows = new Rows(image.getWidth());
+            final float[] interleaved = new float[image.getWidth() * 3];
+            for (int y = image.getHeight() - 1; y >= 0; y--) {
+                image.getRow(y, rows.red, rows.green, rows.blue);
+                for (int x = 0, i = 0; x < rows.red.length; x++, i += 3) {
+                    interleaved[i] = rows.red[x];
+                    interleaved[i + 1] = rows.green[x];
+                    interleaved[i + 2] = rows.blue[x];
+                }
+                data.put(interleaved);
+            }
+        }
+
+        @Override
+        long size(final int width, final int height) {
+            return pfmHeader(width, height).length + (long) width * height * 3 * Float.BYTES;
+        }
+    },
+
+    /**
+     * Planar float dump, meant to be memory-mapped: a 16 byte header of the magic number {@code "PEVF"} then the width, height and number of
+     * channels (3) as little-endian ints, followed by the red, green and blue planes, each of the rows from top to bottom as little-endian floats.
+     */
+    F32 {
+        @Override
+        void encode(final Image image, final ByteBuffer buffer) {
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(F32_MAGIC).putInt(image.getWidth()).putInt(image.getHeight()).putInt(3);
+            final FloatBuffer data = buffer.asFloatBuffer();
+            final int plane = image.getWidth() * image.getHeight();
+            final Rows rows = new Rows(image.getWidth());
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.getRow(y, rows.red, rows.green, rows.blue);
+                final int offset = y * image.getWidth();
+                data.position(offset);
+                data.put(rows.red);
+                data.position(plane + offset);
+                data.put(rows.green);
+                data.position(2 * plane + offset);
+                data.put(rows.blue);
+            }
+        }
+
+        @Override
+        long size(final int width, final int height) {
+            return F32_HEADER_BYTES + (long) width * height * 3 * Float.BYTES;
+        }
+    };
+
+    private static final byte[] F32_MAGIC = "PEVF".getBytes(StandardCharsets.US_ASCII);
+    private static final int F32_HEADER_BYTES = 16;
+
+    /**
+     * Writes the image to the buffer, which must have {@link #size(int, int)} bytes remaining.
+     */
+    abstract void encode(Image image, ByteBuffer buffer);
+
+    /**
+     * Returns the size in bytes of an image in this format.
+     */
+    abstract long size(int width, int height);
+
+    /**
+     * Returns the format with the given name (e.g. "pfm"), ignoring case, if there is one.
+     *
+     * @param formatName
+     * @return
+     */
+    public static Optional<FloatImageFormat> forName(final String formatName) {
+        return Arrays.stream(values()).filter(format -> format.name().equalsIgnoreCase(formatName.trim())).findFirst();
+    }
+
+    /**
+     * Encodes the image in this format.
+     *
+     * @param image
+     * @return
+     */
+    public byte[] encode(final Image image) {
+        final ByteBuffer buffer = ByteBuffer.allocate(checkedSize(image));
+        encode(image, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the image to a file in this format, through a memory mapping of the file.
+     *
+     * @param image
+     * @param file
+     */
+    public void write(final Image image, final File file) {
+        final int size = checkedSize(image);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, size);
+            encode(image, buffer);
+            buffer.force();
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Error writing file: '%s'", file.getPath()), e);
+        }
+    }
+
+    private int checkedSize(final Image image) {
+        final long size = size(image.getWidth(), image.getHeight());
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    String.format("Image too large for %s: %dx%d", name().toLowerCase(), image.getWidth(), image.getHeight()));
+        }
+        return (int) size;
+    }
+
+    /**
+     * Reads an image in either format from a file, through a memory mapping of the file.
+     *
+     * @param file
+     * @return
+     */
+    public static Image read(final File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return decode(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Error reading file: '%s'", file.getPath()), e);
+        }
+    }
+
+    /**
+     * Decodes an image in either format.
+     *
+     * @param bytes
+     * @return
+     */
+    public static Image decode(final byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    private static Image decode(final ByteBuffer buffer) {
+        if (buffer.remaining() >= F32_HEADER_BYTES && startsWith(buffer, F32_MAGIC)) {
+            return decodeF32(buffer);
+        }
+        if (startsWith(buffer, new byte[] { 'P', 'F' }) || startsWith(buffer, new byte[] { 'P', 'f' })) {
+            return decodePfm(buffer);
+        }
+        throw new IllegalArgumentException("Not a PFM or F32 image");
+    }
+
+    private static Image decodeF32(final ByteBuffer buffer) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN).position(F32_MAGIC.length);
+        final int width = buffer.getInt();
+        final int height = buffer.getInt();
+        final int channels = buffer.getInt();
+        if (channels != 3) {
+            throw new IllegalArgumentException(String.format("Unsupported number of channels: %d", channels));
+        }
+        final FloatBuffer data = buffer.asFloatBuffer();
+        final int plane = width * height;
+        final Image image = new Image(width, height);
+        final Rows rows = new Rows(width);
+        for (int y = 0; y < height; y++) {
+            final int offset = y * width;
+            data.position(offset);
+            data.get(rows.red);
+            data.position(plane + offset);
+            data.get(rows.green);
+            data.position(2 * plane + offset);
+            data.get(rows.blue);
+            image.setRow(y, rows.red, rows.green, rows.blue);
+        }
+        return image;
+    }
+
+    private static Image decodePfm(final ByteBuffer buffer) {
+        final int channels = nextToken(buffer).equals("PF") ? 3 : 1;
+        final int width = Integer.parseInt(nextToken(buffer));
+        final int height = Integer.parseInt(nextToken(buffer));
+        final double scale = Double.parseDouble(nextToken(buffer));
+        // A single whitespace character separates the header from the data
+        buffer.get();
+        final FloatBuffer data = buffer.slice().order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asFloatBuffer();
+
+        final Image image = new Image(width, height);
+        final Rows rows = new Rows(width);
+        final float[] interleaved = new float[width * channels];
+        for (int y = height - 1; y >= 0; y--) {
+            data.get(interleaved);
+            for (int x = 0, i = 0; x < width; x++, i += channels) {
+                rows.red[x] = interleaved[i];
+                rows.green[x] = interleaved[i + channels / 3];
+                rows.blue[x] = interleaved[i + 2 * (channels / 3)];
+            }
+            image.setRow(y, rows.red, rows.green, rows.blue);
+        }
+        return image;
+    }
+
+    private static byte[] pfmHeader(final int width, final int height) {
+        return String.format("PF\n%d %d\n-1.0\n", width, height).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean startsWith(final ByteBuffer buffer, final byte[] prefix) {
+        if (buffer.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(buffer.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next whitespace separated ASCII token of a PFM header, leaving the buffer at the whitespace after it.
+     */
+    private static String nextToken(final ByteBuffer buffer) {
+        while (Character.isWhitespace(buffer.get(buffer.position()))) {
+            buffer.get();
+        }
+        final StringBuilder token = new StringBuilder();
+        while (!Character.isWhitespace(buffer.get(buffer.position()))) {
+            token.append((char) buffer.get());
+        }
+        return token.toString();
+    }
+
+    /**
+     * One row of each channel
+     */
+    private static final class Rows {
+
+        private final float[] red;
+        private final float[] green;
+        private final float[] blue;
+
+        Rows(final int width) {
+            red = new float[width];
+            green = new float[width];
+            blue = new float[width];
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package com.github.adinsa.picevolve;
 
 import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
@@ -16,34 +24,119 @@ import java.util.stream.Stream;
 import javax.imageio.ImageIO;
 
 import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.render.RenderContext;
 
 /**
  * A 2D image containing pixels with RGB color values. The phenotype of a PicEvolve {@link Expression}.
  *
+ * <p>
+ * Pixels are stored either as {@link Pixel} objects on the heap, or as one plane of doubles per channel in direct buffers outside the heap (see
+ * {@link Storage}). New images use the storage of the current render, see {@link RenderContext#getImageStorage()}. Direct images should be
+ * {@link #release() released} once they are no longer needed, so that their buffers can be reused without waiting for the garbage collector.
+ * </p>
+ *
  * @author amar
  *
  */
 public class Image {
 
-    private final Pixel[][] pixels;
+    public enum Storage {
+        HEAP, DIRECT
+    }
+
     private final int width;
     private final int height;
 
+    // HEAP storage
+    private final Pixel[][] pixels;
+
+    // DIRECT storage, null once released
+    private DoubleBuffer red;
+    private DoubleBuffer green;
+    private DoubleBuffer blue;
+
     public Image(final int width, final int height) {
+        this(width, height, RenderContext.getImageStorage());
+    }
+
+    public Image(final int width, final int height, final Storage storage) {
 
         this.width = width;
         this.height = height;
 
-        pixels = new Pixel[height][width];
-        IntStream.range(0, height).forEach(y -> Arrays.fill(pixels[y], new Pixel(0)));
+        if (storage == Storage.DIRECT) {
+            pixels = null;
+            red = DirectPlanes.acquire(width, height);
+            green = DirectPlanes.acquire(width, height);
+            blue = DirectPlanes.acquire(width, height);
+        } else {
+            pixels = new Pixel[height][width];
+            IntStream.range(0, height).forEach(y -> Arrays.fill(pixels[y], new Pixel(0)));
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Storage getStorage() {
+        return pixels == null ? Storage.DIRECT : Storage.HEAP;
     }
 
     public Pixel get(final int x, final int y) {
-        return new Pixel(pixels[y][x]);
+        if (pixels != null) {
+            return new Pixel(pixels[y][x]);
+        }
+        final int i = y * width + x;
+        return new Pixel(red.get(i), green.get(i), blue.get(i));
     }
 
     public void set(final int x, final int y, final Pixel pixel) {
-        pixels[y][x] = pixel;
+        if (pixels != null) {
+            pixels[y][x] = pixel;
+            return;
+        }
+        final int i = y * width + x;
+        red.put(i, pixel.r());
+        green.put(i, pixel.g());
+        blue.put(i, pixel.b());
+    }
+
+    /**
+     * Returns the buffers of a {@link Storage#DIRECT} image for reuse by new images. The image must not be used afterwards. Does nothing for
+     * {@link Storage#HEAP} images, which are left to the garbage collector.
+     */
+    public void release() {
+        if (pixels == null && red != null) {
+            DirectPlanes.release(red);
+            DirectPlanes.release(green);
+            DirectPlanes.release(blue);
+            red = null;
+            green = null;
+            blue = null;
+        }
+    }
+
+    /**
+     * Sets the maximum total size of the direct buffers kept for reuse by released images.
+     *
+     * @param bytes
+     */
+    public static void setDirectPoolBytes(final long bytes) {
+        DirectPlanes.maxPooledBytes = bytes;
+    }
+
+    /**
+     * Returns the number of direct buffers that new images have taken from the pool of released ones rather than allocated.
+     *
+     * @return
+     */
+    public static long getDirectPlanesReused() {
+        return DirectPlanes.reused.get();
     }
 
     /**
@@ -63,28 +156,96 @@ public class Image {
      * @return
      */
     public Image scaled(final double minimum, final double maximum) {
+        return scaled(getMinimum(), getMaximum(), minimum, maximum);
+    }
 
-        final double oldMax = asDoubleStream().max().getAsDouble();
-        final double oldMin = asDoubleStream().min().getAsDouble();
+    /**
+     * Returns the smallest (r,g,b) value, or NaN if any value is NaN.
+     *
+     * @return
+     */
+    public double getMinimum() {
+        return asDoubleStream().min().getAsDouble();
+    }
+
+    /**
+     * Returns the largest (r,g,b) value, or NaN if any value is NaN.
+     *
+     * @return
+     */
+    public double getMaximum() {
+        return asDoubleStream().max().getAsDouble();
+    }
+
+    /**
+     * Returns copy of Image with all (r,g,b) values mapped from the range {@code [oldMin, oldMax]} to {@code [minimum, maximum]}, e.g. to scale one
+     * band of a larger image by the range of the whole image.
+     *
+     * @param oldMin
+     * @param oldMax
+     * @param minimum
+     * @param maximum
+     * @return
+     */
+    public Image scaled(final double oldMin, final double oldMax, final double minimum, final double maximum) {
 
         final Image scaledImage = new Image(width, height);
 
         final Function<Double, Double> scaleFunc = component -> oldMax - oldMin == 0 ? minimum
                 : (component - oldMin) * (maximum - minimum) / (oldMax - oldMin) + minimum;
 
-        IntStream.range(0, height).forEach(y -> IntStream.range(0, width).forEach(x -> scaledImage.set(x, y,
+        RenderContext.rows(height).forEach(y -> IntStream.range(0, width).forEach(x -> scaledImage.set(x, y,
                 get(x, y).r(scaleFunc.apply(get(x, y).r())).g(scaleFunc.apply(get(x, y).g())).b(scaleFunc.apply(get(x, y).b())))));
 
         return scaledImage;
     }
 
     /**
-     * Writes image to file in the specified format.
+     * Copies row {@code y} of each channel into the given arrays, for bulk transfers.
+     */
+    void getRow(final int y, final float[] r, final float[] g, final float[] b) {
+        for (int x = 0, i = y * width; x < width; x++, i++) {
+            if (pixels != null) {
+                final Pixel pixel = pixels[y][x];
+                r[x] = (float) pixel.r();
+                g[x] = (float) pixel.g();
+                b[x] = (float) pixel.b();
+            } else {
+                r[x] = (float) red.get(i);
+                g[x] = (float) green.get(i);
+                b[x] = (float) blue.get(i);
+            }
+        }
+    }
+
+    /**
+     * Replaces row {@code y} of each channel with the given arrays, for bulk transfers.
+     */
+    void setRow(final int y, final float[] r, final float[] g, final float[] b) {
+        for (int x = 0, i = y * width; x < width; x++, i++) {
+            if (pixels != null) {
+                pixels[y][x] = new Pixel(r[x], g[x], b[x]);
+            } else {
+                red.put(i, r[x]);
+                green.put(i, g[x]);
+                blue.put(i, b[x]);
+            }
+        }
+    }
+
+    /**
+     * Writes image to file in the specified format: any format supported by {@link ImageIO}, or one of the lossless
+     * {@link FloatImageFormat}s.
      *
      * @param file
      * @param formatName
      */
     public void write(final File file, final String formatName) {
+        final Optional<FloatImageFormat> floatFormat = FloatImageFormat.forName(formatName);
+        if (floatFormat.isPresent()) {
+            floatFormat.get().write(this, file);
+            return;
+        }
         final BufferedImage buf = asBufferedImage();
         try {
             ImageIO.write(buf, formatName, file);
@@ -94,20 +255,63 @@ public class Image {
     }
 
     /**
-     * Converts Image to a {@link BufferedImage}.
+     * Converts Image to a {@link BufferedImage}. Values must be between 0 and 1, and are rounded to 8 bits exactly as by
+     * {@link Color#Color(float, float, float)}.
      *
      * @return
      */
     public BufferedImage asBufferedImage() {
         final BufferedImage buf = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-        final Graphics graphics = buf.getGraphics();
-        IntStream.range(0, pixels.length).forEach(y -> IntStream.range(0, pixels[y].length).forEach(x -> {
-            graphics.setColor(new Color((float) get(x, y).r(), (float) get(x, y).g(), (float) get(x, y).b()));
-            graphics.drawRect(x, y, 1, 1);
-        }));
+        packInto(buf, 0, 0);
         return buf;
     }
 
+    /**
+     * Packs the image into a rectangle of a larger image of type {@link BufferedImage#TYPE_4BYTE_ABGR}, as {@link #asBufferedImage()}. Images
+     * packed into separate rectangles of the same target may be packed at the same time.
+     *
+     * @param target
+     * @param left
+     * @param top
+     */
+    public void packInto(final BufferedImage target, final int left, final int top) {
+        if (left < 0 || top < 0 || left + width > target.getWidth() || top + height > target.getHeight()) {
+            throw new IllegalArgumentException(String.format("%dx%d image does not fit at (%d, %d) in %dx%d image", width, height, left, top,
+                    target.getWidth(), target.getHeight()));
+        }
+        final byte[] data = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        final int stride = target.getWidth() * 4;
+        // Each row is packed directly into its own slice of the raster
+        RenderContext.rows(height).forEach(y -> {
+            final int start = (top + y) * stride + left * 4;
+            if (pixels != null) {
+                for (int x = 0, i = start; x < width; x++, i += 4) {
+                    final Pixel pixel = pixels[y][x];
+                    data[i] = (byte) 0xff; // alpha
+                    data[i + 1] = toByte(pixel.b());
+                    data[i + 2] = toByte(pixel.g());
+                    data[i + 3] = toByte(pixel.r());
+                }
+                return;
+            }
+            // Straight from the planes, without a Pixel per pixel
+            for (int x = 0, i = start, j = y * width; x < width; x++, i += 4, j++) {
+                data[i] = (byte) 0xff; // alpha
+                data[i + 1] = toByte(blue.get(j));
+                data[i + 2] = toByte(green.get(j));
+                data[i + 3] = toByte(red.get(j));
+            }
+        });
+    }
+
+    private static byte toByte(final double value) {
+        final float component = (float) value;
+        if (component < 0 || component > 1) {
+            throw new IllegalArgumentException(String.format("Color parameter outside of expected range: %f", component));
+        }
+        return (byte) (int) (component * 255 + 0.5);
+    }
+
     /**
      * Creates Image from a {@link BufferedImage}.
      *
@@ -142,13 +346,57 @@ public class Image {
     }
 
     private DoubleStream asDoubleStream() {
+        if (pixels == null) {
+            return IntStream.range(0, width * height).mapToObj(i -> DoubleStream.of(red.get(i), green.get(i), blue.get(i)))
+                    .flatMapToDouble(values -> values);
+        }
         return Arrays.stream(pixels).flatMap(row -> Arrays.stream(row)).flatMap(pixel -> Stream.of(pixel.r(), pixel.g(), pixel.b()))
                 .mapToDouble(d -> d);
     }
 
     @Override
     public String toString() {
-        return Arrays.stream(pixels).map(row -> Arrays.toString(row)).collect(Collectors.joining("\n"));
+        return IntStream.range(0, height).mapToObj(y -> IntStream.range(0, width).mapToObj(x -> get(x, y).toString())
+                .collect(Collectors.joining(", ", "[", "]"))).collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Pool of the direct buffers of released images, by size. Buffers released while the pool is full are left to the garbage collector, which
+     * frees their memory when it collects them.
+     */
+    private static final class DirectPlanes {
+
+        private static final Map<Integer, Queue<DoubleBuffer>> POOL = new ConcurrentHashMap<>();
+        private static final AtomicLong pooledBytes = new AtomicLong();
+        private static final AtomicLong reused = new AtomicLong();
+        private static volatile long maxPooledBytes = 256L << 20;
+
+        static DoubleBuffer acquire(final int width, final int height) {
+            final long capacity = (long) width * height;
+            if (capacity * Double.BYTES > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(String.format("Image too large for direct storage: %dx%d", width, height));
+            }
+            final DoubleBuffer plane = POOL.computeIfAbsent((int) capacity, size -> new ConcurrentLinkedQueue<>()).poll();
+            if (plane == null) {
+                // Allocated direct buffers are already zeroed
+                return ByteBuffer.allocateDirect((int) capacity * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+            pooledBytes.addAndGet(-capacity * Double.BYTES);
+            reused.incrementAndGet();
+            for (int i = 0; i < capacity; i++) {
+                plane.put(i, 0);
+            }
+            return plane;
+        }
+
+        static void release(final DoubleBuffer plane) {
+            final long bytes = (long) plane.capacity() * Double.BYTES;
+            if (pooledBytes.addAndGet(bytes) > maxPooledBytes) {
+                pooledBytes.addAndGet(-bytes);
+                return;
+            }
+            POOL.computeIfAbsent(plane.capacity(), size -> new ConcurrentLinkedQueue<>()).add(plane);
+        }
     }
 
     public static class Pixel {
@@ -0,0 +1,265 @@
+package com.github.adinsa.picevolve;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.adinsa.picevolve.Fingerprinter.Fingerprint;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.random.Random;
+
+/**
+ * Generates a population of distinct offspring by running attempts in parallel.
+ *
+ * <p>
+ * Attempts are run in batches on a {@link ForkJoinPool}. Attempt {@code k} always uses the {@code k}-th stream split from the session
+ * {@link Random}, and candidates are accepted in attempt order. The resulting population is therefore the same for a given seed regardless of the
+ * number of cores or thread scheduling. Duplicates are detected through a concurrent map keyed by structural hash, in which the lowest attempt
+ * number wins.
+ * </p>
+ *
+ * <p>
+ * If a {@link Fingerprinter} is configured, each candidate is also rendered at low resolution as part of its attempt, and candidates that look
+ * like a parent or an earlier candidate are rejected the same way, before any full-size render is scheduled.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class OffspringGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(OffspringGenerator.class);
+
+    private static final int DEFAULT_MAX_ATTEMPTS_PER_OFFSPRING = 100;
+
+    private final ForkJoinPool pool;
+    private final int maxAttemptsPerOffspring;
+    private final Fingerprinter fingerprinter;
+
+    public OffspringGenerator() {
+        this(Fingerprinter.DEFAULT);
+    }
+
+    public OffspringGenerator(final Fingerprinter fingerprinter) {
+        this(ForkJoinPool.commonPool(), DEFAULT_MAX_ATTEMPTS_PER_OFFSPRING, fingerprinter);
+    }
+
+    /**
+     * @param pool
+     * @param maxAttemptsPerOffspring
+     * @param fingerprinter
+     *            used to reject near-duplicates, or null to only reject structural duplicates
+     */
+    public OffspringGenerator(final ForkJoinPool pool, final int maxAttemptsPerOffspring, final Fingerprinter fingerprinter) {
+        this.pool = pool;
+        this.maxAttemptsPerOffspring = maxAttemptsPerOffspring;
+        this.fingerprinter = fingerprinter;
+    }
+
+    /**
+     * Generates up to {@code populationSize} structurally distinct offspring that are also distinct from every expression in {@code excluded}.
+     * Gives up after {@code populationSize * maxAttemptsPerOffspring} attempts, in which case the result holds fewer offspring.
+     *
+     * @param random
+     *            session random source; one stream is split off per attempt
+     * @param populationSize
+     * @param excluded
+     *            expressions the offspring must differ from (typically the parents)
+     * @param attempt
+     *            produces one candidate from its own random stream, or {@code null} to discard the attempt; must be thread-safe
+     * @return
+     */
+    public Result generate(final Random random, final int populationSize, final Collection<Expression> excluded,
+            final Function<Random, Expression> attempt) {
+
+        final long maxAttempts = (long) populationSize * maxAttemptsPerOffspring;
+
+        final ConcurrentMap<Key, Integer> firstSeen = new ConcurrentHashMap<>();
+        excluded.forEach(expression -> firstSeen.put(new Key(expression), -1));
+
+        final ConcurrentMap<Fingerprint, Integer> firstLook = new ConcurrentHashMap<>();
+        if (fingerprinter != null) {
+            excluded.forEach(expression -> firstLook.put(fingerprinter.fingerprint(expression), -1));
+        }
+
+        final List<Expression> offspring = new ArrayList<>(populationSize);
+        int attempts = 0;
+        int duplicates = 0;
+        int nearDuplicates = 0;
+        int discarded = 0;
+
+        while (offspring.size() < populationSize && attempts < maxAttempts) {
+
+            final int first = attempts;
+            final int batchSize = (int) Math.min(2L * (populationSize - offspring.size()), maxAttempts - attempts);
+            final List<Random> streams = IntStream.range(0, batchSize).mapToObj(i -> random.split()).collect(Collectors.toList());
+
+            final List<Candidate> candidates = pool.submit(() -> IntStream.range(0, batchSize).parallel().mapToObj(i -> {
+                final Expression expression = attempt.apply(streams.get(i));
+                if (expression == null) {
+                    return null;
+                }
+                final Candidate candidate = new Candidate(first + i, expression, fingerprinter);
+                firstSeen.merge(candidate.key, candidate.attempt, Math::min);
+                if (candidate.fingerprint != null) {
+                    firstLook.merge(candidate.fingerprint, candidate.attempt, Math::min);
+                }
+                return candidate;
+            }).collect(Collectors.toList())).join();
+
+            for (final Candidate candidate : candidates) {
+                if (offspring.size() == populationSize) {
+                    break;
+                }
+                attempts++;
+                if (candidate == null) {
+                    discarded++;
+                } else if (firstSeen.get(candidate.key) != candidate.attempt) {
+                    duplicates++;
+                } else if (candidate.fingerprint != null && firstLook.get(candidate.fingerprint) != candidate.attempt) {
+                    nearDuplicates++;
+                } else {
+                    offspring.add(candidate.key.expression);
+                }
+            }
+        }
+
+        final Result result = new Result(offspring, attempts, duplicates, nearDuplicates, discarded);
+        if (offspring.size() < populationSize) {
+            logger.warn("Gave up after {} attempts: {}", attempts, result);
+        } else {
+            logger.info("{}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Structural-hash key for de-duplicating expressions
+     */
+    private static final class Key {
+
+        private final Expression expression;
+        private final long hash;
+
+        Key(final Expression expression) {
+            this.expression = expression;
+            hash = expression.structuralHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ hash >>> 32);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash == other.hash && expression.structurallyEquals(other.expression);
+        }
+    }
+
+    private static final class Candidate {
+
+        private final int attempt;
+        private final Key key;
+        private final Fingerprint fingerprint;
+
+        Candidate(final int attempt, final Expression expression, final Fingerprinter fingerprinter) {
+            this.attempt = attempt;
+            key = new Key(expression);
+            fingerprint = fingerprinter == null ? null : fingerprinter.fingerprint(expression);
+        }
+    }
+
+    /**
+     * Offspring produced by {@link OffspringGenerator#generate(Random, int, Collection, Function)} along with attempt statistics
+     */
+    public static class Result {
+
+        private final List<Expression> offspring;
+        private final int attempts;
+        private final int duplicates;
+        private final int nearDuplicates;
+        private final int discarded;
+
+        public Result(final List<Expression> offspring, final int attempts, final int duplicates, final int nearDuplicates, final int discarded) {
+            this.offspring = Collections.unmodifiableList(offspring);
+            this.attempts = attempts;
+            this.duplicates = duplicates;
+            this.nearDuplicates = nearDuplicates;
+            this.discarded = discarded;
+        }
+
+        public List<Expression> getOffspring() {
+            return offspring;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Returns the number of attempts rejected for any reason.
+         *
+         * @return
+         */
+        public int getRejected() {
+            return duplicates + nearDuplicates + discarded;
+        }
+
+        /**
+         * Returns the number of attempts rejected as duplicates of a parent or of an earlier offspring.
+         *
+         * @return
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Returns the number of attempts rejected because their fingerprint matched that of a parent or of an earlier offspring.
+         *
+         * @return
+         */
+        public int getNearDuplicates() {
+            return nearDuplicates;
+        }
+
+        /**
+         * Returns the number of attempts discarded by the attempt itself (e.g. for exceeding size limits).
+         *
+         * @return
+         */
+        public int getDiscarded() {
+            return discarded;
+        }
+
+        /**
+         * Returns the fraction of attempts that were rejected.
+         *
+         * @return
+         */
+        public double getRejectionRate() {
+            return attempts == 0 ? 0 : (double) getRejected() / attempts;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Generated %d offspring in %d attempts (%.1f%% rejected: %d duplicates, %d near-duplicates, %d discarded)",
+                    offspring.size(), attempts, 100 * getRejectionRate(), duplicates, nearDuplicates, discarded);
+        }
+    }
+}
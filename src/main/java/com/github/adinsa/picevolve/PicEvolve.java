@@ -3,90 +3,124 @@ package com.github.adinsa.picevolve;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
 import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.ExpressionLimits;
 import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.FunctionRegistry;
+import com.github.adinsa.picevolve.expression.NodeIndex;
 import com.github.adinsa.picevolve.expression.Terminal;
 import com.github.adinsa.picevolve.expression.Variable;
 import com.github.adinsa.picevolve.random.Random;
 import com.github.adinsa.picevolve.random.RandomImpl;
+import com.github.adinsa.picevolve.render.CancellationToken;
+import com.github.adinsa.picevolve.render.RenderFuture;
 import com.github.adinsa.picevolve.visitor.EvaluatorVisitor;
 import com.github.adinsa.picevolve.visitor.MutationVisitor;
-import com.github.adinsa.picevolve.visitor.Visitor;
+import com.github.adinsa.picevolve.visitor.SimplifierVisitor;
 
 public class PicEvolve {
 
     private static final Logger logger = LoggerFactory.getLogger(PicEvolve.class);
 
-    private final Map<String, Function> functionMap = new HashMap<>();
+    private static final int MAX_ATTEMPTS_PER_RANDOM_EXPRESSION = 100;
+
+    private final FunctionRegistry functionRegistry = FunctionRegistry.getInstance();
     private final Random random;
+    private final OffspringGenerator offspringGenerator;
+    private final ExpressionLimits limits;
+
+    private volatile CrossoverMode crossoverMode = CrossoverMode.SIZE_FAIR;
+    private volatile CostModel costModel = CostModel.DEFAULT;
+    private volatile double costBudget = Double.POSITIVE_INFINITY;
 
     public PicEvolve() {
         this(new RandomImpl());
     }
 
     public PicEvolve(final Random random) {
+        this(random, ExpressionLimits.DEFAULT);
+    }
 
+    public PicEvolve(final Random random, final ExpressionLimits limits) {
+        this(random, new OffspringGenerator(), limits);
+    }
+
+    /**
+     * @param random
+     *            session random source
+     * @param offspringGenerator
+     *            engine used to generate mutation and crossover offspring
+     * @param limits
+     *            size and depth limits enforced on offspring; these should match the limits the {@link Random} generates expressions with
+     */
+    public PicEvolve(final Random random, final OffspringGenerator offspringGenerator, final ExpressionLimits limits) {
         this.random = random;
+        this.offspringGenerator = offspringGenerator;
+        this.limits = limits;
+    }
 
-        // @formatter:off
-        this.addFunctions(new Function[] {
-                new Function.Plus(),
-                new Function.Minus(),
-                new Function.Multiply(),
-                new Function.Divide(),
-                new Function.Round(),
-                new Function.Expt(),
-                new Function.Log(),
-                new Function.Sine(),
-                new Function.Cosine(),
-                new Function.Tangent(),
-                new Function.Min(),
-                new Function.Max(),
-                new Function.Abs(),
-                new Function.Mod(),
-                new Function.IntAnd(),
-                new Function.IntOr(),
-                new Function.IntXor(),
-                new Function.FloatAnd(),
-                new Function.FloatOr(),
-                new Function.FloatXor(),
-                new Function.Noise(),
-                new Function.WarpedNoise(),
-                new Function.Blur(),
-                new Function.Sharpen(),
-                new Function.Emboss()
-        });
-        // @formatter:on
+    public CrossoverMode getCrossoverMode() {
+        return crossoverMode;
     }
 
-    private final void addFunctions(final Function... functions) {
-        Arrays.asList(functions).stream().forEach(func -> addFunction(func));
+    public void setCrossoverMode(final CrossoverMode crossoverMode) {
+        this.crossoverMode = crossoverMode;
     }
 
-    private final void addFunction(final Function function) {
-        if (functionMap.containsKey(function.getName())) {
-            throw new IllegalArgumentException(String.format("Function with name '%s' already exists", function.getName()));
-        }
-        functionMap.put(function.getName(), function);
+    public CostModel getCostModel() {
+        return costModel;
+    }
+
+    public void setCostModel(final CostModel costModel) {
+        this.costModel = costModel;
+    }
+
+    public double getCostBudget() {
+        return costBudget;
+    }
+
+    /**
+     * Sets the maximum estimated cost, in nanoseconds per pixel according to the {@link CostModel}, of new random expressions and offspring.
+     * Offspring of parents that already exceed the budget may cost as much as the costliest parent.
+     *
+     * @param costBudget
+     */
+    public void setCostBudget(final double costBudget) {
+        this.costBudget = costBudget;
+    }
+
+    /**
+     * Returns the estimated cost of evaluating the expression.
+     *
+     * @param expression
+     * @return
+     */
+    public CostModel.Estimate estimateCost(final Expression expression) {
+        return costModel.estimate(expression);
     }
 
     public Optional<Function> getFunction(final String name) {
-        return Optional.ofNullable(functionMap.get(name)).map(function -> function.copy());
+        return functionRegistry.get(name).map(entry -> entry.newInstance());
     }
 
     public Set<String> getFunctionNames() {
-        return Collections.unmodifiableSet(functionMap.keySet());
+        return functionRegistry.getNames();
     }
 
     /**
@@ -105,9 +139,13 @@ public class PicEvolve {
         Collections.reverse(tokens);
 
         for (final String token : tokens) {
-            if (getFunction(token).isPresent()) {
-                final Function func = getFunction(token).get();
+            final Optional<Function> function = getFunction(token);
+            if (function.isPresent()) {
+                final Function func = function.get();
                 final List<Expression> children = new ArrayList<>(func.getArity());
+                if (exprStack.size() < func.getArity()) {
+                    throw new RuntimeException(String.format("Too few arguments for '%s'", token));
+                }
                 for (int i = 0; i < func.getArity(); i++) {
                     final Expression child = exprStack.pop();
                     children.add(child);
@@ -129,19 +167,31 @@ public class PicEvolve {
                 }
             }
         }
+        if (exprStack.size() != 1) {
+            throw new RuntimeException(String.format("Expected one expression but found %d: '%s'", exprStack.size(), expressionString));
+        }
         return exprStack.pop();
     }
 
     /**
-     * Returns a population of random expressions
+     * Returns a population of random expressions. Expressions over the cost budget are regenerated, up to a fixed number of times per expression.
      *
      * @param populationSize
      * @return
      */
     public List<Expression> initializePopulation(final int populationSize) {
 
+        final CostModel model = costModel;
+        final double budget = costBudget;
+
         final List<Expression> population = new ArrayList<>();
-        IntStream.range(0, populationSize).forEach(i -> population.add(random.nextExpression()));
+        IntStream.range(0, populationSize).forEach(i -> {
+            Expression expression = random.nextExpression();
+            for (int attempt = 1; attempt < MAX_ATTEMPTS_PER_RANDOM_EXPRESSION && model.estimate(expression).getNanosPerPixel() > budget; attempt++) {
+                expression = random.nextExpression();
+            }
+            population.add(expression);
+        });
 
         return population;
     }
@@ -154,20 +204,26 @@ public class PicEvolve {
      * @return
      */
     public List<Expression> mutate(final Expression parent, final int populationSize) {
+        return generateMutants(parent, populationSize).getOffspring();
+    }
 
-        final List<Expression> nextGeneration = new ArrayList<>();
-
-        do {
-            final Visitor visitor = new MutationVisitor();
-            final Expression mutant = parse(parent.toString());
-            mutant.accept(visitor);
+    /**
+     * Generates mutations of the provided parent expression in parallel, returning them along with attempt statistics.
+     *
+     * @param parent
+     * @param populationSize
+     * @return
+     */
+    public OffspringGenerator.Result generateMutants(final Expression parent, final int populationSize) {
 
-            if (!mutant.toString().equalsIgnoreCase(parent.toString())) {
-                nextGeneration.add(mutant);
-            }
-        } while (nextGeneration.size() != populationSize);
+        final ExpressionLimits offspringLimits = limits.admitting(parent);
+        final CostModel model = costModel;
+        final double budget = offspringBudget(model, parent);
 
-        return nextGeneration;
+        return offspringGenerator.generate(random, populationSize, Collections.singletonList(parent), stream -> {
+            final Expression mutant = new MutationVisitor(stream).mutate(parent.deepCopy());
+            return enforceLimits(mutant, offspringLimits, model, budget, stream);
+        });
     }
 
     /**
@@ -179,34 +235,83 @@ public class PicEvolve {
      * @return
      */
     public List<Expression> crossover(final Expression mom, final Expression dad, final int populationSize) {
+        return generateCrossovers(mom, dad, populationSize).getOffspring();
+    }
+
+    /**
+     * Generates crossovers between the two provided parent expressions in parallel, returning them along with attempt statistics.
+     *
+     * @param mom
+     * @param dad
+     * @param populationSize
+     * @return
+     */
+    public OffspringGenerator.Result generateCrossovers(final Expression mom, final Expression dad, final int populationSize) {
 
         logger.debug("Mom expression: {}", mom.toString());
         logger.debug("Dad expression: {}", dad.toString());
 
-        final List<Expression> children = new ArrayList<>();
+        final NodeIndex momIndex = mom.getNodeIndex();
+        final ExpressionLimits offspringLimits = limits.admitting(mom, dad);
+        final CrossoverMode mode = crossoverMode;
+        final CostModel model = costModel;
+        final double budget = offspringBudget(model, mom, dad);
+
+        return offspringGenerator.generate(random, populationSize, Arrays.asList(mom, dad), stream -> {
+            final Expression momSubtree = stream.nextNode(mom);
+            final Expression dadSubtree = mode == CrossoverMode.SIZE_FAIR ? nextSizeFairDonor(mom, momSubtree, dad, offspringLimits, stream)
+                    : stream.nextNode(dad);
+            final Expression offspring = momIndex.copyWithReplacement(momIndex.indexOf(momSubtree), dadSubtree.deepCopy());
+            return enforceLimits(offspring, offspringLimits, model, budget, stream);
+        });
+    }
 
-        do {
-            Expression momCopy = parse(mom.toString());
-            final Expression dadCopy = parse(dad.toString());
+    /**
+     * Picks a subtree of dad to replace {@code momSubtree} with: one between half and twice its size that also keeps the offspring within the
+     * size limit, or any subtree of dad if there is none.
+     */
+    static Expression nextSizeFairDonor(final Expression mom, final Expression momSubtree, final Expression dad,
+            final ExpressionLimits offspringLimits, final Random stream) {
+        final int size = momSubtree.getSize();
+        final int remaining = mom.getSize() - size;
+        final int maxSize = Math.min(2 * size, offspringLimits.getMaxSize() - remaining);
+        return stream.nextNode(dad, (size + 1) / 2, maxSize).orElseGet(() -> stream.nextNode(dad));
+    }
 
-            final Expression momSubtree = random.nextNode(momCopy);
-            final Expression dadSubtree = random.nextNode(dadCopy);
+    /**
+     * Returns the cost budget for offspring of the given parents: the configured budget, widened to admit the parents themselves.
+     */
+    private double offspringBudget(final CostModel model, final Expression... parents) {
+        double budget = costBudget;
+        for (final Expression parent : parents) {
+            budget = Math.max(budget, model.estimate(parent).getNanosPerPixel());
+        }
+        return budget;
+    }
 
-            if (momSubtree.getParent() == null) {
-                momCopy = dadSubtree;
-            } else {
-                final List<Expression> newChildren = momSubtree.getParent().getChildren();
-                newChildren.set(newChildren.indexOf(newChildren.stream().filter(sibling -> sibling == momSubtree).findAny().get()), dadSubtree);
-                momSubtree.getParent().setChildren(newChildren);
-            }
+    /**
+     * Repairs an offspring that is too deep by truncating it, and rejects it (returns null) if it is still too large or too costly to render. The
+     * limits and budget are widened to admit the parents themselves.
+     */
+    private static Expression enforceLimits(final Expression offspring, final ExpressionLimits offspringLimits, final CostModel model,
+            final double budget, final Random stream) {
+        final Expression repaired = offspringLimits.repair(offspring, stream::nextTerminal);
+        return offspringLimits.permits(repaired) && model.estimate(repaired).getNanosPerPixel() <= budget ? repaired : null;
+    }
 
-            if (!momCopy.toString().equalsIgnoreCase(mom.toString())) {
-                children.add(momCopy);
-            }
+    /**
+     * Returns a simplified copy of the input {@link Expression} that evaluates to exactly the same {@link Image}.
+     *
+     * @param expression
+     * @return
+     * @see SimplifierVisitor
+     */
+    public Expression simplify(final Expression expression) {
 
-        } while (children.size() != populationSize);
+        final SimplifierVisitor visitor = new SimplifierVisitor();
+        expression.deepCopy().accept(visitor);
 
-        return children;
+        return visitor.getExpression();
     }
 
     /**
@@ -224,4 +329,99 @@ public class PicEvolve {
 
         return visitor.getImage().scaled();
     }
+
+    /**
+     * Evaluates input {@link Expression} asynchronously on the common {@link ForkJoinPool}.
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @return
+     * @see #evaluateAsync(Expression, int, int, Executor)
+     */
+    public RenderFuture<Image> evaluateAsync(final Expression expression, final int width, final int height) {
+        return evaluateAsync(expression, width, height, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Evaluates input {@link Expression} asynchronously on the given executor. Cancelling the returned future stops the evaluation at its next
+     * checkpoint.
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @param executor
+     * @return
+     */
+    public RenderFuture<Image> evaluateAsync(final Expression expression, final int width, final int height, final Executor executor) {
+        return RenderFuture.supplyAsync(() -> evaluate(expression, width, height), executor, new CancellationToken());
+    }
+
+    /**
+     * Evaluates each expression of a population asynchronously on the given executor, calling {@code onRendered} with the index and image of
+     * each one as it completes (on the thread that evaluated it).
+     *
+     * <p>
+     * The returned future completes with the images in population order once every expression has been evaluated, or exceptionally with the first
+     * failure once all of them have finished. If the executor rejects an evaluation, the ones already submitted are cancelled and the future
+     * completes exceptionally with the rejection once they have finished. Cancelling it cancels every evaluation that has not completed yet.
+     * </p>
+     *
+     * @param population
+     * @param width
+     * @param height
+     * @param executor
+     * @param onRendered
+     * @return
+     */
+    public RenderFuture<List<Image>> evaluateAsync(final List<Expression> population, final int width, final int height, final Executor executor,
+            final BiConsumer<Integer, Image> onRendered) {
+
+        final CancellationToken token = new CancellationToken();
+        final RenderFuture<List<Image>> all = new RenderFuture<>(token);
+        final Image[] images = new Image[population.size()];
+        final AtomicInteger remaining = new AtomicInteger(population.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final IntConsumer finished = count -> {
+            if (remaining.addAndGet(-count) == 0) {
+                if (failure.get() == null) {
+                    all.complete(Collections.unmodifiableList(Arrays.asList(images)));
+                } else {
+                    all.completeExceptionally(failure.get());
+                }
+            }
+        };
+
+        if (population.isEmpty()) {
+            all.complete(Collections.emptyList());
+        }
+        for (int i = 0; i < population.size(); i++) {
+            final int index = i;
+            final Expression expression = population.get(i);
+            try {
+                RenderFuture.supplyAsync(() -> evaluate(expression, width, height), executor, token.child()).whenComplete((image, error) -> {
+                    try {
+                        if (error != null) {
+                            failure.compareAndSet(null, error);
+                        } else {
+                            images[index] = image;
+                            onRendered.accept(index, image);
+                        }
+                    } catch (final Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        finished.accept(1);
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                failure.compareAndSet(null, e);
+                token.cancel("Rejected");
+                // This evaluation and the ones after it will never run, so they are finished now
+                finished.accept(population.size() - i);
+                break;
+            }
+        }
+        return all;
+    }
 }
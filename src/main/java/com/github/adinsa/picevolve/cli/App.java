@@ -1,23 +1,44 @@
 package com.github.adinsa.picevolve.cli;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.adinsa.picevolve.CostModel;
+import com.github.adinsa.picevolve.FloatImageFormat;
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.OffspringGenerator;
 import com.github.adinsa.picevolve.PicEvolve;
 import com.github.adinsa.picevolve.expression.Expression;
-import com.github.adinsa.picevolve.visitor.EvaluatorVisitor;
+import com.github.adinsa.picevolve.expression.ExpressionLimits;
+import com.github.adinsa.picevolve.library.Library;
+import com.github.adinsa.picevolve.library.LibraryTransfer;
+import com.github.adinsa.picevolve.random.RandomImpl;
+import com.github.adinsa.picevolve.render.CancellationToken;
+import com.github.adinsa.picevolve.render.Montage;
+import com.github.adinsa.picevolve.render.PngEncoder;
+import com.github.adinsa.picevolve.render.RenderCache;
+import com.github.adinsa.picevolve.render.RenderCancelledException;
+import com.github.adinsa.picevolve.render.RenderJob;
+import com.github.adinsa.picevolve.render.RenderPipeline;
+import com.github.adinsa.picevolve.render.RenderPriority;
+import com.github.adinsa.picevolve.render.RenderScheduler;
+import com.github.adinsa.picevolve.render.StreamingRenderer;
+import com.github.adinsa.picevolve.render.TiledRenderer;
 
 /**
  * Simple command line interface providing ability to save/load/delete image expressions to a text file.
@@ -29,19 +50,63 @@ public class App {
 
     private static final Logger logger = LoggerFactory.getLogger(App.class);
 
+    private static final int COST_CALIBRATION_SIZE = 32;
+    private static final int COST_CALIBRATION_REPETITIONS = 5;
+
     private List<Expression> population;
     private final PicEvolve picEvolve;
-    private final ExecutorService executor;
+    private final RenderScheduler scheduler;
+    private final RenderPipeline pipeline;
+    private final ExecutorService compressor;
+    private final Library library;
     private final Configuration configuration;
 
+    private final Object publishLock = new Object();
+    private long generation;
+    private CancellationToken generationToken = new CancellationToken();
+
     public App() throws IOException {
+        this(new Configuration());
+    }
+
+    App(final Configuration configuration) throws IOException {
         population = new ArrayList<>();
-        picEvolve = new PicEvolve();
-        configuration = new Configuration();
+        this.configuration = configuration;
 
-        final int numProcessors = Runtime.getRuntime().availableProcessors();
-        logger.debug("availableProcessors: {}", numProcessors);
-        executor = Executors.newFixedThreadPool(numProcessors);
+        final OptionalLong seed = configuration.getRandomSeed();
+        if (seed.isPresent()) {
+            logger.info("Using random seed: {}", seed.getAsLong());
+        }
+        final ExpressionLimits limits = configuration.getExpressionLimits();
+        logger.debug("{}", limits);
+        final OffspringGenerator offspringGenerator = new OffspringGenerator(configuration.getFingerprinter().orElse(null));
+        picEvolve = new PicEvolve(seed.isPresent() ? new RandomImpl(seed.getAsLong(), limits) : new RandomImpl(limits), offspringGenerator, limits);
+        picEvolve.setCrossoverMode(configuration.getCrossoverMode());
+        if (configuration.isCostCalibrationEnabled()) {
+            picEvolve.setCostModel(CostModel.calibrate(COST_CALIBRATION_SIZE, COST_CALIBRATION_REPETITIONS));
+        }
+        configuration.getCostBudget().ifPresent(picEvolve::setCostBudget);
+
+        logger.debug("availableProcessors: {}", Runtime.getRuntime().availableProcessors());
+        scheduler = new RenderScheduler(configuration.getRenderThreads(), configuration.getRenderRowParallelism(),
+                configuration.getInteractiveRenderCapacity(), configuration.getBatchRenderCapacity());
+        final Optional<String> cacheDirectory = configuration.getRenderCacheDirectory();
+        final RenderCache cache = cacheDirectory.isPresent()
+                ? new RenderCache(new File(cacheDirectory.get()), configuration.getRenderCacheMaxMegabytes() << 20)
+                : null;
+        Image.setDirectPoolBytes(configuration.getDirectPoolMegabytes() << 20);
+        library = Library.open(new File(configuration.getLibraryFile()));
+        compressor = Executors.newFixedThreadPool(configuration.getPngThreads());
+        final PngEncoder png = new PngEncoder(configuration.getPngCompressionLevel(), compressor);
+        final Optional<Long> streamingMinPixels = configuration.getStreamingMinPixels();
+        final StreamingRenderer streaming = streamingMinPixels.isPresent()
+                ? new StreamingRenderer(configuration.getStreamingBandRows(), streamingMinPixels.get(), png)
+                : null;
+        final Optional<Long> tiledMinPixels = configuration.getTiledMinPixels();
+        final TiledRenderer tiled = tiledMinPixels.isPresent() ? new TiledRenderer(new File(configuration.getTileScratchDirectory()),
+                configuration.getTileSize(), configuration.getTileCacheMegabytes() << 20, tiledMinPixels.get(), png) : null;
+        pipeline = new RenderPipeline(configuration.getEncoderThreads(), configuration.getWriterThreads(), configuration.getPipelineCapacity(),
+                cache, streaming, tiled, png);
     }
 
     public static void main(final String[] args) throws IOException, InterruptedException {
@@ -50,72 +115,124 @@ public class App {
         new CommandRunner(app).mainLoop(System.in, System.out);
 
         logger.info("Shutting down...");
-        app.executor.shutdown();
-        app.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        app.shutdown();
+    }
+
+    /**
+     * Waits for queued renders to be written, then releases the app's threads and closes the library.
+     */
+    void shutdown() throws IOException, InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        pipeline.shutdownAndAwaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        compressor.shutdown();
+        library.close();
     }
 
     @Command(description = "Initialize a population of random images", prompts = { "Enter population size: " })
-    public void init(final int populationSize) throws IOException {
+    public void init(final int populationSize) throws IOException, InterruptedException {
 
         population = picEvolve.initializePopulation(populationSize);
         generateImages(population);
     }
 
     @Command(description = "Generate mutations of a parent image", prompts = { "Enter parent #: ", "Enter population size: " })
-    public void mutate(final int parentId, final int populationSize) throws IOException {
+    public void mutate(final int parentId, final int populationSize) throws IOException, InterruptedException {
 
-        population = picEvolve.mutate(getExpression(parentId), populationSize);
-        generateImages(population);
+        replacePopulation(picEvolve.mutate(getExpression(parentId), populationSize), populationSize);
     }
 
     @Command(description = "Perform crossover between two parent images", prompts = { "Enter first parent #: ", "Enter second parent #: ",
             "Enter population size: " })
-    public void crossover(final int momId, final int dadId, final int populationSize) throws IOException {
+    public void crossover(final int momId, final int dadId, final int populationSize) throws IOException, InterruptedException {
 
-        population = picEvolve.crossover(getExpression(momId), getExpression(dadId), populationSize);
+        replacePopulation(picEvolve.crossover(getExpression(momId), getExpression(dadId), populationSize), populationSize);
+    }
+
+    /**
+     * Replaces the population with the offspring of its members, unless there are none, in which case the current population is kept so its
+     * images can still be chosen from.
+     */
+    private void replacePopulation(final List<Expression> offspring, final int populationSize) throws IOException, InterruptedException {
+        if (offspring.isEmpty()) {
+            logger.warn("No new offspring could be generated, keeping the current population");
+            return;
+        }
+        if (offspring.size() < populationSize) {
+            logger.warn("Only {} of {} offspring could be generated", offspring.size(), populationSize);
+        }
+        population = offspring;
         generateImages(population);
     }
 
     @Command(description = "Generate higher resolution version of an image", prompts = { "Enter image #: ", "Enter width: ", "Enter height: ",
             "Enter filename: " })
-    public void generate(final int expressionId, final int width, final int height, final String filename) {
+    public void generate(final int expressionId, final int width, final int height, final String filename) throws InterruptedException {
 
-        executor.submit(new EvaluationTask(new File(filename), getExpression(expressionId), width, height));
+        final Expression expression = getExpression(expressionId);
+        final double cost = warnIfCostly(expressionId, expression, width, height).getNanos(width, height);
+
+        // Not part of the population's generation, so not cancelled when the population is replaced
+        final RenderJob job = new RenderJob(generation, filename, new CancellationToken(), configuration.getRenderDeadlineMillis(),
+                scheduler.getRowPool(), configuration.getImageStorage());
+        scheduler.submit(RenderPriority.BATCH, cost, new EvaluationTask(new File(filename), expression, width, height, job));
+    }
+
+    @Command(description = "Show time spent in each render stage")
+    public void stats() {
+        logger.info("Render pipeline:\n{}", pipeline.getStatistics());
     }
 
     @Command(description = "Load saved image expressions")
-    public void load() throws IOException {
+    public void load() throws IOException, InterruptedException {
+        page(0);
+    }
 
-        final File libraryFile = getLibraryFile();
-        population = new ArrayList<>();
-        try (FileReader reader = new FileReader(libraryFile)) {
-            population = Files.readAllLines(libraryFile.toPath()).stream().map(exprStr -> picEvolve.parse(exprStr)).collect(Collectors.toList());
-        }
+    @Command(description = "Load a page of saved image expressions", prompts = { "Enter page #: " })
+    public void page(final int page) throws IOException, InterruptedException {
+
+        // Expressions are parsed as their previews are scheduled, rather than all before the first one
+        final int pageSize = configuration.getLibraryPageSize();
+        final List<Expression> saved = library.view(exprStr -> picEvolve.parse(exprStr));
+        // In long, so that a large page number cannot overflow into a negative index
+        final int first = (int) Math.min((long) Math.max(0, page) * pageSize, saved.size());
+        population = saved.subList(first, Math.min(first + pageSize, saved.size()));
+        logger.info("Loaded page {} of 0-{} ({} saved expressions)", page, Math.max(0, (library.size() - 1) / pageSize), library.size());
         generateImages(population);
     }
 
     @Command(description = "Save an image expression", prompts = { "Enter image #: " })
     public void save(final int expressionId) throws IOException {
-
-        try (FileWriter writer = new FileWriter(getLibraryFile(), true);) {
-            writer.append(getExpression(expressionId).toString()).append('\n');
-        }
+        library.save(prepare(getExpression(expressionId)).toString());
     }
 
     @Command(description = "Delete saved image expression", prompts = { "Enter image #: " })
     public void delete(final int expressionId) throws IOException {
 
-        final File libraryFile = getLibraryFile();
-        final List<String> lines = Files.readAllLines(libraryFile.toPath()).stream()
-                .filter(line -> !line.trim().equals(getExpression(expressionId).toString())).collect(Collectors.toList());
-
-        try (FileWriter writer = new FileWriter(libraryFile, false)) {
-            for (final String line : lines) {
-                writer.append(line).append("\n");
-            }
+        final Expression expression = getExpression(expressionId);
+        final String saved = prepare(expression).toString();
+        library.delete(expression.toString());
+        if (!saved.equals(expression.toString())) {
+            library.delete(saved);
         }
     }
 
+    @Command(description = "Import saved image expressions from text files", prompts = { "Enter comma-separated files: " })
+    public void merge(final String files) throws IOException {
+        final List<File> sources = Arrays.stream(files.split(",")).filter(name -> !name.isEmpty()).map(File::new).collect(Collectors.toList());
+        logger.info("Imported {}", new LibraryTransfer(picEvolve).importFrom(sources, library));
+    }
+
+    @Command(description = "Export saved image expressions to a text file", prompts = { "Enter filename: " })
+    public void export(final String filename) throws IOException {
+        logger.info("Exported {}", new LibraryTransfer(picEvolve).exportTo(library, new File(filename)));
+    }
+
+    @Command(description = "Compact the library file")
+    public void compact() throws IOException {
+        library.compact();
+    }
+
     static class ExpressionIndexOutOfBoundsException extends IndexOutOfBoundsException {
 
         private static final long serialVersionUID = -2161367907524405709L;
@@ -133,11 +250,11 @@ public class App {
         return population.get(expressionIdx);
     }
 
-    private File getLibraryFile() throws IOException {
-
-        final File file = new File(configuration.getLibraryFile());
-        file.createNewFile();
-        return file;
+    /**
+     * Returns the form of the expression that is evaluated and saved: simplified if configured, otherwise the expression itself.
+     */
+    private Expression prepare(final Expression expression) {
+        return configuration.isSimplifyEnabled() ? picEvolve.simplify(expression) : expression;
     }
 
     private File getImagesDirectory() throws IOException {
@@ -149,36 +266,211 @@ public class App {
         return imageDir;
     }
 
-    private void generateImages(final List<Expression> population) throws IOException {
+    /**
+     * Cancels the renders of the previous population, if any are still queued or running, and starts a new generation of renders.
+     */
+    private CancellationToken startGeneration() {
+        synchronized (publishLock) {
+            generation++;
+            generationToken.cancel(String.format("Superseded by generation %d", generation));
+            generationToken = new CancellationToken();
+            return generationToken;
+        }
+    }
+
+    /**
+     * Renders previews of the population ahead of any full-size renders, cheapest first according to the cost model. Previews of the previous
+     * population are cancelled. Each preview is written to its own file, or, if montages are enabled, placed into a single montage of the whole
+     * population that is written once they have all been rendered.
+     */
+    private void generateImages(final List<Expression> population) throws IOException, InterruptedException {
+
+        final CancellationToken token = startGeneration();
+        final int width = configuration.getPreviewWidth();
+        final int height = configuration.getPreviewHeight();
+
+        // An empty population (e.g. an empty library) has no montage, rather than an empty one
+        final MontageSheet sheet = configuration.isMontageEnabled() && !population.isEmpty()
+                ? new MontageSheet(population.size(), width, height, token)
+                : null;
+
+        int submitted = 0;
+        try {
+            for (int i = 0; i < population.size(); i++) {
+                final Expression expression;
+                try {
+                    // Loaded populations are parsed from the library as they are read, so a bad saved entry fails here
+                    expression = population.get(i);
+                } catch (final RuntimeException e) {
+                    logger.error("Skipping #{}: {}", i, e.getMessage());
+                    continue;
+                }
+                logger.info("{}: {}", i, expression);
+                final double cost = warnIfCostly(i, expression, width, height).getNanos(width, height);
+                final RenderJob job = new RenderJob(generation, "#" + i, token, configuration.getPreviewDeadlineMillis());
+                if (sheet != null) {
+                    scheduler.submit(RenderPriority.INTERACTIVE, cost, new MontageTask(sheet, i, expression, job));
+                    submitted++;
+                    continue;
+                }
+                final File file = new File(getImagesDirectory(), i + "." + configuration.getImageFormat());
+                scheduler.submit(RenderPriority.INTERACTIVE, cost, new EvaluationTask(file, expression, width, height, job));
+            }
+        } finally {
+            if (sheet != null) {
+                // Members that were skipped or never submitted will never be done, so the montage is written without them
+                sheet.skip(population.size() - submitted);
+            }
+        }
+    }
+
+    private CostModel.Estimate warnIfCostly(final int expressionId, final Expression expression, final int width, final int height) {
 
-        for (int i = 0; i < population.size(); i++) {
-            logger.info("{}: {}", i, population.get(i));
-            executor.submit(new EvaluationTask(new File(getImagesDirectory(), i + "." + configuration.getImageFormat()), population.get(i),
-                    configuration.getPreviewWidth(), configuration.getPreviewHeight()));
+        final CostModel.Estimate estimate = picEvolve.estimateCost(expression);
+        final long millis = TimeUnit.NANOSECONDS.toMillis(estimate.getNanos(width, height));
+        if (millis > configuration.getCostWarningMillis()) {
+            logger.warn("#{} is expected to take about {} ms and allocate {} MB at {}x{}", expressionId, millis,
+                    estimate.getAllocatedBytes(width, height) >> 20, width, height);
+        }
+        return estimate;
+    }
+
+    /**
+     * Moves a rendered image from its temporary file into place, unless the job has been cancelled in the meantime. The check and the move are
+     * atomic with respect to {@link #startGeneration()}, so a superseded render never overwrites a newer one.
+     */
+    private void publish(final File partial, final File file, final RenderJob job) {
+        try {
+            synchronized (publishLock) {
+                if (!job.isCancelled()) {
+                    Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    return;
+                }
+            }
+            Files.deleteIfExists(partial.toPath());
+            logger.debug("Discarded {}", job);
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Error writing file: '%s'", file.getPath()), e);
         }
     }
 
     private class EvaluationTask implements Runnable {
 
-        private final EvaluatorVisitor evaluator;
         private final Expression expression;
         private final File file;
+        private final int width;
+        private final int height;
+        private final RenderJob job;
 
-        public EvaluationTask(final File file, final Expression expression, final int width, final int height) {
-            evaluator = new EvaluatorVisitor(width, height);
+        public EvaluationTask(final File file, final Expression expression, final int width, final int height, final RenderJob job) {
             this.expression = expression;
             this.file = file;
+            this.width = width;
+            this.height = height;
+            this.job = job;
         }
 
         @Override
         public void run() {
             try {
-                expression.accept(evaluator);
-                evaluator.getImage().scaled().write(file, configuration.getImageFormat());
+                pipeline.render(job, prepare(expression), width, height, configuration.getImageFormat(), file,
+                        partial -> publish(partial, file, job));
+            } catch (final RenderCancelledException e) {
+                logger.info("Cancelled {}: {}", job, e.getMessage());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (final Throwable t) {
                 logger.error("Error:", t);
                 throw t;
             }
         }
     }
+
+    /**
+     * The montage of a population being rendered, which is encoded and written once every member has been placed (or has failed)
+     */
+    private class MontageSheet {
+
+        private final Montage montage;
+        private final AtomicInteger remaining;
+        private final RenderJob job;
+        private final String formatName;
+        private final File file;
+
+        MontageSheet(final int count, final int width, final int height, final CancellationToken token) throws IOException {
+            final int columns = configuration.getMontageColumns().orElse(Montage.squareColumns(count));
+            montage = new Montage(count, columns, width, height);
+            remaining = new AtomicInteger(count);
+            job = new RenderJob(generation, "montage", token, 0);
+            // The montage is packed into 8 bits, so float formats fall back to PNG
+            final String imageFormat = configuration.getImageFormat();
+            formatName = FloatImageFormat.forName(imageFormat).isPresent() ? "png" : imageFormat;
+            file = new File(getImagesDirectory(), "montage." + formatName);
+        }
+
+        void place(final int index, final Image image) {
+            montage.place(index, image);
+        }
+
+        void done() {
+            countDown(1);
+        }
+
+        /**
+         * Leaves the slots of members that will never be rendered blank.
+         */
+        void skip(final int count) {
+            if (count > 0) {
+                countDown(count);
+            }
+        }
+
+        private void countDown(final int count) {
+            if (remaining.addAndGet(-count) > 0) {
+                return;
+            }
+            try {
+                pipeline.writePacked(job, montage.getImage(), formatName, file, partial -> publish(partial, file, job));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Renders one member of a population into its slot of the population's montage
+     */
+    private class MontageTask implements Runnable {
+
+        private final MontageSheet sheet;
+        private final int index;
+        private final Expression expression;
+        private final RenderJob job;
+
+        MontageTask(final MontageSheet sheet, final int index, final Expression expression, final RenderJob job) {
+            this.sheet = sheet;
+            this.index = index;
+            this.expression = expression;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Image image = job.render(prepare(expression), configuration.getPreviewWidth(), configuration.getPreviewHeight());
+                try {
+                    sheet.place(index, image);
+                } finally {
+                    image.release();
+                }
+            } catch (final RenderCancelledException e) {
+                logger.info("Cancelled {}: {}", job, e.getMessage());
+            } catch (final Throwable t) {
+                // The slot is left blank, so the rest of the population is still written
+                logger.error("Error:", t);
+            } finally {
+                sheet.done();
+            }
+        }
+    }
 }
@@ -1,11 +1,20 @@
 package com.github.adinsa.picevolve.cli;
 
 import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
 import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.adinsa.picevolve.CrossoverMode;
+import com.github.adinsa.picevolve.Fingerprinter;
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.expression.ExpressionLimits;
+
 /**
  * Loads 'application.properties' file and extract application-specific properties.
  *
@@ -27,6 +36,17 @@ class Configuration extends Properties {
         LOGGER.debug("Loaded properties from {}: {}", CONFIGURATION_FILE, delegate);
     }
 
+    /**
+     * Loads the configuration, then replaces the given properties.
+     *
+     * @param overrides
+     * @throws IOException
+     */
+    Configuration(final Properties overrides) throws IOException {
+        this();
+        delegate.putAll(overrides);
+    }
+
     public String getImagesDirectory() {
         return delegate.getProperty("images.dir");
     }
@@ -35,6 +55,15 @@ class Configuration extends Properties {
         return delegate.getProperty("library.file");
     }
 
+    /**
+     * Returns the number of saved expressions loaded at a time.
+     *
+     * @return
+     */
+    public int getLibraryPageSize() {
+        return Integer.parseInt(delegate.getProperty("library.page.size"));
+    }
+
     public int getPreviewWidth() {
         return Integer.parseInt(delegate.getProperty("preview.width"));
     }
@@ -43,7 +72,299 @@ class Configuration extends Properties {
         return Integer.parseInt(delegate.getProperty("preview.height"));
     }
 
+    /**
+     * Should the previews of a population be rendered into a single montage image instead of a file each?
+     *
+     * @return
+     */
+    public boolean isMontageEnabled() {
+        return Boolean.parseBoolean(delegate.getProperty("preview.montage", "false").trim());
+    }
+
+    /**
+     * Returns the number of previews in each row of a montage, if set (otherwise the montage is roughly square).
+     *
+     * @return
+     */
+    public OptionalInt getMontageColumns() {
+        final String columns = delegate.getProperty("preview.montage.columns", "").trim();
+        return columns.isEmpty() ? OptionalInt.empty() : OptionalInt.of(Integer.parseInt(columns));
+    }
+
     public String getImageFormat() {
         return delegate.getProperty("image.format");
     }
+
+    /**
+     * Returns the size and depth limits for generated expressions.
+     *
+     * @return
+     */
+    public ExpressionLimits getExpressionLimits() {
+        return new ExpressionLimits(Integer.parseInt(delegate.getProperty("expression.max.size")),
+                Integer.parseInt(delegate.getProperty("expression.max.depth")), Integer.parseInt(delegate.getProperty("expression.initial.depth.min")),
+                Integer.parseInt(delegate.getProperty("expression.initial.depth.max")));
+    }
+
+    public CrossoverMode getCrossoverMode() {
+        return CrossoverMode.fromString(delegate.getProperty("crossover.mode"));
+    }
+
+    /**
+     * Should expressions be simplified before they are evaluated or saved?
+     *
+     * @return
+     */
+    public boolean isSimplifyEnabled() {
+        return Boolean.parseBoolean(delegate.getProperty("expression.simplify"));
+    }
+
+    /**
+     * Returns the fingerprinter used to reject near-duplicate offspring, if enabled.
+     *
+     * @return
+     */
+    public Optional<Fingerprinter> getFingerprinter() {
+        if (!Boolean.parseBoolean(delegate.getProperty("fingerprint.enabled"))) {
+            return Optional.empty();
+        }
+        return Optional.of(new Fingerprinter(Integer.parseInt(delegate.getProperty("fingerprint.size")),
+                Integer.parseInt(delegate.getProperty("fingerprint.levels"))));
+    }
+
+    /**
+     * Should the render cost model be calibrated against this machine on startup?
+     *
+     * @return
+     */
+    public boolean isCostCalibrationEnabled() {
+        return Boolean.parseBoolean(delegate.getProperty("cost.calibrate"));
+    }
+
+    /**
+     * Returns the maximum estimated cost (in nanoseconds per pixel) of generated expressions, if one is configured.
+     *
+     * @return
+     */
+    public OptionalDouble getCostBudget() {
+        final String budget = delegate.getProperty("cost.budget", "").trim();
+        return budget.isEmpty() ? OptionalDouble.empty() : OptionalDouble.of(Double.parseDouble(budget));
+    }
+
+    /**
+     * Returns the estimated render time (in milliseconds) above which a warning is logged.
+     *
+     * @return
+     */
+    public long getCostWarningMillis() {
+        return Long.parseLong(delegate.getProperty("cost.warn.millis"));
+    }
+
+    /**
+     * Returns the maximum time (in milliseconds) a preview render may take, or 0 for no limit.
+     *
+     * @return
+     */
+    public long getPreviewDeadlineMillis() {
+        return Long.parseLong(delegate.getProperty("render.preview.deadline.millis"));
+    }
+
+    /**
+     * Returns the maximum time (in milliseconds) a full-size render may take, or 0 for no limit.
+     *
+     * @return
+     */
+    public long getRenderDeadlineMillis() {
+        return Long.parseLong(delegate.getProperty("render.deadline.millis"));
+    }
+
+    /**
+     * Returns the number of images rendered at once, which defaults to the number of processors.
+     *
+     * @return
+     */
+    public int getRenderThreads() {
+        return getProcessorCount("render.threads");
+    }
+
+    /**
+     * Returns the number of threads rendering the rows of a full-size image, which defaults to the number of processors.
+     *
+     * @return
+     */
+    public int getRenderRowParallelism() {
+        return getProcessorCount("render.row.parallelism");
+    }
+
+    /**
+     * Returns the maximum number of previews queued or rendering at once; further previews wait for one to complete.
+     *
+     * @return
+     */
+    public int getInteractiveRenderCapacity() {
+        return Integer.parseInt(delegate.getProperty("render.interactive.capacity"));
+    }
+
+    /**
+     * Returns the maximum number of full-size renders queued or rendering at once; further renders wait for one to complete.
+     *
+     * @return
+     */
+    public int getBatchRenderCapacity() {
+        return Integer.parseInt(delegate.getProperty("render.batch.capacity"));
+    }
+
+    /**
+     * Returns the number of images PNG (or other format) encoded at once, on threads separate from rendering.
+     *
+     * @return
+     */
+    public int getEncoderThreads() {
+        return Integer.parseInt(delegate.getProperty("render.encoder.threads"));
+    }
+
+    /**
+     * Returns the number of image files written at once, on threads separate from rendering and encoding.
+     *
+     * @return
+     */
+    public int getWriterThreads() {
+        return Integer.parseInt(delegate.getProperty("render.writer.threads"));
+    }
+
+    /**
+     * Returns the maximum number of rendered images waiting to be encoded, and of encoded images waiting to be written.
+     *
+     * @return
+     */
+    public int getPipelineCapacity() {
+        return Integer.parseInt(delegate.getProperty("render.pipeline.capacity"));
+    }
+
+    /**
+     * Returns the directory of the render cache, if caching is enabled.
+     *
+     * @return
+     */
+    public Optional<String> getRenderCacheDirectory() {
+        final String directory = delegate.getProperty("render.cache.dir", "").trim();
+        return directory.isEmpty() ? Optional.empty() : Optional.of(directory);
+    }
+
+    /**
+     * Returns the maximum total size (in megabytes) of the render cache.
+     *
+     * @return
+     */
+    public long getRenderCacheMaxMegabytes() {
+        return Long.parseLong(delegate.getProperty("render.cache.max.megabytes"));
+    }
+
+    /**
+     * Returns where the images of high resolution renders are stored: on the heap or in direct buffers.
+     *
+     * @return
+     */
+    public Image.Storage getImageStorage() {
+        return Image.Storage.valueOf(delegate.getProperty("render.image.storage").trim().toUpperCase());
+    }
+
+    /**
+     * Returns the maximum total size (in megabytes) of the direct buffers kept for reuse by new images.
+     *
+     * @return
+     */
+    public long getDirectPoolMegabytes() {
+        return Long.parseLong(delegate.getProperty("render.image.direct.pool.megabytes"));
+    }
+
+    /**
+     * Returns the smallest image (in pixels) rendered a band of rows at a time, if streaming is enabled.
+     *
+     * @return
+     */
+    public Optional<Long> getStreamingMinPixels() {
+        final String pixels = delegate.getProperty("render.streaming.min.pixels", "").trim();
+        return pixels.isEmpty() ? Optional.empty() : Optional.of(Long.parseLong(pixels));
+    }
+
+    /**
+     * Returns the number of rows evaluated at once by a streaming render.
+     *
+     * @return
+     */
+    public int getStreamingBandRows() {
+        return Integer.parseInt(delegate.getProperty("render.streaming.band.rows"));
+    }
+
+    /**
+     * Returns the smallest image (in pixels) rendered tile by tile through scratch files, if tiled rendering is enabled.
+     *
+     * @return
+     */
+    public Optional<Long> getTiledMinPixels() {
+        final String pixels = delegate.getProperty("render.tiled.min.pixels", "").trim();
+        return pixels.isEmpty() ? Optional.empty() : Optional.of(Long.parseLong(pixels));
+    }
+
+    /**
+     * Returns the width and height of the tiles of a tiled render.
+     *
+     * @return
+     */
+    public int getTileSize() {
+        return Integer.parseInt(delegate.getProperty("render.tiled.tile.size"));
+    }
+
+    /**
+     * Returns the maximum total size (in megabytes) of the tiles one tiled render holds in memory.
+     *
+     * @return
+     */
+    public long getTileCacheMegabytes() {
+        return Long.parseLong(delegate.getProperty("render.tiled.cache.megabytes"));
+    }
+
+    /**
+     * Returns the directory of the scratch files of tiled renders.
+     *
+     * @return
+     */
+    public String getTileScratchDirectory() {
+        final String directory = delegate.getProperty("render.tiled.scratch.dir", "").trim();
+        return directory.isEmpty() ? System.getProperty("java.io.tmpdir") : directory;
+    }
+
+    /**
+     * Returns the deflate level of PNGs, from 0 (fastest) to 9 (smallest).
+     *
+     * @return
+     */
+    public int getPngCompressionLevel() {
+        return Integer.parseInt(delegate.getProperty("render.png.compression.level").trim());
+    }
+
+    /**
+     * Returns the number of threads deflating chunks of PNGs in parallel (the number of processors if unset).
+     *
+     * @return
+     */
+    public int getPngThreads() {
+        return getProcessorCount("render.png.threads");
+    }
+
+    private int getProcessorCount(final String key) {
+        final String count = delegate.getProperty(key, "").trim();
+        return count.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(count);
+    }
+
+    /**
+     * Returns the session seed for reproducible runs, if one is configured.
+     *
+     * @return
+     */
+    public OptionalLong getRandomSeed() {
+        final String seed = delegate.getProperty("random.seed", "").trim();
+        return seed.isEmpty() ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(seed));
+    }
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import java.util.stream.IntStream;
 
 import com.github.adinsa.picevolve.Image;
 import com.github.adinsa.picevolve.Image.Pixel;
+import com.github.adinsa.picevolve.render.RenderContext;
 
 /**
  * An argument to an {@link Expression}
@@ -36,7 +37,7 @@ public abstract class Argument<T> {
         @Override
         public Image toImage(final int width, final int height) {
             final Image image = new Image(width, height);
-            IntStream.range(0, height).forEach(y -> IntStream.range(0, width).forEach(x -> image.set(x, y, new Pixel(getValue()))));
+            RenderContext.rows(height).forEach(y -> IntStream.range(0, width).forEach(x -> image.set(x, y, new Pixel(getValue()))));
             return image;
         }
     }
@@ -49,17 +50,34 @@ public abstract class Argument<T> {
 
         @Override
         public Image toImage(final int width, final int height) {
-            final Image image = new Image(width, height);
-            double xCur = -width / 2;
-            double yCur = height / 2;
-            for (int y = 0; y < height; y++) {
-                xCur = -width / 2;
-                for (int x = 0; x < width; x++) {
-                    image.set(x, y, new Pixel(getValue().equals(Variable.X) ? xCur++ : yCur));
+            return toImage(width, height, 0, 0, width, height);
+        }
+
+        /**
+         * Returns the given region of the image returned by {@link #toImage(int, int)}, without evaluating the rest of the image.
+         *
+         * @param width
+         * @param height
+         * @param left
+         * @param top
+         * @param regionWidth
+         * @param regionHeight
+         * @return
+         */
+        public Image toImage(final int width, final int height, final int left, final int top, final int regionWidth, final int regionHeight) {
+            final boolean isX = getValue().equals(Variable.X);
+            // Columns count up from -width / 2 and rows down from height / 2, scaled between -1 and 1 by the range of the whole image, as by
+            // Image#scaled(double, double) but without an unscaled copy
+            final double minimum = isX ? -width / 2 : height / 2 - (height - 1);
+            final double maximum = isX ? -width / 2 + (width - 1) : height / 2;
+            final Image image = new Image(regionWidth, regionHeight);
+            RenderContext.rows(regionHeight).forEach(y -> {
+                for (int x = 0; x < regionWidth; x++) {
+                    final double value = isX ? -width / 2 + left + x : height / 2 - (top + y);
+                    image.set(x, y, new Pixel(maximum - minimum == 0 ? -1 : (value - minimum) * 2 / (maximum - minimum) - 1));
                 }
-                yCur--;
-            }
-            return image.scaled(-1, 1);
+            });
+            return image;
         }
     }
 
@@ -72,7 +90,7 @@ public abstract class Argument<T> {
         @Override
         public Image toImage(final int width, final int height) {
             final Image image = new Image(width, height);
-            IntStream.range(0, height).forEach(
+            RenderContext.rows(height).forEach(
                     y -> IntStream.range(0, width).forEach(x -> image.set(x, y, new Pixel(getValue().get(0), getValue().get(1), getValue().get(2)))));
             return image;
         }
@@ -1,14 +1,21 @@
 package com.github.adinsa.picevolve.expression;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Set;
 
 import com.github.adinsa.picevolve.Image;
 import com.github.adinsa.picevolve.visitor.Visitor;
 
 /**
- * Representation of a symbolic expression that serves as the genotype of a PicEvolve image
+ * Representation of a symbolic expression that serves as the genotype of a PicEvolve image.
+ *
+ * <p>
+ * Each node caches metadata about the subtree rooted at it (size, height and the {@link Variable}s it references). The cache is updated
+ * incrementally whenever the tree's structure changes through {@link #setChildren(List)}, so queries are O(1).
+ * </p>
  *
  * @author amar
  *
@@ -16,7 +23,14 @@ import com.github.adinsa.picevolve.visitor.Visitor;
 public abstract class Expression {
 
     private Expression parent;
-    private List<Expression> children;
+    private List<Expression> children = Collections.emptyList();
+
+    private int size = 1;
+    private int height = 1;
+    private int depth = -1;
+    private Set<Variable> variables = Collections.emptySet();
+
+    private volatile NodeIndex nodeIndex;
 
     public final Expression getParent() {
         return parent;
@@ -25,15 +39,232 @@ public abstract class Expression {
     public final void setChildren(final List<Expression> children) {
         for (final Expression child : children) {
             child.parent = this;
+            child.invalidateDepth();
         }
-        this.children = children;
+        this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        refresh();
     }
 
+    /**
+     * Returns an unmodifiable view of this node's children. Use {@link #setChildren(List)} or {@link #replaceChild(Expression, Expression)} to
+     * change them.
+     *
+     * @return
+     */
     public final List<Expression> getChildren() {
-        return Optional.ofNullable(children).orElse(new ArrayList<Expression>());
+        return children;
+    }
+
+    /**
+     * Replaces the given child of this node (compared by identity) with a new node.
+     *
+     * @param child
+     * @param replacement
+     */
+    public final void replaceChild(final Expression child, final Expression replacement) {
+        final List<Expression> newChildren = new ArrayList<>(children);
+        for (int i = 0; i < newChildren.size(); i++) {
+            if (newChildren.get(i) == child) {
+                newChildren.set(i, replacement);
+                if (child.parent == this) {
+                    child.parent = null;
+                    child.invalidateDepth();
+                }
+                setChildren(newChildren);
+                return;
+            }
+        }
+        throw new IllegalArgumentException(String.format("'%s' is not a child of '%s'", child, this));
+    }
+
+    /**
+     * Returns the number of nodes in the subtree rooted at this node.
+     *
+     * @return
+     */
+    public final int getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of levels in the subtree rooted at this node (1 for a terminal).
+     *
+     * @return
+     */
+    public final int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the distance from this node to the root of its tree (0 for the root).
+     *
+     * @return
+     */
+    public final int getDepth() {
+        if (depth < 0) {
+            depth = parent == null ? 0 : parent.getDepth() + 1;
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the {@link Variable}s referenced anywhere in the subtree rooted at this node.
+     *
+     * @return
+     */
+    public Set<Variable> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Does the subtree rooted at this node reference the given {@link Variable}?
+     *
+     * @param variable
+     * @return
+     */
+    public final boolean dependsOn(final Variable variable) {
+        return getVariables().contains(variable);
+    }
+
+    /**
+     * Returns the {@link NodeIndex} of the subtree rooted at this node. The index is built on first use and cached until the subtree's structure
+     * changes.
+     *
+     * @return
+     */
+    public final NodeIndex getNodeIndex() {
+        NodeIndex index = nodeIndex;
+        if (index == null) {
+            index = new NodeIndex(this);
+            nodeIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Returns a deep copy of the subtree rooted at this node. The copy has no parent.
+     *
+     * @return
+     */
+    public final Expression deepCopy() {
+        final Expression copy = shallowCopy();
+        if (!children.isEmpty()) {
+            final List<Expression> childCopies = new ArrayList<>(children.size());
+            for (final Expression child : children) {
+                childCopies.add(child.deepCopy());
+            }
+            copy.setChildren(childCopies);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this node without any children.
+     *
+     * @return
+     */
+    protected abstract Expression shallowCopy();
+
+    /**
+     * Returns a 64-bit hash of the structure and values of the subtree rooted at this node. The hash is stable across runs, so it may be persisted.
+     * Structurally equal subtrees (see {@link #structurallyEquals(Expression)}) have equal hashes.
+     *
+     * @return
+     */
+    public final long structuralHash() {
+        long hash = mix(nodeHash());
+        for (final Expression child : children) {
+            hash = mix(hash * 31 + child.structuralHash());
+        }
+        return hash;
+    }
+
+    /**
+     * Do the subtrees rooted at this node and {@code other} have the same shape, functions and terminal values?
+     *
+     * @param other
+     * @return
+     */
+    public final boolean structurallyEquals(final Expression other) {
+        if (this == other) {
+            return true;
+        }
+        if (other == null || !nodeEquals(other) || children.size() != other.children.size()) {
+            return false;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            if (!children.get(i).structurallyEquals(other.children.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a stable hash of this node alone (ignoring its children).
+     *
+     * @return
+     */
+    protected abstract long nodeHash();
+
+    /**
+     * Is this node alone (ignoring its children) equal to {@code other}?
+     *
+     * @param other
+     * @return
+     */
+    protected abstract boolean nodeEquals(Expression other);
+
+    /**
+     * 64-bit finalizer from MurmurHash3
+     */
+    protected static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Recomputes the cached metadata of this node and of every ancestor up to the root.
+     */
+    protected final void refresh() {
+        for (Expression node = this; node != null; node = node.parent) {
+            node.updateMetadata();
+            node.nodeIndex = null;
+        }
+    }
+
+    private void updateMetadata() {
+        int newSize = 1;
+        int childHeight = 0;
+        final Set<Variable> newVariables = EnumSet.noneOf(Variable.class);
+        for (final Expression child : children) {
+            newSize += child.size;
+            childHeight = Math.max(childHeight, child.height);
+            newVariables.addAll(child.getVariables());
+        }
+        size = newSize;
+        height = childHeight + 1;
+        variables = newVariables.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(newVariables);
+    }
+
+    /**
+     * Clears the cached depth of this subtree. A node whose depth is unknown never has descendants with a known depth, since computing a depth
+     * computes it for all ancestors, so the walk stops there.
+     */
+    private void invalidateDepth() {
+        if (depth >= 0) {
+            depth = -1;
+            for (final Expression child : children) {
+                child.invalidateDepth();
+            }
+        }
     }
 
     public abstract Image interpret(final int width, final int height, final List<Argument<?>> arguments);
 
     public abstract void accept(Visitor visitor);
-}
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.github.adinsa.picevolve.expression;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Size and depth limits used to keep {@link Expression} trees (and therefore render times) from growing without bound.
+ *
+ * <p>
+ * Limits are checked in O(1) against the metadata cached on each {@link Expression}. The initial depth range controls the ramped half-and-half
+ * generation of random expressions.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public final class ExpressionLimits {
+
+    public static final ExpressionLimits DEFAULT = new ExpressionLimits(100, 10, 2, 5);
+
+    private final int maxSize;
+    private final int maxDepth;
+    private final int minInitialDepth;
+    private final int maxInitialDepth;
+
+    /**
+     * @param maxSize
+     *            maximum number of nodes in an expression
+     * @param maxDepth
+     *            maximum number of levels in an expression
+     * @param minInitialDepth
+     *            minimum number of levels in a newly generated random expression
+     * @param maxInitialDepth
+     *            maximum number of levels in a newly generated random expression
+     */
+    public ExpressionLimits(final int maxSize, final int maxDepth, final int minInitialDepth, final int maxInitialDepth) {
+        if (minInitialDepth < 2 || minInitialDepth > maxInitialDepth || maxInitialDepth > maxDepth) {
+            throw new IllegalArgumentException(String.format("Invalid initial depth range [%d, %d] for maximum depth %d", minInitialDepth,
+                    maxInitialDepth, maxDepth));
+        }
+        if (maxSize < 2) {
+            throw new IllegalArgumentException(String.format("Invalid maximum size: %d", maxSize));
+        }
+        this.maxSize = maxSize;
+        this.maxDepth = maxDepth;
+        this.minInitialDepth = minInitialDepth;
+        this.maxInitialDepth = maxInitialDepth;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMinInitialDepth() {
+        return minInitialDepth;
+    }
+
+    public int getMaxInitialDepth() {
+        return maxInitialDepth;
+    }
+
+    /**
+     * Is the given expression within both the size and depth limits?
+     *
+     * @param expression
+     * @return
+     */
+    public boolean permits(final Expression expression) {
+        return expression.getSize() <= maxSize && expression.getHeight() <= maxDepth;
+    }
+
+    /**
+     * Returns limits widened just enough to permit each of the given expressions, e.g. so that parents loaded from a library that predate the
+     * current limits can still produce offspring no larger than themselves.
+     *
+     * @param expressions
+     * @return
+     */
+    public ExpressionLimits admitting(final Expression... expressions) {
+        int size = maxSize;
+        int depth = maxDepth;
+        for (final Expression expression : expressions) {
+            size = Math.max(size, expression.getSize());
+            depth = Math.max(depth, expression.getHeight());
+        }
+        return size == maxSize && depth == maxDepth ? this : new ExpressionLimits(size, depth, minInitialDepth, maxInitialDepth);
+    }
+
+    /**
+     * Truncates the given tree in place so that it satisfies the depth limit, replacing each function node on the deepest permitted level with a
+     * terminal from {@code terminals}. Returns the tree, which may still exceed the size limit.
+     *
+     * @param root
+     * @param terminals
+     * @return
+     */
+    public Expression repair(final Expression root, final Supplier<Expression> terminals) {
+
+        if (root.getHeight() <= maxDepth) {
+            return root;
+        }
+
+        final NodeIndex index = root.getNodeIndex();
+        final List<Expression> truncated = new ArrayList<>();
+        for (int k = 0; k < index.countAtDepth(maxDepth - 1, maxDepth - 1); k++) {
+            final Expression node = index.get(index.atDepth(maxDepth - 1, maxDepth - 1, k));
+            if (!node.getChildren().isEmpty()) {
+                truncated.add(node);
+            }
+        }
+        for (final Expression node : truncated) {
+            node.getParent().replaceChild(node, terminals.get());
+        }
+        return root;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ExpressionLimits [maxSize=%d, maxDepth=%d, initialDepth=[%d, %d]]", maxSize, maxDepth, minInitialDepth,
+                maxInitialDepth);
+    }
+}
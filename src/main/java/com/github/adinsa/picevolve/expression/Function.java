@@ -5,13 +5,21 @@ import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
+import java.util.Arrays;
 import java.util.List;
 import java.util.function.BiFunction;
+import java.util.function.IntBinaryOperator;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import com.github.adinsa.picevolve.Image;
 import com.github.adinsa.picevolve.Image.Pixel;
+import com.github.adinsa.picevolve.render.RenderContext;
+import com.github.adinsa.picevolve.render.Tile;
+import com.github.adinsa.picevolve.render.TileStore;
+import com.github.adinsa.picevolve.render.TiledImage;
+import com.github.adinsa.picevolve.visitor.EvaluatorVisitor;
 import com.github.adinsa.picevolve.visitor.Visitor;
 
 /**
@@ -24,6 +32,7 @@ public abstract class Function extends Expression {
 
     private final int arity;
     private final String name;
+    private int id = -1;
 
     public Function(final int arity, final String name) {
         this.arity = arity;
@@ -38,8 +47,36 @@ public abstract class Function extends Expression {
         return name;
     }
 
+    /**
+     * Returns the function's stable ordinal id in the {@link FunctionRegistry}.
+     *
+     * @return
+     */
+    public int getId() {
+        if (id < 0) {
+            id = FunctionRegistry.getInstance().get(name)
+                    .orElseThrow(() -> new IllegalStateException(String.format("Function '%s' is not registered", name))).getId();
+        }
+        return id;
+    }
+
     public abstract Function copy();
 
+    @Override
+    protected final Expression shallowCopy() {
+        return copy();
+    }
+
+    @Override
+    protected final long nodeHash() {
+        return getId();
+    }
+
+    @Override
+    protected final boolean nodeEquals(final Expression other) {
+        return other instanceof Function && ((Function) other).getName().equals(getName());
+    }
+
     @Override
     public void accept(final Visitor visitor) {
         for (final Expression child : getChildren()) {
@@ -53,12 +90,108 @@ public abstract class Function extends Expression {
         return "(" + getName() + " " + getChildren().stream().map(child -> child.toString()).collect(Collectors.joining(" ")) + ")";
     }
 
+    /**
+     * Returns the number of pixels around a tile that {@link #interpretTile(Tile, List)} reads from the arguments.
+     *
+     * @return
+     */
+    public int getHalo() {
+        return 0;
+    }
+
+    /**
+     * Evaluates the function over images too large to hold in memory, one tile of the result at a time (in parallel if the current render allows
+     * it, see {@link RenderContext#rows(int)}).
+     *
+     * @param arguments
+     * @param store
+     * @return
+     */
+    public TiledImage interpret(final List<TiledImage> arguments, final TileStore store) {
+
+        final TiledImage first = arguments.get(0);
+        final TiledImage newImage = store.create(first.getWidth(), first.getHeight());
+        final int size = newImage.getTileSize();
+
+        RenderContext.rows(newImage.getTilesAcross() * newImage.getTilesDown()).forEach(i -> {
+            final int tileX = i % newImage.getTilesAcross();
+            final int tileY = i / newImage.getTilesAcross();
+            final Tile tile = new Tile(tileX * size, tileY * size, Math.min(size, first.getWidth() - tileX * size),
+                    Math.min(size, first.getHeight() - tileY * size), getHalo(), arguments);
+            final List<Argument<?>> regions = tile.readArguments();
+            final Image result = interpretTile(tile, regions);
+            newImage.write(tileX, tileY, result);
+            EvaluatorVisitor.release(regions, result);
+            result.release();
+        });
+        return newImage;
+    }
+
+    /**
+     * Evaluates one tile of the result, given the arguments over the tile and its halo. By default, interprets the function over the tile alone,
+     * which is only correct for functions whose pixels depend on nothing but the same pixels of their arguments.
+     *
+     * @param tile
+     * @param arguments
+     * @return
+     */
+    protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+        return interpret(tile.getWidth(), tile.getHeight(), arguments);
+    }
+
+    /**
+     * Applies a convolution to the (scaled) argument over a tile and its halo, and returns the tile.
+     */
+    private static Image convolveTile(final Tile tile, final List<Argument<?>> arguments, final UnaryOperator<BufferedImage> convolution) {
+        final Image scaled = tile.scaled(arguments, 0, 0, 1);
+        final BufferedImage region;
+        try {
+            region = convolution.apply(scaled.asBufferedImage());
+        } finally {
+            scaled.release();
+        }
+        final BufferedImage cropped = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        cropped.getRaster().setDataElements(0, 0,
+                region.getRaster().createChild(tile.getLeft(), tile.getTop(), tile.getWidth(), tile.getHeight(), 0, 0, null));
+        return Image.fromBufferedImage(cropped);
+    }
+
+    /**
+     * Returns the image scaled between 0 and 1 as a {@link BufferedImage}. The scaled copy is released, and unreachable, before the caller goes
+     * on to allocate the convolved images.
+     */
+    private static BufferedImage scaledBufferedImage(final Image image) {
+        final Image scaled = image.scaled();
+        try {
+            return scaled.asBufferedImage();
+        } finally {
+            scaled.release();
+        }
+    }
+
+    /**
+     * Combines the integer parts of the (r,g,b) values of two images, which the int-* functions scale between 128 and 255.
+     */
+    private static Image integerOperation(final int width, final int height, final Image left, final Image right, final IntBinaryOperator op) {
+        final Image newImage = new Image(width, height);
+        RenderContext.rows(height).forEach(y -> IntStream.range(0, width)
+                .forEach(x -> newImage.set(x, y, new Pixel().r(op.applyAsInt((int) left.get(x, y).r(), (int) right.get(x, y).r()))
+                        .g(op.applyAsInt((int) left.get(x, y).g(), (int) right.get(x, y).g()))
+                        .b(op.applyAsInt((int) left.get(x, y).b(), (int) right.get(x, y).b())))));
+        return newImage;
+    }
+
+    private static Pixel noisePixel(final Pixel arg1, final Pixel arg2, final Pixel arg3) {
+        return new Pixel().r(ImprovedNoise.noise(arg1.r(), arg2.r(), arg3.r())).g(ImprovedNoise.noise(arg1.g(), arg2.g(), arg3.g()))
+                .b(ImprovedNoise.noise(arg1.b(), arg2.b(), arg3.b()));
+    }
+
     protected Image pixelOperation(final int width, final int height, final List<Argument<?>> arguments,
             final java.util.function.Function<Pixel, Pixel> pixelOp) {
 
         final Image arg = arguments.get(0).toImage(width, height);
         final Image newImage = new Image(width, height);
-        IntStream.range(0, height).forEach(y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, pixelOp.apply(arg.get(x, y)))));
+        RenderContext.rows(height).forEach(y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, pixelOp.apply(arg.get(x, y)))));
 
         return newImage;
     }
@@ -69,7 +202,7 @@ public abstract class Function extends Expression {
         final Image left = arguments.get(0).toImage(width, height);
         final Image right = arguments.get(1).toImage(width, height);
         final Image newImage = new Image(width, height);
-        IntStream.range(0, height)
+        RenderContext.rows(height)
                 .forEach(y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, pixelOp.apply(left.get(x, y), right.get(x, y)))));
 
         return newImage;
@@ -349,12 +482,25 @@ public abstract class Function extends Expression {
 
             final Image left = arguments.get(0).toImage(width, height).scaled(128, 255);
             final Image right = arguments.get(1).toImage(width, height).scaled(128, 255);
-            final Image newImage = new Image(width, height);
-            IntStream.range(0, height).forEach(
-                    y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, new Pixel().r((int) left.get(x, y).r() & (int) right.get(x, y).r())
-                            .g((int) left.get(x, y).g() & (int) right.get(x, y).g()).b((int) left.get(x, y).b() & (int) right.get(x, y).b()))));
+            try {
+                return integerOperation(width, height, left, right, (l, r) -> l & r);
+            } finally {
+                left.release();
+                right.release();
+            }
+        }
 
-            return newImage;
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+
+            final Image left = tile.scaled(arguments, 0, 128, 255);
+            final Image right = tile.scaled(arguments, 1, 128, 255);
+            try {
+                return integerOperation(tile.getWidth(), tile.getHeight(), left, right, (l, r) -> l & r);
+            } finally {
+                left.release();
+                right.release();
+            }
         }
 
         @Override
@@ -374,12 +520,25 @@ public abstract class Function extends Expression {
 
             final Image left = arguments.get(0).toImage(width, height).scaled(128, 255);
             final Image right = arguments.get(1).toImage(width, height).scaled(128, 255);
-            final Image newImage = new Image(width, height);
-            IntStream.range(0, height).forEach(
-                    y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, new Pixel().r((int) left.get(x, y).r() | (int) right.get(x, y).r())
-                            .g((int) left.get(x, y).g() | (int) right.get(x, y).g()).b((int) left.get(x, y).b() | (int) right.get(x, y).b()))));
+            try {
+                return integerOperation(width, height, left, right, (l, r) -> l | r);
+            } finally {
+                left.release();
+                right.release();
+            }
+        }
 
-            return newImage;
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+
+            final Image left = tile.scaled(arguments, 0, 128, 255);
+            final Image right = tile.scaled(arguments, 1, 128, 255);
+            try {
+                return integerOperation(tile.getWidth(), tile.getHeight(), left, right, (l, r) -> l | r);
+            } finally {
+                left.release();
+                right.release();
+            }
         }
 
         @Override
@@ -399,12 +558,25 @@ public abstract class Function extends Expression {
 
             final Image left = arguments.get(0).toImage(width, height).scaled(128, 255);
             final Image right = arguments.get(1).toImage(width, height).scaled(128, 255);
-            final Image newImage = new Image(width, height);
-            IntStream.range(0, height).forEach(
-                    y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, new Pixel().r((int) left.get(x, y).r() ^ (int) right.get(x, y).r())
-                            .g((int) left.get(x, y).g() ^ (int) right.get(x, y).g()).b((int) left.get(x, y).b() ^ (int) right.get(x, y).b()))));
+            try {
+                return integerOperation(width, height, left, right, (l, r) -> l ^ r);
+            } finally {
+                left.release();
+                right.release();
+            }
+        }
 
-            return newImage;
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+
+            final Image left = tile.scaled(arguments, 0, 128, 255);
+            final Image right = tile.scaled(arguments, 1, 128, 255);
+            try {
+                return integerOperation(tile.getWidth(), tile.getHeight(), left, right, (l, r) -> l ^ r);
+            } finally {
+                left.release();
+                right.release();
+            }
         }
 
         @Override
@@ -488,14 +660,31 @@ public abstract class Function extends Expression {
             final Image arg1 = arguments.get(0).toImage(width, height).scaled();
             final Image arg2 = arguments.get(1).toImage(width, height).scaled();
             final Image arg3 = arguments.get(2).toImage(width, height).scaled();
-            final Image newImage = new Image(width, height);
+            try {
+                return noise(width, height, arg1, arg2, arg3);
+            } finally {
+                Arrays.asList(arg1, arg2, arg3).forEach(Image::release);
+            }
+        }
+
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+
+            final Image arg1 = tile.scaled(arguments, 0, 0, 1);
+            final Image arg2 = tile.scaled(arguments, 1, 0, 1);
+            final Image arg3 = tile.scaled(arguments, 2, 0, 1);
+            try {
+                return noise(tile.getWidth(), tile.getHeight(), arg1, arg2, arg3);
+            } finally {
+                Arrays.asList(arg1, arg2, arg3).forEach(Image::release);
+            }
+        }
 
-            IntStream.range(0, height).forEach(y -> IntStream.range(0, width).forEach(x -> {
-                newImage.set(x, y,
-                        new Pixel().r(ImprovedNoise.noise(arg1.get(x, y).r(), arg2.get(x, y).r(), arg3.get(x, y).r()))
-                                .g(ImprovedNoise.noise(arg1.get(x, y).g(), arg2.get(x, y).g(), arg3.get(x, y).g()))
-                                .b(ImprovedNoise.noise(arg1.get(x, y).b(), arg2.get(x, y).b(), arg3.get(x, y).b())));
-            }));
+        private static Image noise(final int width, final int height, final Image arg1, final Image arg2, final Image arg3) {
+
+            final Image newImage = new Image(width, height);
+            RenderContext.rows(height).forEach(
+                    y -> IntStream.range(0, width).forEach(x -> newImage.set(x, y, noisePixel(arg1.get(x, y), arg2.get(x, y), arg3.get(x, y)))));
             return newImage;
         }
 
@@ -521,14 +710,49 @@ public abstract class Function extends Expression {
             final Image arg5 = arguments.get(4).toImage(width, height).scaled(0, height - 1);
             final Image newImage = new Image(width, height);
 
-            IntStream.range(0, height).forEach(y -> IntStream.range(0, width).forEach(x -> {
-                final int newX = (int) Math.floor(arg4.get(x, y).r());
-                final int newY = (int) Math.floor(arg5.get(x, y).g());
-                newImage.set(newX, newY,
-                        new Pixel().r(ImprovedNoise.noise(arg1.get(x, y).r(), arg2.get(x, y).r(), arg3.get(x, y).r()))
-                                .g(ImprovedNoise.noise(arg1.get(x, y).g(), arg2.get(x, y).g(), arg3.get(x, y).g()))
-                                .b(ImprovedNoise.noise(arg1.get(x, y).b(), arg2.get(x, y).b(), arg3.get(x, y).b())));
-            }));
+            try {
+                RenderContext.sequentialRows(height).forEach(y -> IntStream.range(0, width).forEach(x -> {
+                    final int newX = (int) Math.floor(arg4.get(x, y).r());
+                    final int newY = (int) Math.floor(arg5.get(x, y).g());
+                    newImage.set(newX, newY, noisePixel(arg1.get(x, y), arg2.get(x, y), arg3.get(x, y)));
+                }));
+            } finally {
+                Arrays.asList(arg1, arg2, arg3, arg4, arg5).forEach(Image::release);
+            }
+            return newImage;
+        }
+
+        /**
+         * Each pixel is moved to a position given by the arguments, so rather than tile by tile, the result is written a pixel at a time in the
+         * same order as {@link #interpret(int, int, List)}, reading the arguments a band of rows at a time.
+         */
+        @Override
+        public TiledImage interpret(final List<TiledImage> arguments, final TileStore store) {
+
+            final int width = arguments.get(0).getWidth();
+            final int height = arguments.get(0).getHeight();
+            final TiledImage newImage = store.create(width, height);
+
+            for (int top = 0; top < height; top += newImage.getTileSize()) {
+                final Tile band = new Tile(0, top, width, Math.min(newImage.getTileSize(), height - top), 0, arguments);
+                final List<Argument<?>> regions = band.readArguments();
+                final Image arg1 = band.scaled(regions, 0, 0, 1);
+                final Image arg2 = band.scaled(regions, 1, 0, 1);
+                final Image arg3 = band.scaled(regions, 2, 0, 1);
+                final Image arg4 = band.scaled(regions, 3, 0, width - 1);
+                final Image arg5 = band.scaled(regions, 4, 0, height - 1);
+
+                try {
+                    RenderContext.sequentialRows(band.getHeight()).forEach(y -> IntStream.range(0, width).forEach(x -> {
+                        final int newX = (int) Math.floor(arg4.get(x, y).r());
+                        final int newY = (int) Math.floor(arg5.get(x, y).g());
+                        newImage.set(newX, newY, noisePixel(arg1.get(x, y), arg2.get(x, y), arg3.get(x, y)));
+                    }));
+                } finally {
+                    EvaluatorVisitor.release(regions, null);
+                    Arrays.asList(arg1, arg2, arg3, arg4, arg5).forEach(Image::release);
+                }
+            }
             return newImage;
         }
 
@@ -540,6 +764,8 @@ public abstract class Function extends Expression {
 
     public static class Blur extends Function {
 
+        private static final int KERNEL_SIZE = 400;
+
         public Blur() {
             super(1, "blur");
         }
@@ -547,33 +773,49 @@ public abstract class Function extends Expression {
         @Override
         public Image interpret(final int width, final int height, final List<Argument<?>> arguments) {
 
-            final int kernelSize = 400;
+            return Image.fromBufferedImage(blur(scaledBufferedImage(arguments.get(0).toImage(width, height))));
+        }
 
-            final float[] kernelData = new float[kernelSize];
-            for (int i = 0; i < kernelSize; i++) {
-                kernelData[i] = 1.0f / kernelSize;
-            }
+        /**
+         * The kernel reaches 9 pixels to the left and above, and 10 to the right and below.
+         */
+        @Override
+        public int getHalo() {
+            return (int) Math.sqrt(KERNEL_SIZE) / 2;
+        }
 
-            final Image arg1 = arguments.get(0).toImage(width, height).scaled();
-            final BufferedImage sourceImage = arg1.asBufferedImage();
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+            return convolveTile(tile, arguments, Blur::blur);
+        }
+
+        private static BufferedImage blur(final BufferedImage sourceImage) {
+
+            final int width = sourceImage.getWidth();
+            final int height = sourceImage.getHeight();
+
+            final float[] kernelData = new float[KERNEL_SIZE];
+            for (int i = 0; i < KERNEL_SIZE; i++) {
+                kernelData[i] = 1.0f / KERNEL_SIZE;
+            }
 
-            final BufferedImage newSource = new BufferedImage(sourceImage.getWidth() + (int) Math.sqrt(kernelSize),
-                    sourceImage.getHeight() + (int) Math.sqrt(kernelSize), BufferedImage.TYPE_4BYTE_ABGR);
+            final BufferedImage newSource = new BufferedImage(sourceImage.getWidth() + (int) Math.sqrt(KERNEL_SIZE),
+                    sourceImage.getHeight() + (int) Math.sqrt(KERNEL_SIZE), BufferedImage.TYPE_4BYTE_ABGR);
             final Graphics2D g2 = newSource.createGraphics();
-            g2.drawImage(sourceImage, (int) Math.sqrt(kernelSize) / 2, (int) Math.sqrt(kernelSize) / 2, null);
+            g2.drawImage(sourceImage, (int) Math.sqrt(KERNEL_SIZE) / 2, (int) Math.sqrt(KERNEL_SIZE) / 2, null);
             g2.dispose();
 
             final BufferedImage destImage = null;
-            final ConvolveOp op = new ConvolveOp(new Kernel((int) Math.sqrt(kernelSize), (int) Math.sqrt(kernelSize), kernelData),
+            final ConvolveOp op = new ConvolveOp(new Kernel((int) Math.sqrt(KERNEL_SIZE), (int) Math.sqrt(KERNEL_SIZE), kernelData),
                     ConvolveOp.EDGE_NO_OP, null);
             final BufferedImage blurredImage = op.filter(newSource, destImage);
 
             final BufferedImage blurredCropped = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
             final Graphics g = blurredCropped.getGraphics();
-            g.drawImage(blurredImage.getSubimage((int) Math.sqrt(kernelSize) / 2, (int) Math.sqrt(kernelSize) / 2, width, height), 0, 0, null);
+            g.drawImage(blurredImage.getSubimage((int) Math.sqrt(KERNEL_SIZE) / 2, (int) Math.sqrt(KERNEL_SIZE) / 2, width, height), 0, 0, null);
             g.dispose();
 
-            return Image.fromBufferedImage(blurredCropped);
+            return blurredCropped;
         }
 
         @Override
@@ -591,16 +833,26 @@ public abstract class Function extends Expression {
         @Override
         public Image interpret(final int width, final int height, final List<Argument<?>> arguments) {
 
-            final float[] matrix = { 1, 1, 1, 1, -7, 1, 1, 1, 1 };
+            return Image.fromBufferedImage(sharpen(scaledBufferedImage(arguments.get(0).toImage(width, height))));
+        }
 
-            final Image arg1 = arguments.get(0).toImage(width, height).scaled();
-            final BufferedImage sourceImage = arg1.asBufferedImage();
+        @Override
+        public int getHalo() {
+            return 1;
+        }
+
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+            return convolveTile(tile, arguments, Sharpen::sharpen);
+        }
+
+        private static BufferedImage sharpen(final BufferedImage sourceImage) {
+
+            final float[] matrix = { 1, 1, 1, 1, -7, 1, 1, 1, 1 };
 
             final BufferedImage destImage = null;
             final ConvolveOp op = new ConvolveOp(new Kernel(3, 3, matrix), ConvolveOp.EDGE_NO_OP, null);
-            final BufferedImage sharpenedImage = op.filter(sourceImage, destImage);
-
-            return Image.fromBufferedImage(sharpenedImage);
+            return op.filter(sourceImage, destImage);
         }
 
         @Override
@@ -618,16 +870,26 @@ public abstract class Function extends Expression {
         @Override
         public Image interpret(final int width, final int height, final List<Argument<?>> arguments) {
 
-            final float[] matrix = { -1, -1, -1, -1, 0, -1, -1, -1, 0, 1, -1, -1, 0, 1, 1, -1, 0, 1, 1, 1, 0, 1, 1, 1, 1 };
+            return Image.fromBufferedImage(emboss(scaledBufferedImage(arguments.get(0).toImage(width, height))));
+        }
 
-            final Image arg1 = arguments.get(0).toImage(width, height).scaled();
-            final BufferedImage sourceImage = arg1.asBufferedImage();
+        @Override
+        public int getHalo() {
+            return 2;
+        }
+
+        @Override
+        protected Image interpretTile(final Tile tile, final List<Argument<?>> arguments) {
+            return convolveTile(tile, arguments, Emboss::emboss);
+        }
+
+        private static BufferedImage emboss(final BufferedImage sourceImage) {
+
+            final float[] matrix = { -1, -1, -1, -1, 0, -1, -1, -1, 0, 1, -1, -1, 0, 1, 1, -1, 0, 1, 1, 1, 0, 1, 1, 1, 1 };
 
             final BufferedImage destImage = null;
             final ConvolveOp op = new ConvolveOp(new Kernel(5, 5, matrix), ConvolveOp.EDGE_NO_OP, null);
-            final BufferedImage embossedImage = op.filter(sourceImage, destImage);
-
-            return Image.fromBufferedImage(embossedImage);
+            return op.filter(sourceImage, destImage);
         }
 
         @Override
@@ -0,0 +1,161 @@
+package com.github.adinsa.picevolve.expression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Immutable registry of the {@link Function}s available to PicEvolve expressions.
+ *
+ * <p>
+ * Each function is assigned a stable ordinal id (its position in the registry), so functions can be picked at random or stored in lookup tables
+ * by index. The registry is a singleton shared by the parser, the random generators and the mutations.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public final class FunctionRegistry {
+
+    // @formatter:off
+    private static final FunctionRegistry INSTANCE = new FunctionRegistry(
+            Function.Plus::new,
+            Function.Minus::new,
+            Function.Multiply::new,
+            Function.Divide::new,
+            Function.Round::new,
+            Function.Expt::new,
+            Function.Log::new,
+            Function.Sine::new,
+            Function.Cosine::new,
+            Function.Tangent::new,
+            Function.Min::new,
+            Function.Max::new,
+            Function.Abs::new,
+            Function.Mod::new,
+            Function.IntAnd::new,
+            Function.IntOr::new,
+            Function.IntXor::new,
+            Function.FloatAnd::new,
+            Function.FloatOr::new,
+            Function.FloatXor::new,
+            Function.Noise::new,
+            Function.WarpedNoise::new,
+            Function.Blur::new,
+            Function.Sharpen::new,
+            Function.Emboss::new);
+    // @formatter:on
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+
+    @SafeVarargs
+    private FunctionRegistry(final Supplier<Function>... factories) {
+
+        final List<Entry> entryList = new ArrayList<>(factories.length);
+        final Map<String, Entry> entryMap = new LinkedHashMap<>();
+
+        for (final Supplier<Function> factory : factories) {
+            final Function prototype = factory.get();
+            if (entryMap.containsKey(prototype.getName())) {
+                throw new IllegalArgumentException(String.format("Function with name '%s' already exists", prototype.getName()));
+            }
+            final Entry entry = new Entry(entryList.size(), prototype.getName(), prototype.getArity(), factory);
+            entryList.add(entry);
+            entryMap.put(entry.getName(), entry);
+        }
+
+        entries = Collections.unmodifiableList(entryList);
+        entriesByName = Collections.unmodifiableMap(entryMap);
+    }
+
+    public static FunctionRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the number of registered functions. Valid ids are {@code 0} to {@code size() - 1}.
+     *
+     * @return
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the function registered under the given ordinal id.
+     *
+     * @param id
+     * @return
+     */
+    public Entry get(final int id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Returns the function registered under the given name, if any.
+     *
+     * @param name
+     * @return
+     */
+    public Optional<Entry> get(final String name) {
+        return Optional.ofNullable(entriesByName.get(name));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Set<String> getNames() {
+        return entriesByName.keySet();
+    }
+
+    /**
+     * A registered {@link Function}: its ordinal id, name, arity and a factory for new instances.
+     */
+    public static final class Entry {
+
+        private final int id;
+        private final String name;
+        private final int arity;
+        private final Supplier<Function> factory;
+
+        private Entry(final int id, final String name, final int arity, final Supplier<Function> factory) {
+            this.id = id;
+            this.name = name;
+            this.arity = arity;
+            this.factory = factory;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getArity() {
+            return arity;
+        }
+
+        /**
+         * Returns a new, childless instance of the function.
+         *
+         * @return
+         */
+        public Function newInstance() {
+            return factory.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d:%s/%d", id, name, arity);
+        }
+    }
+}
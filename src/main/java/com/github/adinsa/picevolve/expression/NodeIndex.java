@@ -0,0 +1,269 @@
+package com.github.adinsa.picevolve.expression;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Indexed, read-only view of the nodes of an {@link Expression} tree.
+ *
+ * <p>
+ * Nodes are stored in preorder, so the subtree rooted at index {@code i} occupies the range {@code [i, end(i))}. Nodes are additionally bucketed
+ * by subtree size and by depth, which allows uniform selection of a node (optionally restricted to a size or depth range) in O(1).
+ * </p>
+ *
+ * <p>
+ * An index is a snapshot: it is built in O(n) and goes stale as soon as the tree's structure changes. {@link Expression#getNodeIndex()} caches
+ * the index and discards it on every structural change, so callers should always obtain it from there.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public final class NodeIndex {
+
+    private final Expression[] nodes;
+    private final int[] ends;
+    private final int[] depths;
+
+    private final int[] bySize;
+    private final int[] sizeStart;
+
+    private final int[] byDepth;
+    private final int[] depthStart;
+
+    private volatile Map<Expression, Integer> positions;
+
+    NodeIndex(final Expression root) {
+
+        final int n = root.getSize();
+
+        nodes = new Expression[n];
+        ends = new int[n];
+        depths = new int[n];
+
+        fill(root, 0, 0);
+
+        bySize = new int[n];
+        sizeStart = bucket(n, n + 1, i -> ends[i] - i, bySize);
+
+        byDepth = new int[n];
+        depthStart = bucket(n, root.getHeight(), i -> depths[i], byDepth);
+    }
+
+    private int fill(final Expression node, final int pos, final int depth) {
+        nodes[pos] = node;
+        depths[pos] = depth;
+        int next = pos + 1;
+        for (final Expression child : node.getChildren()) {
+            next = fill(child, next, depth + 1);
+        }
+        ends[pos] = next;
+        return next;
+    }
+
+    /**
+     * Counting sort of the node indices by the given key. Returns the start offsets of each key's bucket, with one trailing entry so that the
+     * bucket for key {@code k} is {@code [start[k], start[k + 1])}.
+     */
+    private static int[] bucket(final int n, final int maxKey, final IntUnaryOperator key, final int[] sorted) {
+        final int[] start = new int[maxKey + 2];
+        for (int i = 0; i < n; i++) {
+            start[key.applyAsInt(i) + 1]++;
+        }
+        for (int k = 1; k < start.length; k++) {
+            start[k] += start[k - 1];
+        }
+        final int[] cursor = start.clone();
+        for (int i = 0; i < n; i++) {
+            sorted[cursor[key.applyAsInt(i)]++] = i;
+        }
+        return start;
+    }
+
+    /**
+     * Returns the number of nodes in the indexed tree.
+     *
+     * @return
+     */
+    public int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Returns the root of the indexed tree.
+     *
+     * @return
+     */
+    public Expression getRoot() {
+        return nodes[0];
+    }
+
+    /**
+     * Returns the node at the given preorder index.
+     *
+     * @param index
+     * @return
+     */
+    public Expression get(final int index) {
+        return nodes[index];
+    }
+
+    /**
+     * Returns the (exclusive) end of the preorder range occupied by the subtree rooted at the given index.
+     *
+     * @param index
+     * @return
+     */
+    public int end(final int index) {
+        return ends[index];
+    }
+
+    /**
+     * Returns the size of the subtree rooted at the given index.
+     *
+     * @param index
+     * @return
+     */
+    public int subtreeSize(final int index) {
+        return ends[index] - index;
+    }
+
+    /**
+     * Returns the depth of the node at the given index, relative to the indexed root.
+     *
+     * @param index
+     * @return
+     */
+    public int depth(final int index) {
+        return depths[index];
+    }
+
+    /**
+     * Returns the preorder index of the given node (compared by identity), or -1 if it is not part of the indexed tree.
+     *
+     * @param node
+     * @return
+     */
+    public int indexOf(final Expression node) {
+        Map<Expression, Integer> map = positions;
+        if (map == null) {
+            map = new IdentityHashMap<>(nodes.length * 2);
+            for (int i = 0; i < nodes.length; i++) {
+                map.put(nodes[i], i);
+            }
+            positions = map;
+        }
+        final Integer position = map.get(node);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Returns the number of nodes whose subtree size lies within {@code [minSize, maxSize]}.
+     *
+     * @param minSize
+     * @param maxSize
+     * @return
+     */
+    public int countWithSize(final int minSize, final int maxSize) {
+        return count(sizeStart, minSize, maxSize);
+    }
+
+    /**
+     * Returns the index of the {@code k}-th node (0 &lt;= k &lt; {@link #countWithSize(int, int)}) whose subtree size lies within
+     * {@code [minSize, maxSize]}. Drawing {@code k} uniformly gives a uniform choice among those nodes.
+     *
+     * @param minSize
+     * @param maxSize
+     * @param k
+     * @return
+     */
+    public int withSize(final int minSize, final int maxSize, final int k) {
+        return select(bySize, sizeStart, minSize, maxSize, k);
+    }
+
+    /**
+     * Returns the number of nodes whose depth lies within {@code [minDepth, maxDepth]}.
+     *
+     * @param minDepth
+     * @param maxDepth
+     * @return
+     */
+    public int countAtDepth(final int minDepth, final int maxDepth) {
+        return count(depthStart, minDepth, maxDepth);
+    }
+
+    /**
+     * Returns the index of the {@code k}-th node (0 &lt;= k &lt; {@link #countAtDepth(int, int)}) whose depth lies within
+     * {@code [minDepth, maxDepth]}.
+     *
+     * @param minDepth
+     * @param maxDepth
+     * @param k
+     * @return
+     */
+    public int atDepth(final int minDepth, final int maxDepth, final int k) {
+        return select(byDepth, depthStart, minDepth, maxDepth, k);
+    }
+
+    private static int count(final int[] start, final int min, final int max) {
+        final int lo = clampKey(start, min);
+        final int hi = clampKey(start, (int) Math.min(Integer.MAX_VALUE, (long) max + 1));
+        return Math.max(0, start[hi] - start[lo]);
+    }
+
+    private static int select(final int[] sorted, final int[] start, final int min, final int max, final int k) {
+        if (k < 0 || k >= count(start, min, max)) {
+            throw new IndexOutOfBoundsException(String.format("No node #%d in range [%d, %d]", k, min, max));
+        }
+        return sorted[start[clampKey(start, min)] + k];
+    }
+
+    private static int clampKey(final int[] start, final int key) {
+        return Math.max(0, Math.min(start.length - 1, key));
+    }
+
+    /**
+     * Replaces the node at the given index in the live tree and returns the (possibly new) root. This index is stale afterwards.
+     *
+     * @param index
+     * @param replacement
+     * @return
+     */
+    public Expression replace(final int index, final Expression replacement) {
+        if (index == 0) {
+            return replacement;
+        }
+        nodes[index].getParent().replaceChild(nodes[index], replacement);
+        return nodes[0];
+    }
+
+    /**
+     * Returns a deep copy of the indexed tree in which the subtree at the given index is replaced by {@code replacement}. The replacement must be
+     * detached from any other tree and is used as is, not copied. The indexed tree itself is left untouched.
+     *
+     * @param index
+     * @param replacement
+     * @return
+     */
+    public Expression copyWithReplacement(final int index, final Expression replacement) {
+        return copy(0, index, replacement);
+    }
+
+    private Expression copy(final int pos, final int replaced, final Expression replacement) {
+        if (pos == replaced) {
+            return replacement;
+        }
+        final Expression copy = nodes[pos].shallowCopy();
+        if (ends[pos] > pos + 1) {
+            final List<Expression> children = new ArrayList<>(nodes[pos].getChildren().size());
+            for (int child = pos + 1; child < ends[pos]; child = ends[child]) {
+                children.add(copy(child, replaced, replacement));
+            }
+            copy.setChildren(children);
+        }
+        return copy;
+    }
+}
@@ -1,6 +1,9 @@
 package com.github.adinsa.picevolve.expression;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import com.github.adinsa.picevolve.Image;
 import com.github.adinsa.picevolve.visitor.Visitor;
@@ -14,6 +17,10 @@ import com.github.adinsa.picevolve.visitor.Visitor;
  */
 public abstract class Terminal<T> extends Expression {
 
+    private static final long SCALAR_TAG = 0x5ca1a7L;
+    private static final long VECTOR_TAG = 0x7ec702L;
+    private static final long VARIABLE_TAG = 0x7a71abL;
+
     private T value;
 
     public Terminal(final T value) {
@@ -44,6 +51,21 @@ public abstract class Terminal<T> extends Expression {
             visitor.visit(this);
         }
 
+        @Override
+        protected Expression shallowCopy() {
+            return new ScalarNode(getValue());
+        }
+
+        @Override
+        protected long nodeHash() {
+            return mix(Double.doubleToLongBits(getValue()) + SCALAR_TAG);
+        }
+
+        @Override
+        protected boolean nodeEquals(final Expression other) {
+            return other instanceof ScalarNode && ((ScalarNode) other).getValue().equals(getValue());
+        }
+
         @Override
         public String toString() {
             return String.valueOf(getValue());
@@ -66,6 +88,25 @@ public abstract class Terminal<T> extends Expression {
             visitor.visit(this);
         }
 
+        @Override
+        protected Expression shallowCopy() {
+            return new VectorNode(new ArrayList<>(getValue()));
+        }
+
+        @Override
+        protected long nodeHash() {
+            long hash = VECTOR_TAG;
+            for (final Double component : getValue()) {
+                hash = mix(hash * 31 + Double.doubleToLongBits(component));
+            }
+            return hash;
+        }
+
+        @Override
+        protected boolean nodeEquals(final Expression other) {
+            return other instanceof VectorNode && ((VectorNode) other).getValue().equals(getValue());
+        }
+
         @Override
         public String toString() {
             return String.format("#%f,%f,%f", getValue().get(0), getValue().get(1), getValue().get(2));
@@ -78,6 +119,17 @@ public abstract class Terminal<T> extends Expression {
             super(var);
         }
 
+        @Override
+        public void setValue(final Variable value) {
+            super.setValue(value);
+            refresh();
+        }
+
+        @Override
+        public Set<Variable> getVariables() {
+            return Collections.singleton(getValue());
+        }
+
         @Override
         public Image interpret(final int width, final int height, final List<Argument<?>> arguments) {
             return new Argument.VariableArgument(getValue()).toImage(width, height);
@@ -88,6 +140,21 @@ public abstract class Terminal<T> extends Expression {
             visitor.visit(this);
         }
 
+        @Override
+        protected Expression shallowCopy() {
+            return new VariableNode(getValue());
+        }
+
+        @Override
+        protected long nodeHash() {
+            return mix(getValue().ordinal() + VARIABLE_TAG);
+        }
+
+        @Override
+        protected boolean nodeEquals(final Expression other) {
+            return other instanceof VariableNode && ((VariableNode) other).getValue().equals(getValue());
+        }
+
         @Override
         public String toString() {
             return getValue().name();
@@ -0,0 +1,685 @@
+package com.github.adinsa.picevolve.library;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Library of saved expressions, stored as an append-only log of records.
+ *
+ * <p>
+ * Saving an expression appends a record holding its string form. Deleting one appends a tombstone pointing at the record it removes, so neither
+ * rewrites the file. Every record carries a CRC-32 and is forced to disk before the call returns; on open, a torn or corrupt record at the end of
+ * the log (e.g. from a crash mid-write) is truncated away, while corrupt bytes in the middle of the log are quarantined and skipped.
+ * </p>
+ *
+ * <p>
+ * Live records are indexed in memory by a 64-bit hash of their string form, which makes deletion O(1). The index is also saved next to the log
+ * (as {@code <file>.idx}) on {@link #close()}, so that reopening only replays the records appended since. Once dead records make up most of the
+ * log, it is compacted: the live records are copied to a new log, which atomically replaces the old one.
+ * </p>
+ *
+ * <p>
+ * Large libraries can be read through {@link #view(Function)}, which decodes entries from a memory-mapped log only as they are used.
+ * </p>
+ *
+ * <p>
+ * A file in the old format (one expression per line) is migrated to a log on open, and kept as {@code <file>.bak}.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class Library implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Library.class);
+
+    private static final int LOG_MAGIC = 0x5045_4c47; // "PELG"
+    private static final int INDEX_MAGIC = 0x5045_4958; // "PEIX"
+    private static final int VERSION = 1;
+
+    /**
+     * Magic number, version and log id
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * Body length and CRC of the body, followed by the body: type, hash and payload
+     */
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int BODY_HEADER_SIZE = 9;
+
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+
+    private final Path path;
+    private final Path indexPath;
+    private FileChannel channel;
+    private long logId;
+
+    /**
+     * Live records by offset, which is also the order they were saved in
+     */
+    private final TreeMap<Long, Record> live = new TreeMap<>();
+
+    /**
+     * Offsets of the live records with each hash
+     */
+    private final Map<Long, List<Long>> index = new HashMap<>();
+
+    private long deadBytes;
+
+    /**
+     * Largest part of the log mapped at once by {@link #view(Function)}, which is limited to 2 GB by {@link FileChannel#map}
+     */
+    private long maxMappedBytes = Integer.MAX_VALUE;
+
+    private Library(final Path path) {
+        this.path = path;
+        indexPath = path.resolveSibling(path.getFileName() + ".idx");
+    }
+
+    /**
+     * Opens (creating or migrating if necessary) the library stored in the given file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Library open(final File file) throws IOException {
+        final Library library = new Library(file.toPath());
+        library.open();
+        return library;
+    }
+
+    private void open() throws IOException {
+
+        if (Files.notExists(path) || Files.size(path) == 0) {
+            writeLog(path, new ArrayList<>());
+        } else if (!isLog(path)) {
+            migrate();
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final ByteBuffer header = read(0, HEADER_SIZE);
+        header.getInt();
+        if (header.getInt() != VERSION) {
+            throw new LibraryException(String.format("Unsupported library version in '%s'", path));
+        }
+        logId = header.getLong();
+
+        final long replayFrom = loadIndex();
+        replay(replayFrom);
+        logger.debug("Opened {}", this);
+    }
+
+    /**
+     * Number of live expressions
+     *
+     * @return
+     */
+    public synchronized int size() {
+        return live.size();
+    }
+
+    /**
+     * Appends the expression to the library.
+     *
+     * @param expression
+     *            string form of the expression
+     * @throws IOException
+     */
+    public synchronized void save(final String expression) throws IOException {
+        final long hash = hash(expression);
+        final long offset = append(SAVE, hash, expression.getBytes(StandardCharsets.UTF_8));
+        add(offset, new Record(hash, channel.size() - offset));
+    }
+
+    /**
+     * Appends the expressions to the library in one sequential write, forcing them to disk once at the end.
+     *
+     * @param expressions
+     *            string forms of the expressions
+     * @throws IOException
+     */
+    public synchronized void saveAll(final Collection<String> expressions) throws IOException {
+        long offset = channel.size();
+        for (final String expression : expressions) {
+            final long hash = hash(expression);
+            final ByteBuffer record = record(SAVE, hash, expression.getBytes(StandardCharsets.UTF_8));
+            write(offset, record);
+            add(offset, new Record(hash, record.limit()));
+            offset += record.limit();
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Deletes every copy of the expression from the library.
+     *
+     * @param expression
+     *            string form of the expression
+     * @return the number of copies deleted
+     * @throws IOException
+     */
+    public synchronized int delete(final String expression) throws IOException {
+
+        final long hash = hash(expression);
+        final List<Long> offsets = index.get(hash);
+        if (offsets == null) {
+            return 0;
+        }
+
+        int deleted = 0;
+        for (final long offset : new ArrayList<>(offsets)) {
+            if (readExpression(offset).equals(expression)) {
+                final long tombstone = append(DELETE, hash, ByteBuffer.allocate(Long.BYTES).putLong(0, offset).array());
+                remove(offset);
+                deadBytes += channel.size() - tombstone;
+                deleted++;
+            }
+        }
+
+        if (deadBytes > MIN_COMPACTION_BYTES && deadBytes > channel.size() / 2) {
+            compact();
+        }
+        return deleted;
+    }
+
+    /**
+     * Returns up to {@code count} expressions, starting with the {@code first}-th live expression in the order they were saved. Only the
+     * requested expressions are read from disk.
+     *
+     * @param first
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    public synchronized List<String> page(final int first, final int count) throws IOException {
+        final List<String> expressions = new ArrayList<>(Math.max(0, Math.min(count, live.size() - first)));
+        final Iterator<Long> offsets = live.keySet().iterator();
+        for (int i = 0; i < first && offsets.hasNext(); i++) {
+            offsets.next();
+        }
+        while (expressions.size() < count && offsets.hasNext()) {
+            expressions.add(readExpression(offsets.next()));
+        }
+        return expressions;
+    }
+
+    /**
+     * Returns a read-only view of the live expressions, in the order they were saved, backed by a memory-mapped snapshot of the log. Nothing is
+     * read up front: each entry is decoded, checked against its CRC and passed through {@code decoder} the first time it is accessed, and the
+     * result is kept for later accesses. The view is thread-safe, and is not affected by later changes to the library. Logs over 2 GB are mapped in
+     * several segments, each of whole records.
+     *
+     * @param decoder
+     *            converts the string form of an expression, e.g. by parsing it
+     * @return
+     * @throws IOException
+     */
+    public synchronized <T> List<T> view(final Function<String, T> decoder) throws IOException {
+        final long[] offsets = live.keySet().stream().mapToLong(Long::longValue).toArray();
+        final List<Long> starts = new ArrayList<>();
+        final List<ByteBuffer> segments = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        for (final Map.Entry<Long, Record> entry : live.entrySet()) {
+            final long recordEnd = entry.getKey() + entry.getValue().length;
+            if (start < 0 || recordEnd - start > maxMappedBytes) {
+                if (start >= 0) {
+                    segments.add(channel.map(MapMode.READ_ONLY, start, end - start));
+                }
+                start = entry.getKey();
+                starts.add(start);
+            }
+            end = recordEnd;
+        }
+        if (start >= 0) {
+            segments.add(channel.map(MapMode.READ_ONLY, start, end - start));
+        }
+        return new MappedView<>(segments.toArray(new ByteBuffer[0]), starts.stream().mapToLong(Long::longValue).toArray(), offsets, decoder);
+    }
+
+    /**
+     * Sets the largest part of the log mapped at once by {@link #view(Function)}, so that views of several segments can be tested without a
+     * 2 GB log.
+     */
+    void setMaxMappedBytes(final long bytes) {
+        maxMappedBytes = bytes;
+    }
+
+    /**
+     * Returns every live expression, in the order they were saved.
+     *
+     * @return
+     * @throws IOException
+     */
+    public synchronized List<String> readAll() throws IOException {
+        return page(0, live.size());
+    }
+
+    /**
+     * Rewrites the log with only the live records, and saves the index.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+
+        final long before = channel.size();
+        final List<String> expressions = readAll();
+        final Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        final Path compacted = writeLog(temporary, expressions);
+
+        channel.close();
+        move(compacted, path);
+
+        live.clear();
+        index.clear();
+        deadBytes = 0;
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logId = read(0, HEADER_SIZE).getLong(8);
+        replay(HEADER_SIZE);
+        saveIndex();
+        logger.info("Compacted library from {} KB to {} KB", before >> 10, channel.size() >> 10);
+    }
+
+    /**
+     * Saves the index and closes the log.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            saveIndex();
+            channel.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        long size = -1;
+        try {
+            size = channel.size();
+        } catch (final IOException e) {
+            // Closed
+        }
+        return String.format("Library [path=%s, expressions=%d, size=%d KB, dead=%d KB]", path, live.size(), size >> 10, deadBytes >> 10);
+    }
+
+    /**
+     * Hash of an expression's string form (64-bit FNV-1a of its UTF-8 bytes)
+     */
+    static long hash(final String expression) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : expression.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void add(final long offset, final Record record) {
+        live.put(offset, record);
+        index.computeIfAbsent(record.hash, hash -> new ArrayList<>(1)).add(offset);
+    }
+
+    private void remove(final long offset) {
+        final Record record = live.remove(offset);
+        if (record == null) {
+            return;
+        }
+        deadBytes += record.length;
+        final List<Long> offsets = index.get(record.hash);
+        offsets.remove(offset);
+        if (offsets.isEmpty()) {
+            index.remove(record.hash);
+        }
+    }
+
+    /**
+     * Appends a record and forces it to disk, returning its offset.
+     */
+    private long append(final byte type, final long hash, final byte[] payload) throws IOException {
+        final long offset = channel.size();
+        write(offset, record(type, hash, payload));
+        channel.force(false);
+        return offset;
+    }
+
+    private void write(final long offset, final ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+    }
+
+    private static ByteBuffer record(final byte type, final long hash, final byte[] payload) {
+        final ByteBuffer body = ByteBuffer.allocate(BODY_HEADER_SIZE + payload.length);
+        body.put(type).putLong(hash).put(payload).flip();
+        final CRC32 crc = new CRC32();
+        crc.update(body.array());
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.limit());
+        record.putInt(body.limit()).putLong(crc.getValue()).put(body).flip();
+        return record;
+    }
+
+    /**
+     * Replays the records from the given offset onwards into the in-memory index.
+     *
+     * <p>
+     * A record that is incomplete or fails its CRC is treated as a torn write, and truncated away, only if no valid record follows it. Otherwise
+     * the bytes up to the next valid record are copied to a quarantine file (see {@link #quarantine(long, long)}), counted as dead, and skipped,
+     * so the records after them are still replayed.
+     * </p>
+     */
+    private void replay(final long from) throws IOException {
+
+        final long end = channel.size();
+        long offset = from;
+        while (offset < end) {
+            final ByteBuffer body = readBody(offset, end);
+            if (body == null) {
+                final long next = findRecord(offset + 1, end);
+                if (next == end) {
+                    logger.warn("Truncating {} bytes of incomplete or corrupt records at offset {} of {}", end - offset, offset, path);
+                    channel.truncate(offset);
+                    channel.force(true);
+                    break;
+                }
+                quarantine(offset, next);
+                deadBytes += next - offset;
+                offset = next;
+                continue;
+            }
+            final long length = RECORD_HEADER_SIZE + body.limit();
+            final byte type = body.get();
+            final long hash = body.getLong();
+            if (type == SAVE) {
+                add(offset, new Record(hash, length));
+            } else if (type == DELETE) {
+                remove(body.getLong());
+                deadBytes += length;
+            } else {
+                throw new LibraryException(String.format("Unknown record type %d at offset %d of '%s'", type, offset, path));
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Returns the offset of the first valid record at or after {@code from}, or {@code end} if there is none. Offsets are only checked against
+     * their CRC if their header is plausible, so the log is scanned a window at a time rather than read at every offset.
+     */
+    private long findRecord(final long from, final long end) throws IOException {
+        final int window = 1 << 16;
+        for (long start = from; start < end; start += window) {
+            final ByteBuffer bytes = read(start, (int) Math.min(window + RECORD_HEADER_SIZE, end - start));
+            for (int i = 0; i + RECORD_HEADER_SIZE < bytes.limit() && i < window; i++) {
+                final int length = bytes.getInt(i);
+                final byte type = bytes.get(i + RECORD_HEADER_SIZE);
+                if (length >= BODY_HEADER_SIZE && length <= end - start - i - RECORD_HEADER_SIZE && (type == SAVE || type == DELETE)
+                        && readBody(start + i, end) != null) {
+                    return start + i;
+                }
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Copies corrupt bytes in the middle of the log to {@code <file>.corrupt-<offset>}, so that they can be inspected (or recovered by hand)
+     * after they are compacted away.
+     */
+    private void quarantine(final long from, final long to) throws IOException {
+        final Path quarantine = path.resolveSibling(path.getFileName() + ".corrupt-" + from);
+        Files.write(quarantine, read(from, (int) (to - from)).array());
+        logger.error("Skipped {} bytes of corrupt records at offset {} of {}, copied to {}", to - from, from, path, quarantine);
+    }
+
+    /**
+     * Returns the body of the record at the offset, or null if it is incomplete or fails its CRC.
+     */
+    private ByteBuffer readBody(final long offset, final long end) throws IOException {
+        if (end - offset < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final ByteBuffer header = read(offset, RECORD_HEADER_SIZE);
+        final int length = header.getInt();
+        final long checksum = header.getLong();
+        if (length < BODY_HEADER_SIZE || length > end - offset - RECORD_HEADER_SIZE) {
+            return null;
+        }
+        final ByteBuffer body = read(offset + RECORD_HEADER_SIZE, length);
+        final CRC32 crc = new CRC32();
+        crc.update(body.array());
+        return crc.getValue() == checksum ? body : null;
+    }
+
+    private String readExpression(final long offset) throws IOException {
+        final ByteBuffer body = readBody(offset, channel.size());
+        if (body == null || body.get() != SAVE) {
+            throw new LibraryException(String.format("Corrupt record at offset %d of '%s'", offset, path));
+        }
+        return new String(body.array(), BODY_HEADER_SIZE, body.limit() - BODY_HEADER_SIZE, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(String.format("Unexpected end of '%s' at offset %d", path, position + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Loads the saved index if it matches the log, and returns the offset of the first record it does not cover.
+     */
+    private long loadIndex() throws IOException {
+
+        if (Files.notExists(indexPath)) {
+            return HEADER_SIZE;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+        try {
+            final CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, buffer.limit() - Long.BYTES);
+            if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != VERSION || buffer.getLong() != logId
+                    || buffer.getLong(buffer.limit() - Long.BYTES) != crc.getValue()) {
+                logger.warn("Ignoring stale or corrupt library index: {}", indexPath);
+                return HEADER_SIZE;
+            }
+            final long covered = buffer.getLong();
+            final long dead = buffer.getLong();
+            final int count = buffer.getInt();
+            if (covered > channel.size()) {
+                return HEADER_SIZE;
+            }
+            for (int i = 0; i < count; i++) {
+                add(buffer.getLong(), new Record(buffer.getLong(), buffer.getLong()));
+            }
+            deadBytes = dead;
+            return covered;
+        } catch (final RuntimeException e) {
+            logger.warn("Ignoring corrupt library index: " + indexPath, e);
+            live.clear();
+            index.clear();
+            return HEADER_SIZE;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(36 + live.size() * 24 + Long.BYTES);
+        buffer.putInt(INDEX_MAGIC).putInt(VERSION).putLong(logId).putLong(channel.size()).putLong(deadBytes).putInt(live.size());
+        for (final Map.Entry<Long, Record> entry : live.entrySet()) {
+            buffer.putLong(entry.getKey()).putLong(entry.getValue().hash).putLong(entry.getValue().length);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        final Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        Files.write(temporary, buffer.array());
+        move(temporary, indexPath);
+    }
+
+    /**
+     * Replaces a text library (one expression per line) with a log holding the same expressions.
+     */
+    private void migrate() throws IOException {
+        final List<String> expressions = new ArrayList<>();
+        for (final String line : Files.readAllLines(path)) {
+            if (!line.trim().isEmpty()) {
+                expressions.add(line.trim());
+            }
+        }
+        final Path backup = path.resolveSibling(path.getFileName() + ".bak");
+        Files.copy(path, backup, StandardCopyOption.REPLACE_EXISTING);
+        move(writeLog(path.resolveSibling(path.getFileName() + ".tmp"), expressions), path);
+        Files.deleteIfExists(indexPath);
+        logger.info("Migrated {} expressions from text library {} (kept as {})", expressions.size(), path, backup);
+    }
+
+    /**
+     * Writes a new log with a fresh id holding the given expressions, and forces it to disk.
+     */
+    private static Path writeLog(final Path file, final List<String> expressions) throws IOException {
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(LOG_MAGIC).putInt(VERSION).putLong(ThreadLocalRandom.current().nextLong()).flip();
+            write(out, header);
+            for (final String expression : expressions) {
+                write(out, record(SAVE, hash(expression), expression.getBytes(StandardCharsets.UTF_8)));
+            }
+            out.force(true);
+        }
+        return file;
+    }
+
+    private static void write(final FileChannel out, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static boolean isLog(final Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            return in.read(magic, 0) == Integer.BYTES && magic.getInt(0) == LOG_MAGIC;
+        }
+    }
+
+    /**
+     * Replaces the target with the source atomically, or just replaces it where the file system cannot move files atomically.
+     */
+    static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Lazily decoded entries of a memory-mapped log
+     */
+    private final class MappedView<T> extends AbstractList<T> implements RandomAccess {
+
+        /**
+         * Mapped segments of the log, and the offset in the log where each starts
+         */
+        private final ByteBuffer[] segments;
+        private final long[] starts;
+        private final long[] offsets;
+        private final Function<String, T> decoder;
+        private final AtomicReferenceArray<T> decoded;
+
+        MappedView(final ByteBuffer[] segments, final long[] starts, final long[] offsets, final Function<String, T> decoder) {
+            this.segments = segments;
+            this.starts = starts;
+            this.offsets = offsets;
+            this.decoder = decoder;
+            decoded = new AtomicReferenceArray<>(offsets.length);
+        }
+
+        @Override
+        public T get(final int i) {
+            final T cached = decoded.get(i);
+            if (cached != null) {
+                return cached;
+            }
+            decoded.compareAndSet(i, null, decoder.apply(decode(offsets[i])));
+            return decoded.get(i);
+        }
+
+        @Override
+        public int size() {
+            return offsets.length;
+        }
+
+        private String decode(final long offset) {
+            // Each access gets its own position, so entries can be decoded concurrently
+            final int found = Arrays.binarySearch(starts, offset);
+            final int segment = found >= 0 ? found : -found - 2;
+            final ByteBuffer record = segments[segment].duplicate();
+            record.position((int) (offset - starts[segment]));
+            final int length = record.getInt();
+            final long checksum = record.getLong();
+            final byte[] body = new byte[length];
+            record.get(body);
+            final CRC32 crc = new CRC32();
+            crc.update(body);
+            if (crc.getValue() != checksum || body[0] != SAVE) {
+                throw new LibraryException(String.format("Corrupt record at offset %d of '%s'", offset, path));
+            }
+            return new String(body, BODY_HEADER_SIZE, length - BODY_HEADER_SIZE, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class Record {
+
+        private final long hash;
+
+        /**
+         * Size of the record in the log, in bytes
+         */
+        private final long length;
+
+        Record(final long hash, final long length) {
+            this.hash = hash;
+            this.length = length;
+        }
+    }
+}
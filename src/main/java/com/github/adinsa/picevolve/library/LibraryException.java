@@ -0,0 +1,16 @@
+package com.github.adinsa.picevolve.library;
+
+/**
+ * Thrown when a {@link Library} file cannot be read, e.g. because it is corrupt or from an unsupported version.
+ *
+ * @author amar
+ *
+ */
+public class LibraryException extends RuntimeException {
+
+    private static final long serialVersionUID = -3786064381951736126L;
+
+    public LibraryException(final String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,300 @@
+package com.github.adinsa.picevolve.library;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.github.adinsa.picevolve.PicEvolve;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.Function;
+
+/**
+ * Bulk import and export of expressions between a {@link Library} and text files (one expression per line).
+ *
+ * <p>
+ * Both directions work the same way: every line is validated and parsed in parallel on a {@link ForkJoinPool}, duplicates are dropped by
+ * structural hash (the first copy wins, and on import, expressions already in the library count as first), and the remaining expressions are
+ * written in their original form in one sequential pass. Validation checks that every function is in the registry and has as many arguments as
+ * its arity, which {@link PicEvolve#parse(String)} alone does not, since it ignores parentheses.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class LibraryTransfer {
+
+    /**
+     * Number of rejected lines kept in a {@link Report} as examples
+     */
+    private static final int MAX_REJECTS_REPORTED = 10;
+
+    private final PicEvolve picEvolve;
+    private final ForkJoinPool pool;
+
+    public LibraryTransfer(final PicEvolve picEvolve) {
+        this(picEvolve, ForkJoinPool.commonPool());
+    }
+
+    public LibraryTransfer(final PicEvolve picEvolve, final ForkJoinPool pool) {
+        this.picEvolve = picEvolve;
+        this.pool = pool;
+    }
+
+    /**
+     * Adds the expressions in the given text files to the library, skipping invalid lines and expressions the library already holds. Rejected
+     * lines are reported by file and line number ({@code "<path>:<line>"}).
+     *
+     * @param sources
+     * @param library
+     * @return
+     * @throws IOException
+     */
+    public Report importFrom(final List<File> sources, final Library library) throws IOException {
+
+        final long start = System.nanoTime();
+        final List<Parsed> parsed = new ArrayList<>();
+        for (final File source : sources) {
+            parsed.addAll(parse(source.getPath(), Files.readAllLines(source.toPath(), StandardCharsets.UTF_8)));
+        }
+
+        final Report report = transfer(library.readAll(), parsed, start);
+        library.saveAll(report.accepted);
+        return report;
+    }
+
+    /**
+     * Writes the library's expressions to a text file, skipping invalid entries and duplicates. The file is replaced atomically
+     * where the file system allows it.
+     *
+     * @param library
+     * @param target
+     * @return
+     * @throws IOException
+     */
+    public Report exportTo(final Library library, final File target) throws IOException {
+
+        final long start = System.nanoTime();
+        final Report report = transfer(Collections.emptyList(), parse(null, library.readAll()), start);
+
+        final Path path = target.toPath().toAbsolutePath();
+        final Path temporary = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (final String expression : report.accepted) {
+                writer.append(expression).append('\n');
+            }
+        }
+        Library.move(temporary, path);
+        return report;
+    }
+
+    private Report transfer(final List<String> existing, final List<Parsed> parsed, final long start) {
+
+        final List<Parsed> known = parse(null, existing);
+
+        final Map<Long, List<Expression>> seen = new HashMap<>();
+        known.stream().filter(entry -> entry.expression != null).forEach(entry -> isDuplicate(seen, entry.expression));
+
+        final Report report = new Report();
+        for (final Parsed entry : parsed) {
+            if (entry.line.isEmpty()) {
+                continue;
+            }
+            report.read++;
+            if (entry.expression == null) {
+                report.rejected++;
+                if (report.rejects.size() < MAX_REJECTS_REPORTED) {
+                    report.rejects.add(String.format("%s: %s", entry.location, entry.error));
+                }
+            } else if (isDuplicate(seen, entry.expression)) {
+                report.duplicates++;
+            } else {
+                report.accepted.add(entry.line);
+            }
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Parses the lines of one source, numbering them from 1 within it. Lines are located as {@code "<source>:<number>"}, or as
+     * {@code "line <number>"} if the source is null.
+     */
+    private List<Parsed> parse(final String source, final List<String> lines) {
+        return pool.submit(() -> IntStream.range(0, lines.size()).parallel()
+                .mapToObj(i -> parse(source == null ? "line " + (i + 1) : source + ":" + (i + 1), lines.get(i).trim()))
+                .collect(Collectors.toList())).join();
+    }
+
+    private Parsed parse(final String location, final String line) {
+        if (line.isEmpty()) {
+            return new Parsed(location, line, null, null);
+        }
+        final Optional<String> invalid = validate(line);
+        if (invalid.isPresent()) {
+            return new Parsed(location, line, null, invalid.get());
+        }
+        try {
+            return new Parsed(location, line, picEvolve.parse(line), null);
+        } catch (final RuntimeException e) {
+            return new Parsed(location, line, null, String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Checks that the parentheses are balanced, each opens a registered function, and each function has as many arguments as its arity.
+     * Returns the problem, if any.
+     */
+    private Optional<String> validate(final String line) {
+
+        final String[] tokens = line.replace("(", " ( ").replace(")", " ) ").trim().split("\\s+");
+        // Function and number of arguments seen so far, for each open parenthesis
+        final List<Function> functions = new ArrayList<>();
+        final List<Integer> arguments = new ArrayList<>();
+        int roots = 0;
+
+        for (int i = 0; i < tokens.length; i++) {
+            final String token = tokens[i];
+            if (token.equals("(")) {
+                final String name = i + 1 < tokens.length ? tokens[++i] : "";
+                final Optional<Function> function = picEvolve.getFunction(name);
+                if (!function.isPresent()) {
+                    return Optional.of(String.format("Unknown function: '%s'", name));
+                }
+                functions.add(function.get());
+                arguments.add(0);
+                continue;
+            }
+            if (token.equals(")")) {
+                if (functions.isEmpty()) {
+                    return Optional.of("Unbalanced ')'");
+                }
+                final Function function = functions.remove(functions.size() - 1);
+                final int count = arguments.remove(arguments.size() - 1);
+                if (count != function.getArity()) {
+                    return Optional.of(String.format("'%s' takes %d arguments but was given %d", function.getName(), function.getArity(), count));
+                }
+            } else if (picEvolve.getFunction(token).isPresent()) {
+                return Optional.of(String.format("Function outside parentheses: '%s'", token));
+            }
+            // A completed function or a terminal is one argument of the enclosing function
+            if (arguments.isEmpty()) {
+                roots++;
+            } else {
+                arguments.set(arguments.size() - 1, arguments.get(arguments.size() - 1) + 1);
+            }
+        }
+        if (!functions.isEmpty()) {
+            return Optional.of("Unbalanced '('");
+        }
+        return roots == 1 ? Optional.empty() : Optional.of(String.format("Expected one expression but found %d", roots));
+    }
+
+    /**
+     * Records the expression as seen, and returns whether a structurally equal one had already been seen.
+     */
+    private static boolean isDuplicate(final Map<Long, List<Expression>> seen, final Expression expression) {
+        final List<Expression> sameHash = seen.computeIfAbsent(expression.structuralHash(), hash -> new ArrayList<>(1));
+        if (sameHash.stream().anyMatch(other -> other.structurallyEquals(expression))) {
+            return true;
+        }
+        sameHash.add(expression);
+        return false;
+    }
+
+    private static final class Parsed {
+
+        private final String location;
+        private final String line;
+        private final Expression expression;
+        private final String error;
+
+        Parsed(final String location, final String line, final Expression expression, final String error) {
+            this.location = location;
+            this.line = line;
+            this.expression = expression;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Counts and throughput of an import or export
+     */
+    public static class Report {
+
+        private final List<String> accepted = new ArrayList<>();
+        private final List<String> rejects = new ArrayList<>();
+        private int read;
+        private int duplicates;
+        private int rejected;
+        private long nanos;
+
+        /**
+         * Returns the number of non-empty lines read.
+         *
+         * @return
+         */
+        public int getRead() {
+            return read;
+        }
+
+        /**
+         * Returns the number of expressions written.
+         *
+         * @return
+         */
+        public int getWritten() {
+            return accepted.size();
+        }
+
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Returns the number of lines that failed validation or parsing.
+         *
+         * @return
+         */
+        public int getRejected() {
+            return rejected;
+        }
+
+        /**
+         * Returns the reasons the first few lines were rejected, with their files and line numbers.
+         *
+         * @return
+         */
+        public List<String> getRejects() {
+            return Collections.unmodifiableList(rejects);
+        }
+
+        /**
+         * Returns the number of lines processed per second.
+         *
+         * @return
+         */
+        public double getLinesPerSecond() {
+            return nanos == 0 ? 0 : read * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d expressions in %d ms (%.0f/s): %d duplicates, %d rejected%s", getWritten(), read,
+                    TimeUnit.NANOSECONDS.toMillis(nanos), getLinesPerSecond(), duplicates, rejected,
+                    rejects.isEmpty() ? "" : rejects.stream().collect(Collectors.joining("\n  ", "\n  ", "")));
+        }
+    }
+}
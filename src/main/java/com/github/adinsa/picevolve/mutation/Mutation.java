@@ -3,7 +3,6 @@ package com.github.adinsa.picevolve.mutation;
 import java.util.ArrayList;
 import java.util.List;
 
-import com.github.adinsa.picevolve.PicEvolve;
 import com.github.adinsa.picevolve.expression.Expression;
 import com.github.adinsa.picevolve.expression.Function;
 import com.github.adinsa.picevolve.expression.Terminal;
@@ -21,7 +20,6 @@ import com.github.adinsa.picevolve.random.RandomImpl;
 public abstract class Mutation {
 
     protected Random random;
-    protected PicEvolve picEvolve;
     protected Class<? extends Expression> nodeType;
 
     public Mutation(final Class<? extends Expression> nodeType) {
@@ -30,11 +28,39 @@ public abstract class Mutation {
 
     public Mutation(final Random random, final Class<? extends Expression> nodeType) {
         this.random = random;
-        picEvolve = new PicEvolve(random);
         this.nodeType = nodeType;
     }
 
-    public abstract void mutate(Expression node);
+    /**
+     * Applies the mutation to a node, drawing from the mutation's own {@link Random}.
+     *
+     * @param node
+     * @return the node that now stands in place of {@code node} (see {@link #mutate(Expression, Random)})
+     */
+    public Expression mutate(final Expression node) {
+        return mutate(node, random);
+    }
+
+    /**
+     * Applies the mutation to a node, drawing from the given {@link Random}. Mutations hold no other state, so one instance may be applied from
+     * many threads, each with its own stream.
+     *
+     * @param node
+     * @param random
+     * @return the node that now stands in place of {@code node}: {@code node} itself if it was changed in place, otherwise its replacement, which
+     *         becomes the new root if {@code node} was the root
+     */
+    public abstract Expression mutate(Expression node, Random random);
+
+    /**
+     * Replaces a node with another in its parent, if it has one, and returns the replacement.
+     */
+    protected static Expression replace(final Expression node, final Expression replacement) {
+        if (node.getParent() != null) {
+            node.getParent().replaceChild(node, replacement);
+        }
+        return replacement;
+    }
 
     /**
      * Replace a node with a random expression
@@ -46,10 +72,8 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
-            final List<Expression> newChildren = node.getParent().getChildren();
-            newChildren.set(newChildren.indexOf(newChildren.stream().filter(child -> child == node).findAny().get()), random.nextExpression());
-            node.getParent().setChildren(newChildren);
+        public Expression mutate(final Expression node, final Random random) {
+            return replace(node, random.nextExpression());
         }
     }
 
@@ -64,10 +88,11 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
+        public Expression mutate(final Expression node, final Random random) {
             final Terminal.ScalarNode scalarNode = (Terminal.ScalarNode) nodeType.asSubclass(Expression.class).cast(node);
             final Terminal.ScalarNode randomScalar = random.nextScalar();
             scalarNode.setValue(randomScalar.getValue());
+            return scalarNode;
         }
     }
 
@@ -82,10 +107,11 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
+        public Expression mutate(final Expression node, final Random random) {
             final Terminal.VectorNode vectorNode = (Terminal.VectorNode) nodeType.asSubclass(Expression.class).cast(node);
             final VectorNode randomVector = random.nextVector();
             vectorNode.setValue(randomVector.getValue());
+            return vectorNode;
         }
     }
 
@@ -100,7 +126,7 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
+        public Expression mutate(final Expression node, final Random random) {
 
             final Function randomFunc = random.nextFunction();
 
@@ -110,9 +136,9 @@ public abstract class Mutation {
                 children.add(random.nextTerminal());
             }
 
-            final List<Expression> newChildren = node.getParent().getChildren();
-            newChildren.set(newChildren.indexOf(newChildren.stream().filter(child -> child == node).findAny().get()), randomFunc);
+            replace(node, randomFunc);
             randomFunc.setChildren(children);
+            return randomFunc;
         }
     }
 
@@ -127,7 +153,7 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
+        public Expression mutate(final Expression node, final Random random) {
 
             final Function functionNode = (Function) nodeType.asSubclass(Expression.class).cast(node);
 
@@ -144,9 +170,9 @@ public abstract class Mutation {
                 children.add(random.nextTerminal());
             }
 
-            final List<Expression> newChildren = functionNode.getParent().getChildren();
-            newChildren.set(newChildren.indexOf(newChildren.stream().filter(child -> child == functionNode).findAny().get()), randomFunc);
+            replace(functionNode, randomFunc);
             randomFunc.setChildren(children);
+            return randomFunc;
         }
     }
 
@@ -161,14 +187,11 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
+        public Expression mutate(final Expression node, final Random random) {
 
             final Function functionNode = (Function) nodeType.asSubclass(Expression.class).cast(node);
 
-            final List<Expression> newChildren = functionNode.getParent().getChildren();
-            newChildren.set(newChildren.indexOf(newChildren.stream().filter(child -> child == functionNode).findAny().get()),
-                    random.nextChild(functionNode));
-            functionNode.getParent().setChildren(newChildren);
+            return replace(functionNode, random.nextChild(functionNode));
         }
     }
 
@@ -183,15 +206,12 @@ public abstract class Mutation {
         }
 
         @Override
-        public void mutate(final Expression node) {
+        public Expression mutate(final Expression node, final Random random) {
             Expression root = node;
             while (root.getParent() != null) {
                 root = root.getParent();
             }
-            final List<Expression> newChildren = node.getParent().getChildren();
-            newChildren.set(newChildren.indexOf(newChildren.stream().filter(child -> child == node).findAny().get()),
-                    picEvolve.parse(random.nextNode(root).toString()));
-            node.getParent().setChildren(newChildren);
+            return replace(node, random.nextNode(root).deepCopy());
         }
     }
 }
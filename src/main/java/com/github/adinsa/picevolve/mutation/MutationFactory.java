@@ -19,18 +19,30 @@ import com.github.adinsa.picevolve.mutation.Mutation.BecomeNodeCopyMutation;
 import com.github.adinsa.picevolve.mutation.Mutation.ChangeFunctionMutation;
 import com.github.adinsa.picevolve.mutation.Mutation.RandomExpressionMutation;
 import com.github.adinsa.picevolve.mutation.Mutation.ReplaceWithArgumentMutation;
+import com.github.adinsa.picevolve.random.AliasTable;
 import com.github.adinsa.picevolve.random.Random;
 
 /**
  * Defines which {@link Mutation} implementations may be applied to each type of {@link Expression} node and the relative frequencies with which they
- * are to be applied
+ * are to be applied.
+ *
+ * <p>
+ * For each node type an immutable {@link AliasTable} over the relative frequencies is precomputed, so {@link Sampler#sample(int, double)} picks a
+ * mutation in O(1) without allocating. Frequencies may be changed at runtime with {@link #setRelativeFrequency(Class, Class, int)}, which builds a
+ * new table and swaps it in atomically; concurrent samplers see either the old or the new table.
+ * </p>
+ *
+ * <p>
+ * Neither the tables nor the mutations are copied per random stream: one factory is shared by a {@link Random} and every stream split from it,
+ * each of which samples with its own draws and applies the sampled mutation with {@link Mutation#mutate(Expression, Random)}.
+ * </p>
  *
  * @author amar
  *
  */
 public class MutationFactory {
 
-    private final Map<Class<? extends Expression>, MutationFrequency[]> mutationFrequencyMap = new HashMap<>();
+    private volatile Map<Class<? extends Expression>, Sampler> samplers = Collections.emptyMap();
 
     public MutationFactory(final Random random) {
 
@@ -55,11 +67,92 @@ public class MutationFactory {
      * @return
      */
     public List<MutationFrequency> getMutationFrequencies(final Class<? extends Expression> nodeType) {
-        return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(mutationFrequencyMap.get(nodeType))));
+        return getSampler(nodeType).getFrequencies();
+    }
+
+    /**
+     * Returns the precomputed {@link Sampler} for the given type of {@link Expression} node.
+     *
+     * @param nodeType
+     * @return
+     */
+    public Sampler getSampler(final Class<? extends Expression> nodeType) {
+        final Sampler sampler = samplers.get(nodeType);
+        if (sampler == null) {
+            throw new IllegalArgumentException(String.format("No mutations defined for node type '%s'", nodeType.getSimpleName()));
+        }
+        return sampler;
+    }
+
+    /**
+     * Changes the relative frequency with which the given type of {@link Mutation} is applied to the given type of {@link Expression} node.
+     *
+     * @param nodeType
+     * @param mutationType
+     * @param relativeFrequency
+     */
+    public synchronized void setRelativeFrequency(final Class<? extends Expression> nodeType, final Class<? extends Mutation> mutationType,
+            final int relativeFrequency) {
+
+        final List<MutationFrequency> frequencies = new ArrayList<>(getMutationFrequencies(nodeType));
+        boolean found = false;
+        for (int i = 0; i < frequencies.size(); i++) {
+            if (frequencies.get(i).getMutation().getClass().equals(mutationType)) {
+                frequencies.set(i, new MutationFrequency(frequencies.get(i).getMutation(), relativeFrequency));
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException(
+                    String.format("Mutation '%s' is not defined for node type '%s'", mutationType.getSimpleName(), nodeType.getSimpleName()));
+        }
+        setMutationFrequencies(nodeType, frequencies.toArray(new MutationFrequency[frequencies.size()]));
+    }
+
+    private final synchronized void setMutationFrequencies(final Class<? extends Expression> nodeType, final MutationFrequency... frequencies) {
+        final Map<Class<? extends Expression>, Sampler> newSamplers = new HashMap<>(samplers);
+        newSamplers.put(nodeType, new Sampler(frequencies));
+        samplers = Collections.unmodifiableMap(newSamplers);
     }
 
-    private final void setMutationFrequencies(final Class<? extends Expression> nodeType, final MutationFrequency... frequencies) {
-        mutationFrequencyMap.put(nodeType, frequencies);
+    /**
+     * Immutable alias-method sampler over the {@link MutationFrequency}s of one type of {@link Expression} node
+     */
+    public static class Sampler {
+
+        private final List<MutationFrequency> frequencies;
+        private final Mutation[] mutations;
+        private final AliasTable table;
+
+        private Sampler(final MutationFrequency... frequencies) {
+            this.frequencies = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(frequencies)));
+            mutations = Arrays.stream(frequencies).map(freq -> freq.getMutation()).toArray(Mutation[]::new);
+            table = new AliasTable(Arrays.stream(frequencies).mapToInt(freq -> freq.getRelativeFrequency()).toArray());
+        }
+
+        public List<MutationFrequency> getFrequencies() {
+            return frequencies;
+        }
+
+        /**
+         * Returns the number of columns in the underlying {@link AliasTable}.
+         *
+         * @return
+         */
+        public int size() {
+            return table.size();
+        }
+
+        /**
+         * Returns the sampled {@link Mutation} for a column drawn uniformly from {@code [0, size())} and a coin drawn uniformly from {@code [0, 1)}.
+         *
+         * @param column
+         * @param coin
+         * @return
+         */
+        public Mutation sample(final int column, final double coin) {
+            return mutations[table.sample(column, coin)];
+        }
     }
 
     /**
@@ -0,0 +1,109 @@
+package com.github.adinsa.picevolve.random;
+
+import java.util.Arrays;
+
+/**
+ * Immutable lookup table for sampling from a discrete weighted distribution in O(1), built with Vose's alias method.
+ *
+ * <p>
+ * A sample takes two uniform draws: a column (an int in {@code [0, size())}) and a coin (a double in {@code [0, 1)}). The table does not own a
+ * source of randomness, so the same table can be shared by any number of threads and {@link Random} implementations.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public final class AliasTable {
+
+    private final double[] probability;
+    private final int[] alias;
+
+    public AliasTable(final int... weights) {
+
+        final int n = weights.length;
+        if (n == 0) {
+            throw new IllegalArgumentException("At least one weight is required");
+        }
+
+        long total = 0;
+        for (final int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException(String.format("Negative weight: %d", weight));
+            }
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("At least one weight must be positive");
+        }
+
+        probability = new double[n];
+        alias = new int[n];
+
+        final double[] scaled = new double[n];
+        final int[] small = new int[n];
+        final int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (double) weights[i] * n / total;
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+
+        while (smallCount > 0 && largeCount > 0) {
+            final int less = small[--smallCount];
+            final int more = large[--largeCount];
+
+            probability[less] = scaled[less];
+            alias[less] = more;
+
+            scaled[more] = scaled[more] + scaled[less] - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+
+        // Whatever remains has (up to rounding error) probability 1
+        while (largeCount > 0) {
+            final int i = large[--largeCount];
+            probability[i] = 1.0;
+            alias[i] = i;
+        }
+        while (smallCount > 0) {
+            final int i = small[--smallCount];
+            probability[i] = 1.0;
+            alias[i] = i;
+        }
+    }
+
+    /**
+     * Returns the number of outcomes (and therefore columns) in the table.
+     *
+     * @return
+     */
+    public int size() {
+        return probability.length;
+    }
+
+    /**
+     * Returns the sampled outcome for the given column (uniform in {@code [0, size())}) and coin (uniform in {@code [0, 1)}).
+     *
+     * @param column
+     * @param coin
+     * @return
+     */
+    public int sample(final int column, final double coin) {
+        return coin < probability[column] ? column : alias[column];
+    }
+
+    @Override
+    public String toString() {
+        return "AliasTable [probability=" + Arrays.toString(probability) + ", alias=" + Arrays.toString(alias) + "]";
+    }
+}
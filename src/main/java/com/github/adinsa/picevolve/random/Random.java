@@ -1,8 +1,10 @@
 package com.github.adinsa.picevolve.random;
 
-import com.github.adinsa.picevolve.PicEvolve;
+import java.util.Optional;
+
 import com.github.adinsa.picevolve.expression.Expression;
 import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.FunctionRegistry;
 import com.github.adinsa.picevolve.expression.Terminal;
 import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
 import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
@@ -39,7 +41,7 @@ public interface Random {
     public Expression nextTerminal();
 
     /**
-     * Returns a random {@link Function} from {@link PicEvolve}'s function set.
+     * Returns a new instance of a random {@link Function} from the {@link FunctionRegistry}.
      *
      * @return
      */
@@ -60,6 +62,17 @@ public interface Random {
      */
     public Expression nextNode(final Expression root);
 
+    /**
+     * Returns a random node from the provided {@link Expression} tree whose subtree size lies within {@code [minSize, maxSize]}, or an empty
+     * {@link Optional} if there is none.
+     *
+     * @param root
+     * @param minSize
+     * @param maxSize
+     * @return
+     */
+    public Optional<Expression> nextNode(final Expression root, final int minSize, final int maxSize);
+
     /**
      * Returns a random node from the provided {@link Expression} node's immediate children.
      *
@@ -85,4 +98,12 @@ public interface Random {
      * @return
      */
     public boolean shouldMutate(final Expression node, final double globalMutationFrequency);
-}
\ No newline at end of file
+
+    /**
+     * Returns a new, independent {@link Random} derived from this one. Splitting is deterministic, so streams split from a seeded source in a fixed
+     * order are reproducible, and each may be used on its own thread without contention.
+     *
+     * @return
+     */
+    public Random split();
+}
@@ -2,32 +2,88 @@ package com.github.adinsa.picevolve.random;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.Stack;
-import java.util.stream.IntStream;
+import java.util.Optional;
+import java.util.SplittableRandom;
 
-import com.github.adinsa.picevolve.PicEvolve;
 import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.ExpressionLimits;
 import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.FunctionRegistry;
+import com.github.adinsa.picevolve.expression.NodeIndex;
 import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
 import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
 import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
 import com.github.adinsa.picevolve.expression.Variable;
 import com.github.adinsa.picevolve.mutation.Mutation;
 import com.github.adinsa.picevolve.mutation.MutationFactory;
-import com.github.adinsa.picevolve.mutation.MutationFactory.MutationFrequency;
-
+import com.github.adinsa.picevolve.mutation.MutationFactory.Sampler;
+
+/**
+ * {@link Random} implementation backed by a {@link SplittableRandom}.
+ *
+ * <p>
+ * Instances are not thread-safe. Use {@link #split()} to give each thread (or each offspring) its own independent stream; splitting a seeded
+ * instance in a fixed order yields the same streams on every run.
+ * </p>
+ *
+ * @author amar
+ *
+ */
 public class RandomImpl implements Random {
 
-    private final java.util.Random random;
-    private final PicEvolve picEvolve;
+    private final SplittableRandom random;
+    private final FunctionRegistry functionRegistry = FunctionRegistry.getInstance();
+    private final MutationFactory mutationFactory;
+    private final ExpressionLimits limits;
 
     public RandomImpl() {
-        random = new java.util.Random();
-        picEvolve = new PicEvolve(this);
+        this(new SplittableRandom(), ExpressionLimits.DEFAULT, null);
+    }
+
+    /**
+     * Creates a reproducible random source: two instances with the same seed produce identical sequences.
+     *
+     * @param seed
+     */
+    public RandomImpl(final long seed) {
+        this(new SplittableRandom(seed), ExpressionLimits.DEFAULT, null);
+    }
+
+    public RandomImpl(final ExpressionLimits limits) {
+        this(new SplittableRandom(), limits, null);
+    }
+
+    public RandomImpl(final long seed, final ExpressionLimits limits) {
+        this(new SplittableRandom(seed), limits, null);
+    }
+
+    private RandomImpl(final SplittableRandom random, final ExpressionLimits limits, final MutationFactory mutationFactory) {
+        this.random = random;
+        this.limits = limits;
+        this.mutationFactory = mutationFactory == null ? new MutationFactory(this) : mutationFactory;
+    }
+
+    /**
+     * Returns a new {@link RandomImpl} with an independent stream split off from this one. The new instance has this instance's limits and
+     * shares its {@link MutationFactory} (so it also sees later changes to the mutation frequencies); splitting allocates no mutations or tables.
+     */
+    @Override
+    public RandomImpl split() {
+        return new RandomImpl(random.split(), limits, mutationFactory);
+    }
+
+    public ExpressionLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Returns the {@link MutationFactory} used by {@link #nextMutation(Class)}, e.g. to reconfigure relative mutation frequencies.
+     *
+     * @return
+     */
+    public MutationFactory getMutationFactory() {
+        return mutationFactory;
     }
 
     @Override
@@ -56,74 +112,76 @@ public class RandomImpl implements Random {
 
     @Override
     public Function nextFunction() {
-        final Iterator<String> iter = picEvolve.getFunctionNames().iterator();
-        IntStream.range(0, random.nextInt(picEvolve.getFunctionNames().size())).forEach(i -> iter.next());
-
-        return picEvolve.getFunction(iter.next()).get();
+        return functionRegistry.get(random.nextInt(functionRegistry.size())).newInstance();
     }
 
     /**
-     * Generates a random s-expression. Chooses a random function from the function set and then generates the required number of arguments, each of
-     * which may take one of the following forms:
+     * Generates a random s-expression using a ramped half-and-half scheme. A target depth is drawn uniformly from the configured initial depth range
+     * and, with equal probability, the tree is either grown "full" (every argument above the target depth is another s-expression) or "grown" (each
+     * argument is another s-expression with probability 0.25). Arguments that are not s-expressions take one of the following forms:
      *
      * <pre>
      * 1.) Random scalar value (between 0.0 and 1.0)
      * 2.) Random 3-element vector (formatted like '#0.35,0.93,0.82')
      * 3.) Random {@link Variable} (X or Y pixel coordinate)
-     * 4.) Another random s-expression
      * </pre>
      *
+     * The tree never exceeds the configured maximum size: once the node budget runs out, remaining arguments become terminals.
      */
     @Override
     public Expression nextExpression() {
 
-        final StringBuilder sb = new StringBuilder("(");
+        final int depth = limits.getMinInitialDepth() + random.nextInt(limits.getMaxInitialDepth() - limits.getMinInitialDepth() + 1);
+        final boolean full = random.nextBoolean();
+        final int[] budget = { limits.getMaxSize() - 1 };
+
+        Function root;
+        do {
+            root = nextFunction();
+        } while (root.getArity() > budget[0]);
 
-        final Function randFunc = nextFunction();
+        return nextExpression(root, depth - 1, full, budget);
+    }
 
-        sb.append(randFunc.getName()).append(" ");
+    /**
+     * Generates the arguments of {@code function}, with {@code levels} levels available below it. {@code budget} holds the number of nodes that
+     * may still be added beyond those already reserved (one per pending argument).
+     */
+    private Function nextExpression(final Function function, final int levels, final boolean full, final int[] budget) {
 
-        for (int i = 0; i < randFunc.getArity(); i++) {
+        budget[0] -= function.getArity();
 
-            final double rand = random.nextDouble();
+        final List<Expression> children = new ArrayList<>(function.getArity());
 
-            if (rand >= 0 && rand < 0.25) {
-                sb.append(random.nextDouble());
-            } else if (rand >= 0.25 && rand < 0.50) {
-                sb.append("#").append(random.nextDouble()).append(",").append(random.nextDouble()).append(",").append(random.nextDouble());
-            } else if (rand >= 0.50 && rand < 0.75) {
-                sb.append(random.nextDouble() > 0.5 ? Variable.X : Variable.Y);
-            } else {
-                sb.append(nextExpression());
+        for (int i = 0; i < function.getArity(); i++) {
+            Expression child = null;
+            if (levels > 1 && (full || random.nextDouble() < 0.25)) {
+                final Function randFunc = nextFunction();
+                if (randFunc.getArity() <= budget[0]) {
+                    child = nextExpression(randFunc, levels - 1, full, budget);
+                }
             }
-            sb.append(" ");
+            children.add(child == null ? nextTerminal() : child);
         }
-        final String exprStr = sb.toString().trim() + ")";
+        function.setChildren(children);
 
-        return picEvolve.parse(exprStr);
+        return function;
     }
 
     /**
-     * Uses reservoir sampling algorithm to choose random node from {@link Expression} tree.
+     * Picks a uniformly random node from the root's cached {@link NodeIndex}.
      */
     @Override
     public Expression nextNode(final Expression root) {
+        final NodeIndex index = root.getNodeIndex();
+        return index.get(random.nextInt(index.size()));
+    }
 
-        final Stack<Expression> exprStack = new Stack<>();
-        exprStack.push(root);
-        Expression randomNode = root;
-        int i = 1;
-        while (!exprStack.isEmpty()) {
-            final Expression curNode = exprStack.pop();
-            if (random.nextDouble() < 1.0 / i++) {
-                randomNode = curNode;
-            }
-            for (final Expression child : curNode.getChildren()) {
-                exprStack.push(child);
-            }
-        }
-
-        return randomNode;
+    @Override
+    public Optional<Expression> nextNode(final Expression root, final int minSize, final int maxSize) {
+        final NodeIndex index = root.getNodeIndex();
+        final int count = index.countWithSize(minSize, maxSize);
+        return count == 0 ? Optional.empty() : Optional.of(index.get(index.withSize(minSize, maxSize, random.nextInt(count))));
     }
 
     @Override
@@ -133,48 +191,15 @@ public class RandomImpl implements Random {
 
     @Override
     public Mutation nextMutation(final Class<? extends Expression> nodeType) {
-
-        final List<MutationFrequency> freqs = new MutationFactory(this).getMutationFrequencies(nodeType);
-
-        final int totalWeight = freqs.stream().mapToInt(freq -> freq.getRelativeFrequency()).sum();
-
-        final int rand = random.nextInt(totalWeight);
-
-        int sum = 0;
-        int i = 0;
-        while (sum <= rand) {
-            sum += freqs.get(i++).getRelativeFrequency();
-        }
-        return freqs.get(Math.max(0, i - 1)).getMutation();
+        final Sampler sampler = mutationFactory.getSampler(nodeType);
+        return sampler.sample(random.nextInt(sampler.size()), random.nextDouble());
     }
 
     /**
-     * Scales overall mutation frequency inversely in proportion to length of parent expression
+     * Scales overall mutation frequency inversely in proportion to the height of the node's subtree (read from the node's cached metadata)
      */
     @Override
     public boolean shouldMutate(final Expression expression, final double globalMutationFrequency) {
-        return random.nextDouble() < globalMutationFrequency * (1.0 / getHeight(expression));
-    }
-
-    private int getHeight(final Expression expression) {
-
-        int height = 0;
-        final Queue<Expression> currentLevel = new LinkedList<>();
-        final Queue<Expression> nextLevel = new LinkedList<>();
-
-        currentLevel.add(expression);
-
-        while (!currentLevel.isEmpty()) {
-            final Expression cur = currentLevel.remove();
-            for (final Expression child : cur.getChildren()) {
-                nextLevel.add(child);
-            }
-            if (currentLevel.isEmpty()) {
-                height++;
-                currentLevel.addAll(nextLevel);
-                nextLevel.clear();
-            }
-        }
-        return height;
+        return random.nextDouble() < globalMutationFrequency * (1.0 / expression.getHeight());
     }
-}
\ No newline at end of file
+}
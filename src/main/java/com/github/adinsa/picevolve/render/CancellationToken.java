@@ -0,0 +1,91 @@
+package com.github.adinsa.picevolve.render;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative cancellation signal for renders.
+ *
+ * <p>
+ * A token is cancelled explicitly with {@link #cancel(String)}, when its deadline (if any) passes, or when its parent is cancelled. Code doing the
+ * work calls {@link #checkpoint()} regularly (see {@link RenderContext#checkpoint()}), which throws a {@link RenderCancelledException} once the
+ * token is cancelled. Tokens are thread-safe.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class CancellationToken {
+
+    private final CancellationToken parent;
+    private final boolean hasDeadline;
+    private final long deadline;
+
+    private volatile String reason;
+
+    public CancellationToken() {
+        this(null, false, 0);
+    }
+
+    private CancellationToken(final CancellationToken parent, final boolean hasDeadline, final long deadline) {
+        this.parent = parent;
+        this.hasDeadline = hasDeadline;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns a new token that is cancelled along with this one, or on its own.
+     *
+     * @return
+     */
+    public CancellationToken child() {
+        return new CancellationToken(this, false, 0);
+    }
+
+    /**
+     * Returns a new token that is cancelled along with this one, and in addition once the given timeout (counted from now) elapses. A timeout of
+     * 0 means no deadline.
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public CancellationToken withTimeout(final long timeout, final TimeUnit unit) {
+        return timeout <= 0 ? child()
+                : new CancellationToken(this, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Cancels this token and every token derived from it. Only the first reason is kept.
+     *
+     * @param reason
+     */
+    public void cancel(final String reason) {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    public boolean isCancelled() {
+        return getReason() != null;
+    }
+
+    /**
+     * Throws a {@link RenderCancelledException} if this token has been cancelled.
+     */
+    public void checkpoint() {
+        final String cancelled = getReason();
+        if (cancelled != null) {
+            throw new RenderCancelledException(cancelled);
+        }
+    }
+
+    private String getReason() {
+        if (reason != null) {
+            return reason;
+        }
+        if (hasDeadline && System.nanoTime() - deadline > 0) {
+            return "Deadline exceeded";
+        }
+        return parent == null ? null : parent.getReason();
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.adinsa.picevolve.render;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+import com.github.adinsa.picevolve.Image;
+
+/**
+ * A contact sheet of a population: one image with a slot for each member, {@code columns} to a row, each labelled underneath with the member's
+ * number ("#0", "#1", ...).
+ *
+ * <p>
+ * Members are packed straight into their slots of the sheet's raster by {@link #place(int, Image)}, so they can be placed from the threads
+ * rendering them, in any order and at the same time, and the whole population is then encoded once as a single file. Slots that are never
+ * placed are left blank.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class Montage {
+
+    private static final int GAP = 4;
+    private static final int LABEL_HEIGHT = 16;
+    private static final Color BACKGROUND = new Color(32, 32, 32);
+    private static final Color LABEL = new Color(224, 224, 224);
+
+    private final int count;
+    private final int columns;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final BufferedImage sheet;
+
+    /**
+     * Creates a sheet with blank, labelled slots.
+     *
+     * @param count
+     *            number of members
+     * @param columns
+     *            number of slots in each row of the sheet
+     * @param tileWidth
+     *            width of each member's image
+     * @param tileHeight
+     *            height of each member's image
+     */
+    public Montage(final int count, final int columns, final int tileWidth, final int tileHeight) {
+        if (count <= 0 || columns <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid montage: %d images in %d columns", count, columns));
+        }
+        this.count = count;
+        this.columns = columns;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+
+        final int rows = (count + columns - 1) / columns;
+        final int width = GAP + Math.min(count, columns) * (tileWidth + GAP);
+        final int height = GAP + rows * (tileHeight + LABEL_HEIGHT + GAP);
+        sheet = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+
+        final Graphics2D graphics = sheet.createGraphics();
+        try {
+            graphics.setColor(BACKGROUND);
+            graphics.fillRect(0, 0, width, height);
+            graphics.setColor(LABEL);
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, LABEL_HEIGHT - 4));
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            final FontMetrics metrics = graphics.getFontMetrics();
+            for (int i = 0; i < count; i++) {
+                final String label = "#" + i;
+                final int x = getLeft(i) + (tileWidth - metrics.stringWidth(label)) / 2;
+                final int y = getTop(i) + tileHeight + (LABEL_HEIGHT + metrics.getAscent() - metrics.getDescent()) / 2;
+                graphics.drawString(label, x, y);
+            }
+        } finally {
+            graphics.dispose();
+        }
+    }
+
+    /**
+     * Returns the number of columns for a roughly square sheet of {@code count} images.
+     *
+     * @param count
+     * @return
+     */
+    public static int squareColumns(final int count) {
+        return Math.max(1, (int) Math.ceil(Math.sqrt(count)));
+    }
+
+    /**
+     * Packs a member's image, normalized between 0 and 1, into its slot.
+     *
+     * @param index
+     * @param image
+     */
+    public void place(final int index, final Image image) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, count));
+        }
+        if (image.getWidth() != tileWidth || image.getHeight() != tileHeight) {
+            throw new IllegalArgumentException(String.format("Expected a %dx%d image but was given %dx%d", tileWidth, tileHeight,
+                    image.getWidth(), image.getHeight()));
+        }
+        image.packInto(sheet, getLeft(index), getTop(index));
+    }
+
+    /**
+     * Returns the left of a member's slot.
+     *
+     * @param index
+     * @return
+     */
+    public int getLeft(final int index) {
+        return GAP + index % columns * (tileWidth + GAP);
+    }
+
+    /**
+     * Returns the top of a member's slot.
+     *
+     * @param index
+     * @return
+     */
+    public int getTop(final int index) {
+        return GAP + index / columns * (tileHeight + LABEL_HEIGHT + GAP);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the sheet, as placed so far.
+     *
+     * @return
+     */
+    public BufferedImage getImage() {
+        return sheet;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Montage [%d images of %dx%d in %d columns, %dx%d]", count, tileWidth, tileHeight, columns, sheet.getWidth(),
+                sheet.getHeight());
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.adinsa.picevolve.render;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes PNGs with a {@link PngStreamWriter}, filtering and deflating chunks of each image in parallel on an executor.
+ *
+ * <p>
+ * The executor should be a pool of its own: the thread encoding an image waits for its chunks, so running them on the encoding thread's own
+ * (bounded) pool could leave none of its threads free to compress them.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class PngEncoder {
+
+    private final int level;
+    private final Executor executor;
+
+    /**
+     * @param level
+     *            deflate level, from 0 (no compression, fastest) to 9 (smallest), or -1 for the default (6)
+     * @param executor
+     *            executor that filters and deflates chunks of rows, or null to encode on the calling thread
+     */
+    public PngEncoder(final int level, final Executor executor) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid compression level: %d", level));
+        }
+        this.level = level;
+        this.executor = executor;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Writes the PNG header and returns a writer for the image's rows.
+     *
+     * @param out
+     * @param width
+     * @param height
+     * @return
+     * @throws IOException
+     */
+    public PngStreamWriter open(final OutputStream out, final int width, final int height) throws IOException {
+        return new PngStreamWriter(out, width, height, level, executor);
+    }
+
+    /**
+     * Encodes an image as an RGB PNG, dropping any alpha channel.
+     *
+     * @param image
+     * @return
+     * @throws IOException
+     */
+    public byte[] encode(final BufferedImage image) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (PngStreamWriter writer = open(bytes, image.getWidth(), image.getHeight())) {
+            writer.writeRows(toAbgr(image));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static BufferedImage toAbgr(final BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+            return image;
+        }
+        final BufferedImage abgr = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
+        final Graphics2D graphics = abgr.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return abgr;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PngEncoder [level=%d, %s]", level, executor == null ? "sequential" : "parallel");
+    }
+}
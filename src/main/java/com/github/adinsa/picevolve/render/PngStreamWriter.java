@@ -0,0 +1,462 @@
+package com.github.adinsa.picevolve.render;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8-bit RGB PNG one row at a time, so that only a few chunks of rows are held in memory.
+ *
+ * <p>
+ * Each row is filtered with whichever of the five PNG filters gives the smallest sum of absolute differences (the heuristic libpng uses), then
+ * deflated into a stream of IDAT chunks. As in pigz, the rows are split into chunks of about 128 KB that are filtered and deflated independently,
+ * on an {@link Executor} if one is given, and joined into a single zlib stream: every chunk but the last ends with a sync flush, each is primed
+ * with the 32 KB of data before it as a preset dictionary (so little compression is lost), and their checksums are combined. The output is the
+ * same whichever executor is used.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class PngStreamWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int MAX_CHUNK_SIZE = 1 << 16;
+
+    private static final int COMPRESS_CHUNK_BYTES = 1 << 17;
+    private static final int DICTIONARY_BYTES = 1 << 15;
+    private static final int MAX_PENDING_CHUNKS = 16;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private final DataOutputStream out;
+    private final ChunkOutputStream idat;
+    private final int height;
+    private final int rowBytes;
+    private final int level;
+    private final Executor executor;
+
+    private final int chunkRows;
+    /**
+     * Number of rows kept from before each chunk: those filtered into its dictionary, and the row before them
+     */
+    private final int contextRows;
+    private byte[] context = new byte[0];
+    private final byte[] buffered;
+    private int bufferedRows;
+    private int rows;
+
+    private final Deque<Future<Chunk>> pending = new ArrayDeque<>();
+    private long adler = 1;
+
+    /**
+     * Writes the PNG header, for an image deflated at the default level on the current thread.
+     *
+     * @param out
+     * @param width
+     * @param height
+     * @throws IOException
+     */
+    public PngStreamWriter(final OutputStream out, final int width, final int height) throws IOException {
+        this(out, width, height, Deflater.DEFAULT_COMPRESSION, null);
+    }
+
+    /**
+     * Writes the PNG header.
+     *
+     * @param out
+     * @param width
+     * @param height
+     * @param level
+     *            deflate level, from 0 (no compression) to 9 (smallest), or -1 for the default (6)
+     * @param executor
+     *            executor that filters and deflates the chunks of rows, or null to do so on the current thread
+     * @throws IOException
+     */
+    public PngStreamWriter(final OutputStream out, final int width, final int height, final int level, final Executor executor)
+            throws IOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid compression level: %d", level));
+        }
+        this.out = new DataOutputStream(out);
+        this.height = height;
+        this.level = level;
+        this.executor = executor;
+
+        this.out.write(SIGNATURE);
+        final byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = 2; // color type: RGB
+        writeChunk(this.out, "IHDR", header, header.length);
+
+        rowBytes = width * BYTES_PER_PIXEL;
+        chunkRows = Math.max(1, COMPRESS_CHUNK_BYTES / (rowBytes + 1));
+        contextRows = (DICTIONARY_BYTES + rowBytes) / (rowBytes + 1) + 1;
+        buffered = new byte[chunkRows * rowBytes];
+
+        idat = new ChunkOutputStream(this.out);
+        idat.write(zlibHeader(level));
+    }
+
+    /**
+     * Writes the next row, given as {@code width} (r,g,b) byte triples.
+     *
+     * @param row
+     * @throws IOException
+     */
+    public void writeRow(final byte[] row) throws IOException {
+        if (rows == height) {
+            throw new IllegalStateException("All rows have been written");
+        }
+        if (row.length != rowBytes) {
+            throw new IllegalArgumentException(String.format("Expected a row of %d bytes but was given %d", rowBytes, row.length));
+        }
+        System.arraycopy(row, 0, buffered, bufferedRows * rowBytes, rowBytes);
+        bufferedRows++;
+        rows++;
+        // The last chunk is left for close(), which finishes the stream
+        if (bufferedRows == chunkRows && rows < height) {
+            submit(false);
+        }
+    }
+
+    /**
+     * Writes the next {@code image.getHeight()} rows from an image of type {@link BufferedImage#TYPE_4BYTE_ABGR}, dropping the alpha channel.
+     *
+     * @param image
+     * @throws IOException
+     */
+    public void writeRows(final BufferedImage image) throws IOException {
+        final byte[] abgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        final byte[] row = new byte[rowBytes];
+        for (int y = 0, i = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < row.length; x += BYTES_PER_PIXEL, i += 4) {
+                row[x] = abgr[i + 3];
+                row[x + 1] = abgr[i + 2];
+                row[x + 2] = abgr[i + 1];
+            }
+            writeRow(row);
+        }
+    }
+
+    /**
+     * Finishes the compressed data and writes the PNG trailer. Does not close the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (rows != height) {
+            throw new IllegalStateException(String.format("Only %d of %d rows were written", rows, height));
+        }
+        submit(true);
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        final byte[] checksum = new byte[4];
+        writeInt(checksum, 0, (int) adler);
+        idat.write(checksum);
+        // Writes out the last, partial IDAT chunk
+        idat.flush();
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /**
+     * Hands the buffered rows to a task, along with the rows before them, then writes out finished chunks while too many are pending.
+     */
+    private void submit(final boolean last) throws IOException {
+        final byte[] chunk = Arrays.copyOf(buffered, bufferedRows * rowBytes);
+        final byte[] chunkContext = context;
+        final FutureTask<Chunk> task = new FutureTask<>(() -> compress(chunkContext, chunk, last));
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+        pending.add(task);
+
+        final int keep = Math.min(contextRows * rowBytes, chunkContext.length + chunk.length);
+        context = new byte[keep];
+        final int fromChunk = Math.min(keep, chunk.length);
+        System.arraycopy(chunkContext, chunkContext.length - (keep - fromChunk), context, 0, keep - fromChunk);
+        System.arraycopy(chunk, chunk.length - fromChunk, context, keep - fromChunk, fromChunk);
+        bufferedRows = 0;
+
+        while (pending.size() > MAX_PENDING_CHUNKS) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        final Chunk chunk;
+        try {
+            chunk = pending.remove().get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing PNG");
+        } catch (final ExecutionException e) {
+            throw new IOException("Error compressing PNG", e.getCause());
+        }
+        idat.write(chunk.deflated);
+        adler = combineAdler32(adler, chunk.adler, chunk.length);
+    }
+
+    /**
+     * Filters and deflates a chunk of rows. The rows of its context are filtered again, to give the same data as the end of the previous chunk
+     * for the dictionary.
+     */
+    private Chunk compress(final byte[] context, final byte[] chunk, final boolean last) {
+
+        final byte[] raw = new byte[context.length + chunk.length];
+        System.arraycopy(context, 0, raw, 0, context.length);
+        System.arraycopy(chunk, 0, raw, context.length, chunk.length);
+        final int contextCount = context.length / rowBytes;
+        final int rowCount = raw.length / rowBytes;
+
+        // A full context starts with the row before the dictionary, which is only used to filter the row after it. Otherwise the context
+        // starts at the top of the image, whose first row is filtered against a row of zeros.
+        final int first = contextCount == contextRows ? 1 : 0;
+        final byte[] filtered = new byte[(rowCount - first) * (rowBytes + 1)];
+        final byte[][] candidates = new byte[FILTER_PAETH + 1][rowBytes + 1];
+        final byte[] zeros = new byte[rowBytes];
+        for (int row = first; row < rowCount; row++) {
+            final byte[] best = row == 0 ? filter(raw, 0, zeros, 0, candidates)
+                    : filter(raw, row * rowBytes, raw, (row - 1) * rowBytes, candidates);
+            System.arraycopy(best, 0, filtered, (row - first) * (rowBytes + 1), rowBytes + 1);
+        }
+
+        final int offset = (contextCount - first) * (rowBytes + 1);
+        final int length = filtered.length - offset;
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            if (offset > 0) {
+                final int dictionary = Math.min(DICTIONARY_BYTES, offset);
+                deflater.setDictionary(filtered, offset - dictionary, dictionary);
+            }
+            deflater.setInput(filtered, offset, length);
+
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflated.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                // A sync flush ends the chunk on a byte boundary, so the next chunk's blocks can follow it directly
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    deflated.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+
+            final Adler32 checksum = new Adler32();
+            checksum.update(filtered, offset, length);
+            return new Chunk(deflated.toByteArray(), checksum.getValue(), length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the filter type byte followed by the row filtered with the filter that minimizes the sum of absolute (signed) values.
+     */
+    private byte[] filter(final byte[] row, final int offset, final byte[] previous, final int previousOffset, final byte[][] candidates) {
+        long best = Long.MAX_VALUE;
+        byte[] chosen = null;
+        for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+            final byte[] candidate = candidates[type];
+            candidate[0] = (byte) type;
+            long sum = 0;
+            for (int i = 0; i < rowBytes; i++) {
+                final int a = i >= BYTES_PER_PIXEL ? row[offset + i - BYTES_PER_PIXEL] & 0xff : 0;
+                final int b = previous[previousOffset + i] & 0xff;
+                final int c = i >= BYTES_PER_PIXEL ? previous[previousOffset + i - BYTES_PER_PIXEL] & 0xff : 0;
+                final int x = row[offset + i] & 0xff;
+                final int value;
+                switch (type) {
+                case FILTER_SUB:
+                    value = x - a;
+                    break;
+                case FILTER_UP:
+                    value = x - b;
+                    break;
+                case FILTER_AVERAGE:
+                    value = x - (a + b >>> 1);
+                    break;
+                case FILTER_PAETH:
+                    value = x - paeth(a, b, c);
+                    break;
+                default:
+                    value = x;
+                    break;
+                }
+                candidate[i + 1] = (byte) value;
+                sum += Math.abs((byte) value);
+            }
+            if (sum < best) {
+                best = sum;
+                chosen = candidate;
+            }
+        }
+        return chosen;
+    }
+
+    private static int paeth(final int a, final int b, final int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Returns the zlib header for deflate with a 32 KB window, with the level hint zlib gives for {@code level}.
+     */
+    private static byte[] zlibHeader(final int level) {
+        final int method = 0x78;
+        final int hint;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            hint = 2;
+        } else if (level < 2) {
+            hint = 0;
+        } else {
+            hint = level < 6 ? 1 : 3;
+        }
+        final int flags = hint << 6;
+        return new byte[] { (byte) method, (byte) (flags + 31 - (method << 8 | flags) % 31) };
+    }
+
+    /**
+     * Returns the Adler-32 checksum of two pieces of data one after the other, given the checksum of each and the length of the second (as
+     * zlib's {@code adler32_combine}).
+     */
+    static long combineAdler32(final long first, final long second, final long secondLength) {
+        final long base = 65521;
+        final long remainder = secondLength % base;
+        long sum1 = first & 0xffff;
+        long sum2 = remainder * sum1 % base;
+        sum1 += (second & 0xffff) + base - 1;
+        sum2 += (first >>> 16 & 0xffff) + (second >>> 16 & 0xffff) + base - remainder;
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum1 >= base) {
+            sum1 -= base;
+        }
+        if (sum2 >= base << 1) {
+            sum2 -= base << 1;
+        }
+        if (sum2 >= base) {
+            sum2 -= base;
+        }
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    static void writeChunk(final DataOutputStream out, final String type, final byte[] data, final int length) throws IOException {
+        final byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * A deflated chunk of rows, with the checksum and length of its filtered rows
+     */
+    private static final class Chunk {
+
+        private final byte[] deflated;
+        private final long adler;
+        private final long length;
+
+        Chunk(final byte[] deflated, final long adler, final long length) {
+            this.deflated = deflated;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Splits the compressed data into IDAT chunks
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+        private int size;
+
+        ChunkOutputStream(final DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            int written = 0;
+            while (written < length) {
+                final int n = Math.min(length - written, buffer.length - size);
+                System.arraycopy(bytes, offset + written, buffer, size, n);
+                size += n;
+                written += n;
+                if (size == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (size > 0) {
+                writeChunk(out, "IDAT", buffer, size);
+                size = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
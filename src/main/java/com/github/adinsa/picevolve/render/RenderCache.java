@@ -0,0 +1,280 @@
+package com.github.adinsa.picevolve.render;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.adinsa.picevolve.expression.Expression;
+
+/**
+ * Persistent cache of encoded renders, keyed by the structural hash of the {@link Expression}, the resolution and the image format.
+ *
+ * <p>
+ * Each entry is one file named after its key, holding the expression's string form, a CRC-32 of the image and the encoded image itself. On lookup
+ * the string form and the CRC are checked, so a hash collision or a corrupt file is treated as a miss (and the file deleted). Entries are written
+ * to a temporary file and atomically renamed into place, so a crash never leaves a partial entry behind.
+ * </p>
+ *
+ * <p>
+ * The total size of the cache is capped. When a new entry pushes it over the cap, the least recently used entries (by file modification time,
+ * which is bumped on every hit) are evicted.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class RenderCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderCache.class);
+
+    /**
+     * Stored at the start of each entry; bump it whenever rendering changes in a way that invalidates existing entries
+     */
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".cache";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Opens (creating if necessary) the cache in the given directory. Temporary files left over from an interrupted write are deleted.
+     *
+     * @param directory
+     * @param maxBytes
+     *            maximum total size of the cache files
+     * @throws IOException
+     */
+    public RenderCache(final File directory, final long maxBytes) throws IOException {
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(this.directory);
+        for (final Path path : list(TEMPORARY_SUFFIX)) {
+            Files.deleteIfExists(path);
+        }
+        for (final Path path : list(SUFFIX)) {
+            totalBytes.addAndGet(Files.size(path));
+        }
+        logger.debug("Opened render cache {} ({} KB)", directory, totalBytes.get() >> 10);
+        evict();
+    }
+
+    /**
+     * Returns the cached image for the expression at the given resolution and format, if there is a valid entry.
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @param formatName
+     * @return the encoded image
+     */
+    public Optional<byte[]> get(final Expression expression, final int width, final int height, final String formatName) {
+
+        final Path path = path(expression, width, height, formatName);
+        try {
+            final byte[] entry = Files.readAllBytes(path);
+            final Optional<byte[]> image = decode(entry, expression.toString());
+            if (image.isPresent()) {
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+                hits.increment();
+                return image;
+            }
+            logger.warn("Discarding invalid render cache entry: {}", path);
+            synchronized (this) {
+                if (Files.deleteIfExists(path)) {
+                    totalBytes.addAndGet(-entry.length);
+                }
+            }
+        } catch (final NoSuchFileException e) {
+            // Not cached (or evicted since)
+        } catch (final IOException e) {
+            logger.warn("Error reading render cache entry: " + path, e);
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    /**
+     * Caches the encoded image for the expression at the given resolution and format, evicting old entries if the cache grows too large.
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @param formatName
+     * @param image
+     */
+    public void put(final Expression expression, final int width, final int height, final String formatName, final byte[] image) {
+
+        final Path path = path(expression, width, height, formatName);
+        final byte[] entry = encode(expression.toString(), image);
+        try {
+            final Path temporary = Files.createTempFile(directory, path.getFileName().toString(), TEMPORARY_SUFFIX);
+            Files.write(temporary, entry);
+            // The size of the entry being replaced is only accurate if no other put or eviction changes it before the move
+            synchronized (this) {
+                final long replaced = Files.exists(path) ? Files.size(path) : 0;
+                try {
+                    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                totalBytes.addAndGet(entry.length - replaced);
+            }
+        } catch (final IOException e) {
+            logger.warn("Error writing render cache entry: " + path, e);
+            return;
+        }
+        if (totalBytes.get() > maxBytes) {
+            evict();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getSizeBytes() {
+        return totalBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RenderCache [directory=%s, size=%d KB, hits=%d, misses=%d]", directory, totalBytes.get() >> 10, getHits(),
+                getMisses());
+    }
+
+    private Path path(final Expression expression, final int width, final int height, final String formatName) {
+        return directory.resolve(String.format("%016x-%dx%d-%s%s", expression.structuralHash(), width, height, formatName, SUFFIX));
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is within its size cap.
+     */
+    private synchronized void evict() {
+
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        final List<Path> entries;
+        try {
+            entries = list(SUFFIX);
+            entries.sort(Comparator.comparingLong(RenderCache::lastModified));
+        } catch (final IOException e) {
+            logger.warn("Error listing render cache: " + directory, e);
+            return;
+        }
+        int evicted = 0;
+        for (final Path entry : entries) {
+            if (totalBytes.get() <= maxBytes) {
+                break;
+            }
+            try {
+                final long size = Files.size(entry);
+                if (Files.deleteIfExists(entry)) {
+                    totalBytes.addAndGet(-size);
+                    evicted++;
+                }
+            } catch (final IOException e) {
+                logger.warn("Error evicting render cache entry: " + entry, e);
+            }
+        }
+        logger.debug("Evicted {} render cache entries", evicted);
+    }
+
+    private List<Path> list(final String suffix) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().endsWith(suffix)).collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static long lastModified(final Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (final IOException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private static byte[] encode(final String expression, final byte[] image) {
+        final CRC32 crc = new CRC32();
+        crc.update(image);
+        final byte[] expressionBytes = expression.getBytes(StandardCharsets.UTF_8);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(image.length + expressionBytes.length + 20);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeInt(expressionBytes.length);
+            out.write(expressionBytes);
+            out.writeLong(crc.getValue());
+            out.writeInt(image.length);
+            out.write(image);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the image stored in the entry, or nothing if the entry is from another version, for another expression, truncated or corrupt.
+     */
+    private static Optional<byte[]> decode(final byte[] entry, final String expression) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry))) {
+            if (in.readInt() != VERSION) {
+                return Optional.empty();
+            }
+            final int expressionLength = in.readInt();
+            if (expressionLength < 0 || expressionLength > in.available()) {
+                return Optional.empty();
+            }
+            final byte[] expressionBytes = new byte[expressionLength];
+            in.readFully(expressionBytes);
+            if (!Arrays.equals(expressionBytes, expression.getBytes(StandardCharsets.UTF_8))) {
+                return Optional.empty();
+            }
+            final long checksum = in.readLong();
+            final int imageLength = in.readInt();
+            if (imageLength != in.available()) {
+                return Optional.empty();
+            }
+            final byte[] image = new byte[imageLength];
+            in.readFully(image);
+            final CRC32 crc = new CRC32();
+            crc.update(image);
+            return crc.getValue() == checksum ? Optional.of(image) : Optional.empty();
+        } catch (final IOException e) {
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.github.adinsa.picevolve.render;
+
+/**
+ * Thrown from a cancellation checkpoint when the render it belongs to has been cancelled or has run past its deadline.
+ *
+ * @author amar
+ *
+ */
+public class RenderCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 6131742405012268237L;
+
+    public RenderCancelledException(final String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.adinsa.picevolve.render;
+
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import com.github.adinsa.picevolve.Image;
+
+/**
+ * Associates the render running on the current thread with its {@link CancellationToken}, so that the evaluation code can check for
+ * cancellation without passing the token through every {@link com.github.adinsa.picevolve.expression.Function}.
+ *
+ * <p>
+ * Checkpoints are placed once per node in {@link com.github.adinsa.picevolve.visitor.EvaluatorVisitor} and once per row in the per-pixel loops,
+ * so a cancelled render stops within about one row of work. Outside of {@link #call(CancellationToken, Supplier)} checkpoints do nothing. The
+ * context also decides whether the per-pixel loops process rows in parallel.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public final class RenderContext {
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<>();
+
+    private RenderContext() {
+    }
+
+    /**
+     * Runs the render on the current thread under the given token, rendering rows one after another.
+     *
+     * @param token
+     * @param render
+     * @return
+     * @throws RenderCancelledException
+     *             if the token is cancelled before or during the render
+     */
+    public static <T> T call(final CancellationToken token, final Supplier<T> render) {
+        return call(token, false, render);
+    }
+
+    /**
+     * Runs the render on the current thread under the given token. If {@code parallelRows} is set, the rows returned by {@link #rows(int)} are
+     * processed in parallel, on the {@link java.util.concurrent.ForkJoinPool} the current thread belongs to (or the common pool).
+     *
+     * @param token
+     * @param parallelRows
+     * @param render
+     * @return
+     * @throws RenderCancelledException
+     *             if the token is cancelled before or during the render
+     */
+    public static <T> T call(final CancellationToken token, final boolean parallelRows, final Supplier<T> render) {
+        return call(token, parallelRows, Image.Storage.HEAP, render);
+    }
+
+    /**
+     * Runs the render on the current thread under the given token, with new {@link Image}s created on the current thread using the given
+     * storage.
+     *
+     * @param token
+     * @param parallelRows
+     * @param imageStorage
+     * @param render
+     * @return
+     * @throws RenderCancelledException
+     *             if the token is cancelled before or during the render
+     */
+    public static <T> T call(final CancellationToken token, final boolean parallelRows, final Image.Storage imageStorage,
+            final Supplier<T> render) {
+        final State previous = STATE.get();
+        STATE.set(new State(token, parallelRows, imageStorage));
+        try {
+            token.checkpoint();
+            return render.get();
+        } finally {
+            if (previous == null) {
+                STATE.remove();
+            } else {
+                STATE.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Throws a {@link RenderCancelledException} if the render running on the current thread has been cancelled.
+     */
+    public static void checkpoint() {
+        final State state = STATE.get();
+        if (state != null) {
+            state.token.checkpoint();
+        }
+    }
+
+    /**
+     * Returns the storage for new images of the render running on the current thread, {@link Image.Storage#HEAP} outside of a render (including on
+     * the threads that process rows in parallel).
+     *
+     * @return
+     */
+    public static Image.Storage getImageStorage() {
+        final State state = STATE.get();
+        return state == null ? Image.Storage.HEAP : state.imageStorage;
+    }
+
+    /**
+     * Returns the row indices {@code 0} to {@code height - 1}, with a checkpoint before each row. The stream is parallel if the current render
+     * allows it, so the caller must only write to the row it is given.
+     *
+     * @param height
+     * @return
+     */
+    public static IntStream rows(final int height) {
+        final State state = STATE.get();
+        final IntStream rows = sequentialRows(height);
+        return state != null && state.parallelRows ? rows.parallel() : rows;
+    }
+
+    /**
+     * Returns the row indices {@code 0} to {@code height - 1}, with a checkpoint before each row, for loops that must run in order (e.g. ones that
+     * write to other rows or draw through a {@link java.awt.Graphics}).
+     *
+     * @param height
+     * @return
+     */
+    public static IntStream sequentialRows(final int height) {
+        final State state = STATE.get();
+        if (state == null) {
+            return IntStream.range(0, height);
+        }
+        // The token is captured, since rows processed in parallel run on other threads
+        final CancellationToken token = state.token;
+        return IntStream.range(0, height).map(y -> {
+            token.checkpoint();
+            return y;
+        });
+    }
+
+    private static final class State {
+
+        private final CancellationToken token;
+        private final boolean parallelRows;
+        private final Image.Storage imageStorage;
+
+        State(final CancellationToken token, final boolean parallelRows, final Image.Storage imageStorage) {
+            this.token = token;
+            this.parallelRows = parallelRows;
+            this.imageStorage = imageStorage;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.adinsa.picevolve.render;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * A {@link CompletableFuture} for a render that can be cancelled while it runs.
+ *
+ * <p>
+ * Cancelling a plain {@link CompletableFuture} only completes it; the work carries on in the background. Cancelling a {@code RenderFuture} also
+ * cancels its {@link CancellationToken}, so the render stops at its next checkpoint. Conversely, if the token is cancelled (e.g. along with its
+ * parent), the future completes exceptionally with a {@link RenderCancelledException}.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class RenderFuture<T> extends CompletableFuture<T> {
+
+    private final CancellationToken token;
+
+    public RenderFuture(final CancellationToken token) {
+        this.token = token;
+    }
+
+    /**
+     * Runs the render on the given executor, under the given token.
+     *
+     * @param render
+     * @param executor
+     * @param token
+     * @return
+     */
+    public static <T> RenderFuture<T> supplyAsync(final Supplier<T> render, final Executor executor, final CancellationToken token) {
+
+        final RenderFuture<T> future = new RenderFuture<>(token);
+        executor.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(RenderContext.call(token, render));
+            } catch (final Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    public CancellationToken getToken() {
+        return token;
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        token.cancel("Cancelled");
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
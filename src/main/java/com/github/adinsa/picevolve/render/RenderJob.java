@@ -0,0 +1,177 @@
+package com.github.adinsa.picevolve.render;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.github.adinsa.picevolve.FloatImageFormat;
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.visitor.EvaluatorVisitor;
+
+/**
+ * A cancellable render of an {@link Expression} that belongs to a generation of renders (e.g. the previews of one population).
+ *
+ * <p>
+ * The job is cancelled along with its generation's token. It also has an optional deadline, which is counted from the moment the render starts
+ * rather than from when it is queued.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class RenderJob {
+
+    private final long generation;
+    private final String name;
+    private final CancellationToken generationToken;
+    private final long deadlineMillis;
+    private final ForkJoinPool rowPool;
+    private final Image.Storage imageStorage;
+
+    public RenderJob(final long generation, final String name, final CancellationToken generationToken, final long deadlineMillis) {
+        this(generation, name, generationToken, deadlineMillis, null);
+    }
+
+    public RenderJob(final long generation, final String name, final CancellationToken generationToken, final long deadlineMillis,
+            final ForkJoinPool rowPool) {
+        this(generation, name, generationToken, deadlineMillis, rowPool, Image.Storage.HEAP);
+    }
+
+    /**
+     * @param generation
+     *            id of the generation the job belongs to
+     * @param name
+     *            description used in log messages
+     * @param generationToken
+     *            token that cancels the whole generation
+     * @param deadlineMillis
+     *            maximum time the render may take, or 0 for no deadline
+     * @param rowPool
+     *            pool used to render rows in parallel, or null to render them on the calling thread
+     * @param imageStorage
+     *            storage of the images the render creates
+     */
+    public RenderJob(final long generation, final String name, final CancellationToken generationToken, final long deadlineMillis,
+            final ForkJoinPool rowPool, final Image.Storage imageStorage) {
+        this.generation = generation;
+        this.name = name;
+        this.generationToken = generationToken;
+        this.deadlineMillis = deadlineMillis;
+        this.rowPool = rowPool;
+        this.imageStorage = imageStorage;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isCancelled() {
+        return generationToken.isCancelled();
+    }
+
+    /**
+     * Throws a {@link RenderCancelledException} if the job's generation has been cancelled.
+     */
+    public void checkpoint() {
+        generationToken.checkpoint();
+    }
+
+    /**
+     * Evaluates the expression on the current thread and returns the image normalized between 0 and 1.
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @return
+     * @throws RenderCancelledException
+     *             if the generation is cancelled or the deadline passes before the render completes
+     */
+    public Image render(final Expression expression, final int width, final int height) {
+        return call(generationToken.withTimeout(deadlineMillis, TimeUnit.MILLISECONDS), () -> {
+            final Image image = evaluateImage(expression, width, height);
+            try {
+                return image.scaled();
+            } finally {
+                image.release();
+            }
+        });
+    }
+
+    /**
+     * Evaluates the expression on the current thread without normalizing the result, the first stage of a {@link RenderPipeline}.
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @return
+     * @throws RenderCancelledException
+     *             if the generation is cancelled or the deadline passes before the render completes
+     */
+    public Image evaluate(final Expression expression, final int width, final int height) {
+        return call(generationToken.withTimeout(deadlineMillis, TimeUnit.MILLISECONDS), () -> evaluateImage(expression, width, height));
+    }
+
+    /**
+     * Normalizes an evaluated image between 0 and 1 and packs it into a {@link BufferedImage} on the current thread.
+     *
+     * @param image
+     * @return
+     * @throws RenderCancelledException
+     *             if the generation is cancelled
+     */
+    public BufferedImage pack(final Image image) {
+        return call(generationToken, () -> {
+            final Image scaled = image.scaled();
+            try {
+                return scaled.asBufferedImage();
+            } finally {
+                scaled.release();
+            }
+        });
+    }
+
+    /**
+     * Normalizes an evaluated image between 0 and 1 on the current thread, for formats that store the values themselves (see
+     * {@link FloatImageFormat}) rather than a packed {@link BufferedImage}.
+     *
+     * @param image
+     * @return
+     * @throws RenderCancelledException
+     *             if the generation is cancelled
+     */
+    public Image normalize(final Image image) {
+        return call(generationToken, image::scaled);
+    }
+
+    /**
+     * Runs a render on the current thread under the job's tokens, with its rows in parallel if the job has a row pool.
+     */
+    <T> T run(final Supplier<T> render) {
+        return call(generationToken.withTimeout(deadlineMillis, TimeUnit.MILLISECONDS), render);
+    }
+
+    private static Image evaluateImage(final Expression expression, final int width, final int height) {
+        final EvaluatorVisitor evaluator = new EvaluatorVisitor(width, height);
+        expression.accept(evaluator);
+        return evaluator.getImage();
+    }
+
+    private <T> T call(final CancellationToken token, final Supplier<T> render) {
+        if (rowPool == null) {
+            return RenderContext.call(token, false, imageStorage, render);
+        }
+        // Parallel streams started from a pool's worker thread run on that pool
+        return rowPool.submit(() -> RenderContext.call(token, true, imageStorage, render)).join();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RenderJob [generation=%d, name=%s]", generation, name);
+    }
+}
@@ -0,0 +1,411 @@
+package com.github.adinsa.picevolve.render;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.adinsa.picevolve.FloatImageFormat;
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.expression.Expression;
+
+/**
+ * Renders an {@link Expression} to a file in four stages: evaluate, normalize and pack into a {@link BufferedImage}, encode, and write.
+ *
+ * <p>
+ * The first two stages run on the calling (compute) thread. The packed image is then handed off to a pool of encoder threads, and the encoded
+ * bytes to a separate I/O pool, so compute threads go back to evaluating instead of waiting on deflate or the disk. Each hand-off is bounded: once
+ * {@code queueCapacity} images are waiting for (or in) a stage, the previous stage blocks until one leaves it. Cancelled jobs are dropped at each
+ * hand-off. Images in a {@link FloatImageFormat} are normalized but not packed, and encoded with their full precision. PNGs can be encoded by
+ * a {@link PngEncoder}, which deflates chunks of each image in parallel, rather than by {@link ImageIO}.
+ * </p>
+ *
+ * <p>
+ * Encoded images can be kept in a {@link RenderCache}, in which case an expression that has been rendered before at the same resolution and
+ * format skips straight to the write stage. The time spent in each stage is recorded, see {@link #getStatistics()}.
+ * </p>
+ *
+ * <p>
+ * Large PNG renders of pointwise expressions can instead be streamed to the file by a {@link StreamingRenderer}, which never holds the whole image
+ * in memory, and other large PNG renders can be evaluated tile by tile through scratch files by a {@link TiledRenderer}. Either way they run
+ * entirely on the calling thread, and are not cached.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class RenderPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderPipeline.class);
+
+    public enum Stage {
+        EVALUATE, PACK, ENCODE, WRITE, STREAM, TILED
+    }
+
+    private final ExecutorService encoder;
+    private final ExecutorService writer;
+    private final Semaphore encodeCapacity;
+    private final Semaphore writeCapacity;
+    private final Map<Stage, StageTimer> timers = new EnumMap<>(Stage.class);
+    private final RenderCache cache;
+    private final StreamingRenderer streaming;
+    private final TiledRenderer tiled;
+    private final PngEncoder png;
+
+    public RenderPipeline(final int encoderThreads, final int writerThreads, final int queueCapacity) {
+        this(encoderThreads, writerThreads, queueCapacity, null);
+    }
+
+    public RenderPipeline(final int encoderThreads, final int writerThreads, final int queueCapacity, final RenderCache cache) {
+        this(encoderThreads, writerThreads, queueCapacity, cache, null, null);
+    }
+
+    /**
+     * @param encoderThreads
+     *            number of images encoded at once
+     * @param writerThreads
+     *            number of files written at once
+     * @param queueCapacity
+     *            maximum number of images waiting for or in each of the encode and write stages
+     * @param cache
+     *            cache of encoded images, or null to always render
+     * @param streaming
+     *            renderer for the images it accepts, or null to render every image whole
+     * @param tiled
+     *            renderer for the images it accepts and {@code streaming} does not, or null to render them whole
+     */
+    public RenderPipeline(final int encoderThreads, final int writerThreads, final int queueCapacity, final RenderCache cache,
+            final StreamingRenderer streaming, final TiledRenderer tiled) {
+        this(encoderThreads, writerThreads, queueCapacity, cache, streaming, tiled, null);
+    }
+
+    /**
+     * @param encoderThreads
+     *            number of images encoded at once
+     * @param writerThreads
+     *            number of files written at once
+     * @param queueCapacity
+     *            maximum number of images waiting for or in each of the encode and write stages
+     * @param cache
+     *            cache of encoded images, or null to always render
+     * @param streaming
+     *            renderer for the images it accepts, or null to render every image whole
+     * @param tiled
+     *            renderer for the images it accepts and {@code streaming} does not, or null to render them whole
+     * @param png
+     *            encoder for PNGs rendered whole, or null to encode them with {@link ImageIO}
+     */
+    public RenderPipeline(final int encoderThreads, final int writerThreads, final int queueCapacity, final RenderCache cache,
+            final StreamingRenderer streaming, final TiledRenderer tiled, final PngEncoder png) {
+        encoder = Executors.newFixedThreadPool(encoderThreads);
+        writer = Executors.newFixedThreadPool(writerThreads);
+        encodeCapacity = new Semaphore(queueCapacity);
+        writeCapacity = new Semaphore(queueCapacity);
+        for (final Stage stage : Stage.values()) {
+            timers.put(stage, new StageTimer());
+        }
+        this.cache = cache;
+        this.streaming = streaming;
+        this.tiled = tiled;
+        this.png = png;
+    }
+
+    /**
+     * Evaluates and packs the expression on the current thread, then queues it to be encoded and written to {@code file}, blocking while the
+     * encode stage is full. If the image is in the cache, it is queued to be written straight away instead. Once written, the file's temporary
+     * {@code .part} copy is passed to {@code publish} on an I/O thread, which is responsible for moving (or deleting) it. Images accepted by the
+     * {@link StreamingRenderer} or {@link TiledRenderer} are instead rendered and written on the current thread, which then calls {@code publish}.
+     *
+     * @param job
+     * @param expression
+     * @param width
+     * @param height
+     * @param formatName
+     * @param file
+     * @param publish
+     * @throws RenderCancelledException
+     *             if the job is cancelled before the image is handed off
+     * @throws InterruptedException
+     *             if interrupted while waiting for the encode stage
+     */
+    public void render(final RenderJob job, final Expression expression, final int width, final int height, final String formatName,
+            final File file, final Consumer<File> publish) throws InterruptedException {
+
+        if (streaming != null && streaming.accepts(expression, width, height, formatName)) {
+            final File partial = new File(file.getPath() + ".part");
+            time(Stage.STREAM, () -> direct(partial, () -> streaming.render(job, expression, width, height, partial)));
+            publish.accept(partial);
+            return;
+        }
+        if (tiled != null && tiled.accepts(expression, width, height, formatName)) {
+            final File partial = new File(file.getPath() + ".part");
+            time(Stage.TILED, () -> direct(partial, () -> tiled.render(job, expression, width, height, partial)));
+            publish.accept(partial);
+            return;
+        }
+
+        final Optional<byte[]> cached = cache == null ? Optional.empty() : cache.get(expression, width, height, formatName);
+        if (cached.isPresent()) {
+            job.checkpoint();
+            handOff(writeCapacity, writer, write(job, cached.get(), file, publish));
+            return;
+        }
+
+        final Image image = time(Stage.EVALUATE, () -> job.evaluate(expression, width, height));
+        final Optional<FloatImageFormat> floatFormat = FloatImageFormat.forName(formatName);
+        final Supplier<byte[]> encoding;
+        final Runnable release;
+        try {
+            if (floatFormat.isPresent()) {
+                // Float formats keep the normalized values themselves, instead of packing them into 8 bits
+                final Image normalized = time(Stage.PACK, () -> job.normalize(image));
+                encoding = () -> floatFormat.get().encode(normalized);
+                release = normalized::release;
+            } else {
+                final BufferedImage packed = time(Stage.PACK, () -> job.pack(image));
+                encoding = () -> encode(packed, formatName, file);
+                release = () -> {
+                };
+            }
+        } finally {
+            image.release();
+        }
+        try {
+            job.checkpoint();
+        } catch (final RuntimeException e) {
+            release.run();
+            throw e;
+        }
+
+        encodeAndWrite(job, encoding, release, encoded -> {
+            if (cache != null) {
+                cache.put(expression, width, height, formatName, encoded);
+            }
+        }, file, publish);
+    }
+
+    /**
+     * Queues an image that has already been packed (e.g. a {@link Montage}) to be encoded and written to {@code file}, blocking while the
+     * encode stage is full. It is published as by {@link #render(RenderJob, Expression, int, int, String, File, Consumer)}, but not cached.
+     *
+     * @param job
+     * @param packed
+     * @param formatName
+     * @param file
+     * @param publish
+     * @throws InterruptedException
+     *             if interrupted while waiting for the encode stage
+     */
+    public void writePacked(final RenderJob job, final BufferedImage packed, final String formatName, final File file,
+            final Consumer<File> publish) throws InterruptedException {
+        encodeAndWrite(job, () -> encode(packed, formatName, file), () -> {
+        }, encoded -> {
+        }, file, publish);
+    }
+
+    /**
+     * Hands the encoding off to the encode stage, then the encoded image to the write stage. {@code release} frees what the encoding reads, and
+     * is run exactly once: after encoding, or as soon as the encoding is skipped (the job was cancelled, or the hand-off failed).
+     */
+    private void encodeAndWrite(final RenderJob job, final Supplier<byte[]> encoding, final Runnable release, final Consumer<byte[]> onEncoded,
+            final File file, final Consumer<File> publish) throws InterruptedException {
+        try {
+            handOff(encodeCapacity, encoder, () -> {
+                final byte[] encoded;
+                try {
+                    if (discarded(job)) {
+                        return;
+                    }
+                    encoded = time(Stage.ENCODE, encoding);
+                } finally {
+                    release.run();
+                }
+                onEncoded.accept(encoded);
+                try {
+                    handOff(writeCapacity, writer, write(job, encoded, file, publish));
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        } catch (final InterruptedException | RuntimeException e) {
+            // The encode never ran
+            release.run();
+            throw e;
+        }
+    }
+
+    private Runnable write(final RenderJob job, final byte[] encoded, final File file, final Consumer<File> publish) {
+        return () -> {
+            if (discarded(job)) {
+                return;
+            }
+            final File partial = new File(file.getPath() + ".part");
+            time(Stage.WRITE, () -> write(encoded, partial));
+            publish.accept(partial);
+        };
+    }
+
+    /**
+     * Runs a render that writes its own file, deleting the partial file if it fails.
+     */
+    private static Void direct(final File partial, final DirectRender render) {
+        try {
+            render.run();
+        } catch (final IOException e) {
+            partial.delete();
+            throw new RuntimeException(String.format("Error writing file: '%s'", partial.getPath()), e);
+        } catch (final RuntimeException e) {
+            partial.delete();
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Runs one stage of a render and records its time.
+     *
+     * @param stage
+     * @param step
+     * @return
+     */
+    public <T> T time(final Stage stage, final Supplier<T> step) {
+        final long start = System.nanoTime();
+        try {
+            return step.get();
+        } finally {
+            timers.get(stage).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns a summary of the time spent in each stage since the pipeline was created.
+     *
+     * @return
+     */
+    public String getStatistics() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Stage stage : Stage.values()) {
+            builder.append(String.format("%-8s %s%n", stage, timers.get(stage)));
+        }
+        builder.append(String.format("Waiting: %d to encode, %d to write", encodeCapacity.getQueueLength(), writeCapacity.getQueueLength()));
+        if (cache != null) {
+            builder.append(String.format("%n%s", cache));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Stops accepting images; queued images are still encoded and written.
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     */
+    public boolean shutdownAndAwaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        // Encoder tasks hand off to the writer, so the writer can only stop once they have all run
+        encoder.shutdown();
+        final boolean encoded = encoder.awaitTermination(timeout, unit);
+        writer.shutdown();
+        return encoded && writer.awaitTermination(timeout, unit);
+    }
+
+    private static void handOff(final Semaphore capacity, final ExecutorService stage, final Runnable task) throws InterruptedException {
+        capacity.acquire();
+        try {
+            stage.execute(() -> {
+                try {
+                    task.run();
+                } catch (final Throwable t) {
+                    logger.error("Error:", t);
+                } finally {
+                    capacity.release();
+                }
+            });
+        } catch (final RuntimeException e) {
+            capacity.release();
+            throw e;
+        }
+    }
+
+    private static boolean discarded(final RenderJob job) {
+        if (job.isCancelled()) {
+            logger.debug("Discarded {}", job);
+            return true;
+        }
+        return false;
+    }
+
+    private byte[] encode(final BufferedImage image, final String formatName, final File file) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            if (png != null && "png".equalsIgnoreCase(formatName)) {
+                return png.encode(image);
+            }
+            if (!ImageIO.write(image, formatName, bytes)) {
+                throw new IllegalArgumentException(String.format("No writer for image format: '%s'", formatName));
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Error encoding file: '%s'", file.getPath()), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Void write(final byte[] bytes, final File file) {
+        try {
+            Files.write(file.toPath(), bytes);
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Error writing file: '%s'", file.getPath()), e);
+        }
+        return null;
+    }
+
+    /**
+     * A render by a {@link StreamingRenderer} or {@link TiledRenderer}
+     */
+    private interface DirectRender {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Count, total and maximum time of one stage
+     */
+    private static final class StageTimer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        void record(final long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        @Override
+        public String toString() {
+            final long n = count.sum();
+            final double totalMillis = totalNanos.sum() / 1e6;
+            return String.format("count=%d, total=%.1f ms, mean=%.1f ms, max=%.1f ms", n, totalMillis, n == 0 ? 0 : totalMillis / n,
+                    maxNanos.get() / 1e6);
+        }
+    }
+}
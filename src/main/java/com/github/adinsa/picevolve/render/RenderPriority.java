@@ -0,0 +1,20 @@
+package com.github.adinsa.picevolve.render;
+
+/**
+ * Priority classes of the {@link RenderScheduler}, highest first.
+ *
+ * @author amar
+ *
+ */
+public enum RenderPriority {
+
+    /**
+     * Previews the user is waiting for. Rendered one image per thread.
+     */
+    INTERACTIVE,
+
+    /**
+     * Full-size renders. Only run when no interactive render is waiting, and each image is rendered a band of rows per thread.
+     */
+    BATCH
+}
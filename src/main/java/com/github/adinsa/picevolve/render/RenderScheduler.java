@@ -0,0 +1,144 @@
+package com.github.adinsa.picevolve.render;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs renders by {@link RenderPriority} class, then by estimated cost (cheapest first), then in submission order.
+ *
+ * <p>
+ * Each priority class has a bounded capacity: once that many renders of the class are queued or running, {@link #submit(RenderPriority, double,
+ * Runnable)} blocks until one completes. Batch renders therefore cannot crowd out previews, and a caller that produces renders faster than they
+ * complete is slowed down instead of growing the queue without bound.
+ * </p>
+ *
+ * <p>
+ * Cores are shared between two levels of parallelism: a fixed number of threads render separate images, and a {@link ForkJoinPool} renders the
+ * rows of one image in parallel (see {@link RenderContext#rows(int)}). {@link RenderJob}s given {@link #getRowPool()} use the latter.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class RenderScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderScheduler.class);
+
+    private final ThreadPoolExecutor executor;
+    private final ForkJoinPool rowPool;
+    private final Map<RenderPriority, Semaphore> capacity = new EnumMap<>(RenderPriority.class);
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param threads
+     *            number of images rendered at once
+     * @param rowParallelism
+     *            number of threads rendering the rows of an image
+     * @param interactiveCapacity
+     *            maximum number of queued or running interactive renders
+     * @param batchCapacity
+     *            maximum number of queued or running batch renders
+     */
+    public RenderScheduler(final int threads, final int rowParallelism, final int interactiveCapacity, final int batchCapacity) {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), Executors.defaultThreadFactory());
+        rowPool = new ForkJoinPool(rowParallelism);
+        capacity.put(RenderPriority.INTERACTIVE, new Semaphore(interactiveCapacity));
+        capacity.put(RenderPriority.BATCH, new Semaphore(batchCapacity));
+    }
+
+    /**
+     * Returns the pool used to render the rows of one image in parallel.
+     *
+     * @return
+     */
+    public ForkJoinPool getRowPool() {
+        return rowPool;
+    }
+
+    /**
+     * Queues a render, first waiting for capacity in its priority class if necessary.
+     *
+     * @param priority
+     * @param cost
+     *            estimated cost of the render; cheaper renders run first within a priority class
+     * @param render
+     * @return
+     * @throws InterruptedException
+     *             if interrupted while waiting for capacity
+     */
+    public Future<?> submit(final RenderPriority priority, final double cost, final Runnable render) throws InterruptedException {
+
+        final Semaphore permits = capacity.get(priority);
+        if (!permits.tryAcquire()) {
+            logger.info("{} render queue is full, waiting...", priority);
+            permits.acquire();
+        }
+
+        final ScheduledRender task = new ScheduledRender(priority, cost, sequence.getAndIncrement(), permits, render);
+        try {
+            executor.execute(task);
+        } catch (final RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Stops accepting renders; queued and running renders still complete.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final boolean terminated = executor.awaitTermination(timeout, unit);
+        rowPool.shutdown();
+        return terminated && rowPool.awaitTermination(timeout, unit);
+    }
+
+    private static final class ScheduledRender extends FutureTask<Void> implements Comparable<ScheduledRender> {
+
+        private final RenderPriority priority;
+        private final double cost;
+        private final long sequence;
+        private final Semaphore permits;
+
+        ScheduledRender(final RenderPriority priority, final double cost, final long sequence, final Semaphore permits, final Runnable render) {
+            super(render, null);
+            this.priority = priority;
+            this.cost = cost;
+            this.sequence = sequence;
+            this.permits = permits;
+        }
+
+        /**
+         * Frees the render's capacity once it has completed, failed or been cancelled.
+         */
+        @Override
+        protected void done() {
+            permits.release();
+        }
+
+        @Override
+        public int compareTo(final ScheduledRender other) {
+            int result = priority.compareTo(other.priority);
+            if (result == 0) {
+                result = Double.compare(cost, other.cost);
+            }
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.github.adinsa.picevolve.render;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+import java.util.zip.Deflater;
+
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.expression.Argument;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
+import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
+import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
+import com.github.adinsa.picevolve.visitor.EvaluatorVisitor;
+import com.github.adinsa.picevolve.visitor.Visitor;
+
+/**
+ * Renders pointwise expressions to PNG a band of rows at a time, so memory use depends on the width of the image but not its height.
+ *
+ * <p>
+ * An expression is pointwise if it is made only of functions whose value at a pixel depends only on their arguments' values at that pixel (e.g.
+ * {@code +} or {@code sin}, but not {@code blur}, or {@code noise}, which rescales its arguments by their range over the whole image). Each band
+ * of such an expression can be evaluated on its own, given the band's {@code X} and {@code Y} values. The image is normalized by its overall
+ * range, so the expression is evaluated twice: once to find the range, and once to normalize, pack and encode each band. The result is
+ * pixel-for-pixel the same as {@link RenderJob#render(Expression, int, int)}.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class StreamingRenderer {
+
+    private static final Set<Class<? extends Function>> POINTWISE_FUNCTIONS = new HashSet<>(Arrays.asList(Function.Plus.class,
+            Function.Minus.class, Function.Multiply.class, Function.Divide.class, Function.Expt.class, Function.Log.class, Function.Round.class,
+            Function.Sine.class, Function.Cosine.class, Function.Tangent.class, Function.Min.class, Function.Max.class, Function.Abs.class,
+            Function.Mod.class, Function.FloatAnd.class, Function.FloatOr.class, Function.FloatXor.class));
+
+    private final int bandRows;
+    private final long minPixels;
+    private final PngEncoder png;
+
+    public StreamingRenderer(final int bandRows, final long minPixels) {
+        this(bandRows, minPixels, new PngEncoder(Deflater.DEFAULT_COMPRESSION, null));
+    }
+
+    /**
+     * @param bandRows
+     *            number of rows evaluated at once
+     * @param minPixels
+     *            smallest image (in pixels) worth streaming; smaller ones are rendered whole
+     * @param png
+     *            encoder of the bands
+     */
+    public StreamingRenderer(final int bandRows, final long minPixels, final PngEncoder png) {
+        this.bandRows = bandRows;
+        this.minPixels = minPixels;
+        this.png = png;
+    }
+
+    /**
+     * Should the render be streamed, i.e. is it large enough, to PNG, and of a pointwise expression?
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @param formatName
+     * @return
+     */
+    public boolean accepts(final Expression expression, final int width, final int height, final String formatName) {
+        return (long) width * height >= minPixels && "png".equalsIgnoreCase(formatName) && isPointwise(expression);
+    }
+
+    /**
+     * Is every function in the expression pointwise?
+     *
+     * @param expression
+     * @return
+     */
+    public static boolean isPointwise(final Expression expression) {
+        final Stack<Expression> stack = new Stack<>();
+        stack.push(expression);
+        while (!stack.isEmpty()) {
+            final Expression node = stack.pop();
+            if (node instanceof Function && !POINTWISE_FUNCTIONS.contains(node.getClass())) {
+                return false;
+            }
+            node.getChildren().forEach(stack::push);
+        }
+        return true;
+    }
+
+    /**
+     * Renders the expression as a PNG into the given file, on the current thread (with the rows of each band in parallel if the job has a row
+     * pool).
+     *
+     * @param job
+     * @param expression
+     *            a pointwise expression
+     * @param width
+     * @param height
+     * @param file
+     * @throws IOException
+     * @throws RenderCancelledException
+     *             if the job is cancelled or its deadline passes before the render completes
+     */
+    public void render(final RenderJob job, final Expression expression, final int width, final int height, final File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            render(job, expression, width, height, out);
+        }
+    }
+
+    /**
+     * Renders the expression as a PNG into the given stream.
+     *
+     * @param job
+     * @param expression
+     *            a pointwise expression
+     * @param width
+     * @param height
+     * @param out
+     * @throws IOException
+     * @throws RenderCancelledException
+     *             if the job is cancelled or its deadline passes before the render completes
+     */
+    public void render(final RenderJob job, final Expression expression, final int width, final int height, final OutputStream out)
+            throws IOException {
+
+        if (!isPointwise(expression)) {
+            throw new IllegalArgumentException(String.format("Not a pointwise expression: %s", expression));
+        }
+
+        try {
+            job.run(() -> {
+                try {
+                    stream(expression, width, height, out);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void stream(final Expression expression, final int width, final int height, final OutputStream out) throws IOException {
+
+        // Math.min and Math.max, like the streams used by Image.scaled(), propagate NaN
+        double minimum = Double.POSITIVE_INFINITY;
+        double maximum = Double.NEGATIVE_INFINITY;
+        for (int first = 0; first < height; first += bandRows) {
+            final Image band = evaluate(expression, width, height, first, Math.min(bandRows, height - first));
+            minimum = Math.min(minimum, band.getMinimum());
+            maximum = Math.max(maximum, band.getMaximum());
+            band.release();
+        }
+
+        final PngStreamWriter writer = png.open(out, width, height);
+        for (int first = 0; first < height; first += bandRows) {
+            final Image band = evaluate(expression, width, height, first, Math.min(bandRows, height - first));
+            final Image scaled = band.scaled(minimum, maximum, 0, 1);
+            band.release();
+            writer.writeRows(scaled.asBufferedImage());
+            scaled.release();
+        }
+        writer.close();
+    }
+
+    /**
+     * Evaluates rows {@code first} to {@code first + rows - 1} of the expression at the given resolution.
+     */
+    private static Image evaluate(final Expression expression, final int width, final int height, final int first, final int rows) {
+        final BandEvaluator evaluator = new BandEvaluator(width, height, first, rows);
+        expression.accept(evaluator);
+        return evaluator.getImage();
+    }
+
+    /**
+     * Evaluates a band of rows. Terminals and pointwise functions work on the band as if it were the whole image, except for {@code X} and
+     * {@code Y}, whose values are those of the band's rows in the whole image.
+     */
+    private static final class BandEvaluator implements Visitor {
+
+        private final Stack<Image> imageStack = new Stack<>();
+        private final int width;
+        private final int height;
+        private final int first;
+        private final int rows;
+
+        BandEvaluator(final int width, final int height, final int first, final int rows) {
+            this.width = width;
+            this.height = height;
+            this.first = first;
+            this.rows = rows;
+        }
+
+        Image getImage() {
+            return imageStack.pop();
+        }
+
+        @Override
+        public void visit(final ScalarNode scalarNode) {
+            RenderContext.checkpoint();
+            imageStack.push(new Argument.ScalarArgument(scalarNode.getValue()).toImage(width, rows));
+        }
+
+        @Override
+        public void visit(final VectorNode vectorNode) {
+            RenderContext.checkpoint();
+            imageStack.push(new Argument.VectorArgument(vectorNode.getValue()).toImage(width, rows));
+        }
+
+        @Override
+        public void visit(final VariableNode variableNode) {
+            RenderContext.checkpoint();
+            imageStack.push(new Argument.VariableArgument(variableNode.getValue()).toImage(width, height, 0, first, width, rows));
+        }
+
+        @Override
+        public void visit(final Function function) {
+            RenderContext.checkpoint();
+            final List<Argument<?>> children = new ArrayList<>(function.getArity());
+            for (int i = 0; i < function.getArity(); i++) {
+                children.add(new Argument.ImageArgument(imageStack.pop()));
+            }
+            final Image image = function.interpret(width, rows, children);
+            EvaluatorVisitor.release(children, image);
+            imageStack.push(image);
+        }
+    }
+
+}
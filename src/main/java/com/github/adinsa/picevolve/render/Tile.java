@@ -0,0 +1,114 @@
+package com.github.adinsa.picevolve.render;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.expression.Argument;
+
+/**
+ * One rectangle of a {@link TiledImage} being evaluated, along with the function arguments it is evaluated from.
+ *
+ * <p>
+ * The arguments are read over the tile extended by a halo of pixels on each side (cut off at the edges of the image), so that functions such as
+ * convolutions can compute the tile's pixels exactly as if they had the whole image. Functions that scale their arguments by their range must use
+ * the range of the whole argument, see {@link #scaled(List, int, double, double)}.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class Tile {
+
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+    private final int left;
+    private final int top;
+    private final int regionWidth;
+    private final int regionHeight;
+    private final List<TiledImage> arguments;
+
+    /**
+     * @param x
+     * @param y
+     * @param width
+     * @param height
+     * @param halo
+     *            number of pixels read around the tile
+     * @param arguments
+     *            the function's arguments over the whole image
+     */
+    public Tile(final int x, final int y, final int width, final int height, final int halo, final List<TiledImage> arguments) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.arguments = arguments;
+        final TiledImage first = arguments.get(0);
+        left = Math.min(halo, x);
+        top = Math.min(halo, y);
+        regionWidth = left + width + Math.min(halo, first.getWidth() - x - width);
+        regionHeight = top + height + Math.min(halo, first.getHeight() - y - height);
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of halo pixels to the left of the tile in each argument.
+     *
+     * @return
+     */
+    public int getLeft() {
+        return left;
+    }
+
+    /**
+     * Returns the number of halo pixels above the tile in each argument.
+     *
+     * @return
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * Reads the arguments over the tile and its halo.
+     *
+     * @return
+     */
+    public List<Argument<?>> readArguments() {
+        return arguments.stream().map(argument -> new Argument.ImageArgument(argument.read(x - left, y - top, regionWidth, regionHeight)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns an argument read by {@link #readArguments()} scaled between the minimum and maximum values specified, relative to the range of the
+     * whole argument, i.e. the part of {@code argument.scaled(minimum, maximum)} that the argument covers.
+     *
+     * @param regions
+     * @param index
+     * @param minimum
+     * @param maximum
+     * @return
+     */
+    public Image scaled(final List<Argument<?>> regions, final int index, final double minimum, final double maximum) {
+        final TiledImage argument = arguments.get(index);
+        return regions.get(index).toImage(regionWidth, regionHeight).scaled(argument.getMinimum(), argument.getMaximum(), minimum, maximum);
+    }
+}
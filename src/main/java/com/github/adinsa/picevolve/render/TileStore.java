@@ -0,0 +1,223 @@
+package com.github.adinsa.picevolve.render;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Creates {@link TiledImage}s backed by scratch files, and keeps their most recently used tiles in memory.
+ *
+ * <p>
+ * Tiles are held in a single LRU cache shared by all of the store's images, up to {@code maxBytes} in total. A tile that has been written since it
+ * was loaded is copied back to its image's scratch file when it is evicted. Closing the store closes (and deletes the scratch files of) any images
+ * still open.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class TileStore implements Closeable {
+
+    private final File directory;
+    private final int tileSize;
+    private final long maxBytes;
+
+    private final Map<Long, Entry> tiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<TiledImage> images = new ArrayList<>();
+    private long bytes;
+    private int nextId;
+
+    private long hits;
+    private long misses;
+    private long spills;
+
+    /**
+     * @param directory
+     *            directory of the scratch files
+     * @param tileSize
+     *            width and height of each tile
+     * @param maxBytes
+     *            maximum total size of the tiles held in memory
+     */
+    public TileStore(final File directory, final int tileSize, final long maxBytes) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid tile size: %d", tileSize));
+        }
+        this.directory = directory;
+        this.tileSize = tileSize;
+        this.maxBytes = maxBytes;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Creates an image whose pixels are all (0, 0, 0).
+     *
+     * @param width
+     * @param height
+     * @return
+     * @throws java.io.UncheckedIOException
+     *             if the scratch file cannot be created
+     */
+    public synchronized TiledImage create(final int width, final int height) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException(String.format("Could not create directory: '%s'", directory.getPath()));
+        }
+        final TiledImage image = new TiledImage(this, nextId++, width, height, directory);
+        images.add(image);
+        return image;
+    }
+
+    /**
+     * Returns the pixel data of a tile, loading it from the image's scratch file if it is not in memory. The array must not be modified.
+     */
+    double[] get(final TiledImage image, final int tileX, final int tileY) {
+        final long key = key(image, tileX, tileY);
+        synchronized (this) {
+            final Entry entry = tiles.get(key);
+            if (entry != null) {
+                hits++;
+                return entry.data;
+            }
+            misses++;
+        }
+        // Loaded outside the lock, so that misses on different tiles are read in parallel. A tile is only missing once any changes to it have
+        // been copied back, so the scratch file is up to date.
+        final double[] data = image.load(tileX, tileY);
+        synchronized (this) {
+            final Entry entry = tiles.get(key);
+            if (entry != null) {
+                return entry.data;
+            }
+            add(key, new Entry(image, tileX, tileY, data, false));
+            return data;
+        }
+    }
+
+    /**
+     * Replaces the pixel data of a tile.
+     */
+    synchronized void put(final TiledImage image, final int tileX, final int tileY, final double[] data) {
+        final Entry previous = tiles.remove(key(image, tileX, tileY));
+        if (previous != null) {
+            bytes -= previous.getBytes();
+        }
+        add(key(image, tileX, tileY), new Entry(image, tileX, tileY, data, true));
+    }
+
+    /**
+     * Modifies the pixel data of a tile in place.
+     */
+    synchronized void update(final TiledImage image, final int tileX, final int tileY, final Consumer<double[]> update) {
+        final long key = key(image, tileX, tileY);
+        Entry entry = tiles.get(key);
+        if (entry == null) {
+            misses++;
+            entry = new Entry(image, tileX, tileY, image.load(tileX, tileY), false);
+            add(key, entry);
+        } else {
+            hits++;
+        }
+        update.accept(entry.data);
+        entry.dirty = true;
+    }
+
+    /**
+     * Drops the tiles of an image that is being closed, without copying them back.
+     */
+    synchronized void discard(final TiledImage image) {
+        images.remove(image);
+        final Iterator<Entry> iterator = tiles.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.image == image) {
+                bytes -= entry.getBytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void add(final long key, final Entry entry) {
+        tiles.put(key, entry);
+        bytes += entry.getBytes();
+        final Iterator<Entry> iterator = tiles.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            final Entry eldest = iterator.next();
+            if (eldest == entry) {
+                // The tile just added is always kept, even if it alone is over the limit
+                continue;
+            }
+            if (eldest.dirty) {
+                eldest.image.store(eldest.tileX, eldest.tileY, eldest.data);
+                spills++;
+            }
+            bytes -= eldest.getBytes();
+            iterator.remove();
+        }
+    }
+
+    private static long key(final TiledImage image, final int tileX, final int tileY) {
+        return (long) image.getId() << 40 | (long) tileY << 20 | tileX;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of modified tiles that have been copied back to a scratch file to make room for others.
+     *
+     * @return
+     */
+    public synchronized long getSpills() {
+        return spills;
+    }
+
+    @Override
+    public void close() {
+        final List<TiledImage> open;
+        synchronized (this) {
+            open = new ArrayList<>(images);
+        }
+        open.forEach(TiledImage::close);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Tile store: %d tiles in memory (%d MB), %d hits, %d misses, %d spills", tiles.size(), bytes >> 20, hits, misses,
+                spills);
+    }
+
+    private static final class Entry {
+
+        private final TiledImage image;
+        private final int tileX;
+        private final int tileY;
+        private final double[] data;
+        private boolean dirty;
+
+        Entry(final TiledImage image, final int tileX, final int tileY, final double[] data, final boolean dirty) {
+            this.image = image;
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.data = data;
+            this.dirty = dirty;
+        }
+
+        long getBytes() {
+            return (long) data.length * Double.BYTES;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.github.adinsa.picevolve.render;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.Image.Pixel;
+
+/**
+ * An image too large to hold in memory, split into square tiles that are kept in a memory-mapped scratch file and cached by a
+ * {@link TileStore}.
+ *
+ * <p>
+ * Each row of tiles is mapped separately (when first used), with its tiles one after another and each tile's (r,g,b) values in row-major order,
+ * so a tile is one contiguous run of doubles. An image is written by a single function, and must not be read until it has been written
+ * completely.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class TiledImage implements Closeable {
+
+    private static final int COMPONENTS = 3;
+
+    private final TileStore store;
+    private final int id;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesAcross;
+    private final int tilesDown;
+
+    private final File file;
+    private final FileChannel channel;
+    private final DoubleBuffer[] stripes;
+
+    private boolean hasRange;
+    private double minimum;
+    private double maximum;
+
+    TiledImage(final TileStore store, final int id, final int width, final int height, final File directory) {
+        this.store = store;
+        this.id = id;
+        this.width = width;
+        this.height = height;
+        tileSize = store.getTileSize();
+        tilesAcross = (width + tileSize - 1) / tileSize;
+        tilesDown = (height + tileSize - 1) / tileSize;
+        if ((long) width * tileSize * COMPONENTS * Double.BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Image too wide for tiles of %d rows: %d", tileSize, width));
+        }
+        stripes = new DoubleBuffer[tilesDown];
+        try {
+            file = File.createTempFile("tiles-", ".scratch", directory);
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Error creating scratch file", e);
+        }
+    }
+
+    int getId() {
+        return id;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getTilesAcross() {
+        return tilesAcross;
+    }
+
+    public int getTilesDown() {
+        return tilesDown;
+    }
+
+    /**
+     * Returns the pixels in the given rectangle.
+     *
+     * @param left
+     * @param top
+     * @param regionWidth
+     * @param regionHeight
+     * @return
+     */
+    public Image read(final int left, final int top, final int regionWidth, final int regionHeight) {
+        final Image image = new Image(regionWidth, regionHeight);
+        for (int tileY = top / tileSize; tileY * tileSize < top + regionHeight; tileY++) {
+            for (int tileX = left / tileSize; tileX * tileSize < left + regionWidth; tileX++) {
+                final double[] data = store.get(this, tileX, tileY);
+                final int tileWidth = getTileWidth(tileX);
+                final int fromX = Math.max(left, tileX * tileSize);
+                final int toX = Math.min(left + regionWidth, (tileX + 1) * tileSize);
+                final int fromY = Math.max(top, tileY * tileSize);
+                final int toY = Math.min(top + regionHeight, (tileY + 1) * tileSize);
+                for (int y = fromY; y < toY; y++) {
+                    int i = ((y - tileY * tileSize) * tileWidth + fromX - tileX * tileSize) * COMPONENTS;
+                    for (int x = fromX; x < toX; x++, i += COMPONENTS) {
+                        image.set(x - left, y - top, new Pixel(data[i], data[i + 1], data[i + 2]));
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Replaces the pixels of a tile with an image of the tile's size.
+     *
+     * @param tileX
+     * @param tileY
+     * @param image
+     */
+    public void write(final int tileX, final int tileY, final Image image) {
+        final int tileWidth = getTileWidth(tileX);
+        final int tileHeight = getTileHeight(tileY);
+        final double[] data = new double[tileWidth * tileHeight * COMPONENTS];
+        for (int y = 0, i = 0; y < tileHeight; y++) {
+            for (int x = 0; x < tileWidth; x++, i += COMPONENTS) {
+                final Pixel pixel = image.get(x, y);
+                data[i] = pixel.r();
+                data[i + 1] = pixel.g();
+                data[i + 2] = pixel.b();
+            }
+        }
+        store.put(this, tileX, tileY, data);
+        invalidateRange();
+    }
+
+    /**
+     * Sets a single pixel. Much slower than {@link #write(int, int, Image)}, for functions whose output pixels do not follow their input.
+     *
+     * @param x
+     * @param y
+     * @param pixel
+     */
+    public void set(final int x, final int y, final Pixel pixel) {
+        final int tileX = x / tileSize;
+        final int tileY = y / tileSize;
+        final int i = ((y - tileY * tileSize) * getTileWidth(tileX) + x - tileX * tileSize) * COMPONENTS;
+        store.update(this, tileX, tileY, data -> {
+            data[i] = pixel.r();
+            data[i + 1] = pixel.g();
+            data[i + 2] = pixel.b();
+        });
+        invalidateRange();
+    }
+
+    /**
+     * Returns the smallest (r,g,b) value, or NaN if any value is NaN, as {@link Image#getMinimum()}.
+     *
+     * @return
+     */
+    public double getMinimum() {
+        findRange();
+        return minimum;
+    }
+
+    /**
+     * Returns the largest (r,g,b) value, or NaN if any value is NaN, as {@link Image#getMaximum()}.
+     *
+     * @return
+     */
+    public double getMaximum() {
+        findRange();
+        return maximum;
+    }
+
+    private synchronized void invalidateRange() {
+        hasRange = false;
+    }
+
+    private synchronized void findRange() {
+        if (hasRange) {
+            return;
+        }
+        // Math.min and Math.max, like the streams used by Image, propagate NaN
+        minimum = Double.POSITIVE_INFINITY;
+        maximum = Double.NEGATIVE_INFINITY;
+        for (int tileY = 0; tileY < tilesDown; tileY++) {
+            RenderContext.checkpoint();
+            for (int tileX = 0; tileX < tilesAcross; tileX++) {
+                for (final double value : store.get(this, tileX, tileY)) {
+                    minimum = Math.min(minimum, value);
+                    maximum = Math.max(maximum, value);
+                }
+            }
+        }
+        hasRange = true;
+    }
+
+    private int getTileWidth(final int tileX) {
+        return Math.min(tileSize, width - tileX * tileSize);
+    }
+
+    private int getTileHeight(final int tileY) {
+        return Math.min(tileSize, height - tileY * tileSize);
+    }
+
+    /**
+     * Reads a tile from the scratch file. Tiles that have never been stored are all zeros.
+     */
+    double[] load(final int tileX, final int tileY) {
+        final double[] data = new double[getTileWidth(tileX) * getTileHeight(tileY) * COMPONENTS];
+        final DoubleBuffer tile = stripe(tileY).duplicate();
+        tile.position(tileX * tileSize * getTileHeight(tileY) * COMPONENTS);
+        tile.get(data);
+        return data;
+    }
+
+    /**
+     * Writes a tile to the scratch file.
+     */
+    void store(final int tileX, final int tileY, final double[] data) {
+        final DoubleBuffer tile = stripe(tileY).duplicate();
+        tile.position(tileX * tileSize * getTileHeight(tileY) * COMPONENTS);
+        tile.put(data);
+    }
+
+    private DoubleBuffer stripe(final int tileY) {
+        // Not locked on the image, since the store evicts tiles (and so maps stripes) while holding its own lock
+        synchronized (stripes) {
+            return stripes[tileY] == null ? map(tileY) : stripes[tileY];
+        }
+    }
+
+    private DoubleBuffer map(final int tileY) {
+        final long stripeBytes = (long) width * getTileHeight(tileY) * COMPONENTS * Double.BYTES;
+        final long offset = (long) tileY * tileSize * width * COMPONENTS * Double.BYTES;
+        try {
+            // Mapping past the end of the file extends it with zeros
+            stripes[tileY] = channel.map(MapMode.READ_WRITE, offset, stripeBytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(String.format("Error mapping scratch file: '%s'", file.getPath()), e);
+        }
+        return stripes[tileY];
+    }
+
+    /**
+     * Drops the image's tiles and deletes its scratch file. The mapped memory itself is released once the image is garbage collected.
+     */
+    @Override
+    public void close() {
+        store.discard(this);
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            // The file is deleted regardless
+        }
+        file.delete();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TiledImage [%dx%d, %d tiles, file=%s]", width, height, tilesAcross * tilesDown, file.getName());
+    }
+}
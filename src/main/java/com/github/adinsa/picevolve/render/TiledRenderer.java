@@ -0,0 +1,232 @@
+package com.github.adinsa.picevolve.render;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Stack;
+import java.util.zip.Deflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.expression.Argument;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
+import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
+import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
+import com.github.adinsa.picevolve.visitor.Visitor;
+
+/**
+ * Renders expressions to PNG without holding any whole image in memory, for resolutions where the intermediate images of an expression would not
+ * fit in the heap.
+ *
+ * <p>
+ * Each intermediate image is a {@link TiledImage} backed by a scratch file, and each function is evaluated a tile at a time by
+ * {@link Function#interpret(List, TileStore)}, with only the most recently used tiles held in memory. Unlike {@link StreamingRenderer}, this works
+ * for any expression, including convolutions and {@code warped-noise}, but every intermediate image goes through the scratch files. The result is
+ * pixel-for-pixel the same as {@link RenderJob#render(Expression, int, int)}.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class TiledRenderer {
+
+    private static final Logger logger = LoggerFactory.getLogger(TiledRenderer.class);
+
+    private final File scratchDirectory;
+    private final int tileSize;
+    private final long cacheBytes;
+    private final long minPixels;
+    private final PngEncoder png;
+
+    public TiledRenderer(final File scratchDirectory, final int tileSize, final long cacheBytes, final long minPixels) {
+        this(scratchDirectory, tileSize, cacheBytes, minPixels, new PngEncoder(Deflater.DEFAULT_COMPRESSION, null));
+    }
+
+    /**
+     * @param scratchDirectory
+     *            directory of the scratch files, which are deleted once each render completes
+     * @param tileSize
+     *            width and height of each tile
+     * @param cacheBytes
+     *            maximum total size of the tiles held in memory by one render
+     * @param minPixels
+     *            smallest image (in pixels) rendered in tiles; smaller ones are rendered whole
+     * @param png
+     *            encoder of the result
+     */
+    public TiledRenderer(final File scratchDirectory, final int tileSize, final long cacheBytes, final long minPixels, final PngEncoder png) {
+        this.scratchDirectory = scratchDirectory;
+        this.tileSize = tileSize;
+        this.cacheBytes = cacheBytes;
+        this.minPixels = minPixels;
+        this.png = png;
+    }
+
+    /**
+     * Should the render be tiled, i.e. is it large enough and to PNG?
+     *
+     * @param expression
+     * @param width
+     * @param height
+     * @param formatName
+     * @return
+     */
+    public boolean accepts(final Expression expression, final int width, final int height, final String formatName) {
+        return (long) width * height >= minPixels && "png".equalsIgnoreCase(formatName);
+    }
+
+    /**
+     * Renders the expression as a PNG into the given file, on the current thread (with tiles in parallel if the job has a row pool).
+     *
+     * @param job
+     * @param expression
+     * @param width
+     * @param height
+     * @param file
+     * @throws IOException
+     * @throws RenderCancelledException
+     *             if the job is cancelled or its deadline passes before the render completes
+     */
+    public void render(final RenderJob job, final Expression expression, final int width, final int height, final File file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            render(job, expression, width, height, out);
+        }
+    }
+
+    /**
+     * Renders the expression as a PNG into the given stream.
+     *
+     * @param job
+     * @param expression
+     * @param width
+     * @param height
+     * @param out
+     * @throws IOException
+     * @throws RenderCancelledException
+     *             if the job is cancelled or its deadline passes before the render completes
+     */
+    public void render(final RenderJob job, final Expression expression, final int width, final int height, final OutputStream out)
+            throws IOException {
+
+        try (TileStore store = new TileStore(scratchDirectory, tileSize, cacheBytes)) {
+            job.run(() -> {
+                final TiledEvaluator evaluator = new TiledEvaluator(store, width, height);
+                expression.accept(evaluator);
+                try (TiledImage image = evaluator.getImage()) {
+                    write(image, out);
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            });
+            logger.debug("{}", store);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Normalizes the image between 0 and 1 and encodes it a row of tiles at a time.
+     */
+    private void write(final TiledImage image, final OutputStream out) throws IOException {
+        final double minimum = image.getMinimum();
+        final double maximum = image.getMaximum();
+        final PngStreamWriter writer = png.open(out, image.getWidth(), image.getHeight());
+        for (int top = 0; top < image.getHeight(); top += image.getTileSize()) {
+            RenderContext.checkpoint();
+            final int rows = Math.min(image.getTileSize(), image.getHeight() - top);
+            final Image band = image.read(0, top, image.getWidth(), rows);
+            final Image scaled = band.scaled(minimum, maximum, 0, 1);
+            band.release();
+            writer.writeRows(scaled.asBufferedImage());
+            scaled.release();
+        }
+        writer.close();
+    }
+
+    /**
+     * Evaluates an expression into tiled images, closing each intermediate image once the function using it has been evaluated.
+     */
+    private static final class TiledEvaluator implements Visitor {
+
+        private final Stack<TiledImage> imageStack = new Stack<>();
+        private final TileStore store;
+        private final int width;
+        private final int height;
+
+        TiledEvaluator(final TileStore store, final int width, final int height) {
+            this.store = store;
+            this.width = width;
+            this.height = height;
+        }
+
+        TiledImage getImage() {
+            return imageStack.pop();
+        }
+
+        @Override
+        public void visit(final ScalarNode scalarNode) {
+            final Argument<?> argument = new Argument.ScalarArgument(scalarNode.getValue());
+            imageStack.push(fill((left, top, tileWidth, tileHeight) -> argument.toImage(tileWidth, tileHeight)));
+        }
+
+        @Override
+        public void visit(final VectorNode vectorNode) {
+            final Argument<?> argument = new Argument.VectorArgument(vectorNode.getValue());
+            imageStack.push(fill((left, top, tileWidth, tileHeight) -> argument.toImage(tileWidth, tileHeight)));
+        }
+
+        @Override
+        public void visit(final VariableNode variableNode) {
+            final Argument.VariableArgument argument = new Argument.VariableArgument(variableNode.getValue());
+            imageStack.push(fill((left, top, tileWidth, tileHeight) -> argument.toImage(width, height, left, top, tileWidth, tileHeight)));
+        }
+
+        @Override
+        public void visit(final Function function) {
+            RenderContext.checkpoint();
+            final List<TiledImage> children = new ArrayList<>(function.getArity());
+            for (int i = 0; i < function.getArity(); i++) {
+                children.add(imageStack.pop());
+            }
+            try {
+                imageStack.push(function.interpret(children, store));
+            } finally {
+                children.forEach(TiledImage::close);
+            }
+        }
+
+        private TiledImage fill(final TileSource source) {
+            RenderContext.checkpoint();
+            final TiledImage image = store.create(width, height);
+            final int size = image.getTileSize();
+            RenderContext.rows(image.getTilesAcross() * image.getTilesDown()).forEach(i -> {
+                final int tileX = i % image.getTilesAcross();
+                final int tileY = i / image.getTilesAcross();
+                final int left = tileX * size;
+                final int top = tileY * size;
+                final Image tile = source.get(left, top, Math.min(size, width - left), Math.min(size, height - top));
+                image.write(tileX, tileY, tile);
+                tile.release();
+            });
+            return image;
+        }
+    }
+
+    /**
+     * Produces the pixels of one tile of a terminal
+     */
+    private interface TileSource {
+
+        Image get(int left, int top, int tileWidth, int tileHeight);
+    }
+}
@@ -11,9 +11,11 @@ import com.github.adinsa.picevolve.expression.Function;
 import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
 import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
 import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
+import com.github.adinsa.picevolve.render.RenderContext;
 
 /**
- * {@link Visitor} implementation that evaluates an {@link Expression} into an {@link Image}
+ * {@link Visitor} implementation that evaluates an {@link Expression} into an {@link Image}. Checks for cancellation of the current render (see
+ * {@link RenderContext}) before evaluating each node, and releases each intermediate image once it has been used.
  *
  * @author amar
  *
@@ -40,27 +42,47 @@ public class EvaluatorVisitor implements Visitor {
 
     @Override
     public void visit(final ScalarNode scalarNode) {
+        RenderContext.checkpoint();
         imageStack.push(new Argument.ScalarArgument(scalarNode.getValue()).toImage(width, height));
     }
 
     @Override
     public void visit(final VariableNode variableNode) {
+        RenderContext.checkpoint();
         imageStack.push(new Argument.VariableArgument(variableNode.getValue()).toImage(width, height));
     }
 
     @Override
     public void visit(final VectorNode vectorNode) {
+        RenderContext.checkpoint();
         imageStack.push(new Argument.VectorArgument(vectorNode.getValue()).toImage(width, height));
     }
 
     @Override
     public void visit(final Function function) {
+        RenderContext.checkpoint();
         final List<Argument<?>> children = new ArrayList<>(function.getArity());
         for (int i = 0; i < function.getArity(); i++) {
             final Image child = imageStack.pop();
             children.add(new Argument.ImageArgument(child));
         }
-        imageStack.push(function.interpret(width, height, children));
+        final Image image = function.interpret(width, height, children);
+        release(children, image);
+        imageStack.push(image);
+    }
+
+    /**
+     * Releases the arguments of a function once it has been evaluated (unless the function returned one of them), see {@link Image#release()}.
+     *
+     * @param arguments
+     * @param result
+     */
+    public static void release(final List<Argument<?>> arguments, final Image result) {
+        for (final Argument<?> argument : arguments) {
+            if (argument.getValue() != result) {
+                ((Image) argument.getValue()).release();
+            }
+        }
     }
 
 }
@@ -13,7 +13,8 @@ import com.github.adinsa.picevolve.random.Random;
 import com.github.adinsa.picevolve.random.RandomImpl;
 
 /**
- * {@link Visitor} implementation that applies genetic {@link Mutation} operations on an {@link Expression} tree
+ * {@link Visitor} implementation that applies genetic {@link Mutation} operations on an {@link Expression} tree. A terminal at the root is mutated
+ * by replacing the root, so use {@link #mutate(Expression)} to get the mutated tree.
  *
  * @author amar
  *
@@ -27,6 +28,11 @@ public class MutationVisitor implements Visitor {
     private final Random random;
     private final double globalMutationFrequency;
 
+    /**
+     * Root of the tree being mutated by {@link #mutate(Expression)}
+     */
+    private Expression root;
+
     public MutationVisitor() {
         this(new RandomImpl(), DEFAULT_GLOBAL_MUTATION_FREQUENCY);
     }
@@ -44,6 +50,19 @@ public class MutationVisitor implements Visitor {
         this.globalMutationFrequency = globalMutationFrequency;
     }
 
+    /**
+     * Mutates the expression in place, and returns the root of the mutated tree: the expression itself, or the node that replaced it if it was
+     * a terminal.
+     *
+     * @param expression
+     * @return
+     */
+    public Expression mutate(final Expression expression) {
+        root = expression;
+        expression.accept(this);
+        return root;
+    }
+
     @Override
     public void visit(final ScalarNode scalarNode) {
 
@@ -53,7 +72,7 @@ public class MutationVisitor implements Visitor {
 
             logger.debug(mutation.getClass().getSimpleName() + ": {}", scalarNode);
 
-            mutation.mutate(scalarNode);
+            replaced(scalarNode, mutation.mutate(scalarNode, random));
 
         }
     }
@@ -67,7 +86,7 @@ public class MutationVisitor implements Visitor {
 
             logger.debug(mutation.getClass().getSimpleName() + ": {}", vectorNode);
 
-            mutation.mutate(vectorNode);
+            replaced(vectorNode, mutation.mutate(vectorNode, random));
         }
     }
 
@@ -80,7 +99,7 @@ public class MutationVisitor implements Visitor {
 
             logger.debug(mutation.getClass().getSimpleName() + ": {}", variableNode);
 
-            mutation.mutate(variableNode);
+            replaced(variableNode, mutation.mutate(variableNode, random));
         }
     }
 
@@ -93,7 +112,16 @@ public class MutationVisitor implements Visitor {
 
             logger.debug(mutation.getClass().getSimpleName() + ": {}", functionNode);
 
-            mutation.mutate(functionNode);
+            mutation.mutate(functionNode, random);
+        }
+    }
+
+    /**
+     * Keeps track of the root when a mutation replaces it.
+     */
+    private void replaced(final Expression node, final Expression replacement) {
+        if (node == root) {
+            root = replacement;
         }
     }
 }
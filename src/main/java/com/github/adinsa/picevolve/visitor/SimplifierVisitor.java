@@ -0,0 +1,323 @@
+package com.github.adinsa.picevolve.visitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+import com.github.adinsa.picevolve.Image.Pixel;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.Function;
+import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
+import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
+import com.github.adinsa.picevolve.expression.Terminal.VectorNode;
+
+/**
+ * {@link Visitor} implementation that rewrites an {@link Expression} tree into an equivalent, usually smaller one that evaluates to exactly the
+ * same image.
+ *
+ * <p>
+ * The tree is rewritten bottom-up in place, and the result is returned by {@link #getExpression()}. Two kinds of rewrites are applied:
+ * </p>
+ * <ul>
+ * <li>Constant folding: a function whose arguments are all constants is evaluated once and replaced by a scalar or vector terminal. This is only
+ * done for functions that map a constant image to a constant image (i.e. not warped-noise, blur, sharpen or emboss), and only if the value
+ * survives the terminal's string form, which is what gets saved to the library.</li>
+ * <li>Identities such as {@code (abs (abs A)) -> (abs A)}, {@code (min A A) -> A} and {@code (/ 0 A) -> 1}. Identities that do not hold for every
+ * value (e.g. {@code (- A A) -> 0} fails for infinite A) are guarded by facts inferred for each subtree: a bound on its magnitude, and whether it
+ * is non-negative.</li>
+ * </ul>
+ *
+ * <p>
+ * Note that functions receive their arguments in reverse order, so {@code (- A B)} evaluates to {@code B - A}, and {@code (/ A B)} to
+ * {@code B / A} (or 1 where A is 0). NaN payloads are not preserved, which is safe because the float-* functions (the only ones that look at the
+ * bits of a value) read them through {@link Double#doubleToLongBits(double)}, which collapses every NaN into one.
+ * </p>
+ *
+ * @author amar
+ *
+ */
+public class SimplifierVisitor implements Visitor {
+
+    /**
+     * Functions whose output for a constant image is not necessarily constant
+     */
+    private static final Set<Class<? extends Function>> NON_CONSTANT_FUNCTIONS = new HashSet<>(
+            Arrays.asList(Function.WarpedNoise.class, Function.Blur.class, Function.Sharpen.class, Function.Emboss.class));
+
+    private static final double UNBOUNDED = Double.POSITIVE_INFINITY;
+    private static final double COLOR_BOUND = 255;
+    private static final double LOG_BOUND = 745;
+    private static final double ROUND_BOUND = 2147483648.0;
+
+    private final Stack<Simplified> stack = new Stack<>();
+
+    /**
+     * Returns the simplified tree, which has no parent.
+     *
+     * @return
+     */
+    public Expression getExpression() {
+        if (stack.size() != 1) {
+            throw new IllegalStateException("Simplification not complete");
+        }
+        final Expression expression = stack.pop().expression;
+        return expression.getParent() == null ? expression : expression.deepCopy();
+    }
+
+    @Override
+    public void visit(final ScalarNode scalarNode) {
+        stack.push(constant(scalarNode, scalarNode.getValue(), scalarNode.getValue(), scalarNode.getValue()));
+    }
+
+    @Override
+    public void visit(final VariableNode variableNode) {
+        // Variables are scaled to [-1, 1]
+        stack.push(new Simplified(variableNode, null, 1, false));
+    }
+
+    @Override
+    public void visit(final VectorNode vectorNode) {
+        final List<Double> value = vectorNode.getValue();
+        stack.push(constant(vectorNode, value.get(0), value.get(1), value.get(2)));
+    }
+
+    @Override
+    public void visit(final Function function) {
+
+        final Simplified[] args = new Simplified[function.getArity()];
+        boolean changed = false;
+        for (int i = args.length - 1; i >= 0; i--) {
+            args[i] = stack.pop();
+            changed |= args[i].expression != function.getChildren().get(i);
+        }
+        if (changed) {
+            final List<Expression> children = new ArrayList<>(args.length);
+            for (final Simplified arg : args) {
+                children.add(arg.expression);
+            }
+            function.setChildren(children);
+        }
+
+        stack.push(simplify(function, args));
+    }
+
+    private Simplified simplify(final Function function, final Simplified[] args) {
+
+        final Simplified rewritten = rewrite(function, args);
+        if (rewritten != null) {
+            return rewritten;
+        }
+
+        if (!NON_CONSTANT_FUNCTIONS.contains(function.getClass()) && Arrays.stream(args).allMatch(arg -> arg.value != null)) {
+            final EvaluatorVisitor evaluator = new EvaluatorVisitor(1, 1);
+            function.accept(evaluator);
+            final Pixel pixel = evaluator.getImage().get(0, 0);
+            final Simplified folded = constant(pixel.r(), pixel.g(), pixel.b());
+            if (folded != null) {
+                return folded;
+            }
+        }
+
+        return new Simplified(function, null, bound(function, args), isNonNegative(function, args));
+    }
+
+    /**
+     * Applies the first identity that matches the given function and its (already simplified) arguments, or returns null if there is none.
+     */
+    private Simplified rewrite(final Function function, final Simplified[] args) {
+
+        if (function instanceof Function.Abs) {
+            if (args[0].expression instanceof Function.Abs || args[0].nonNegative) {
+                return args[0];
+            }
+        } else if (function instanceof Function.Plus) {
+            for (int i = 0; i < 2; i++) {
+                // Adding -0 never changes a value, and adding +0 only changes -0
+                if (args[i].is(-0.0) || args[i].is(0.0) && args[1 - i].nonNegative) {
+                    return args[1 - i];
+                }
+            }
+        } else if (function instanceof Function.Minus) {
+            if (args[0].is(0.0)) {
+                return args[1];
+            }
+            if (args[0].isFinite() && args[0].sameAs(args[1])) {
+                return constant(0.0, 0.0, 0.0);
+            }
+        } else if (function instanceof Function.Multiply) {
+            for (int i = 0; i < 2; i++) {
+                if (args[i].is(1.0)) {
+                    return args[1 - i];
+                }
+                // 0 * -1 is -0 and 0 * Infinity is NaN
+                if (args[i].is(0.0) && args[1 - i].nonNegative && args[1 - i].isFinite()) {
+                    return constant(0.0, 0.0, 0.0);
+                }
+            }
+        } else if (function instanceof Function.Divide) {
+            if (args[0].isZero()) {
+                return constant(1.0, 1.0, 1.0);
+            }
+            if (args[0].is(1.0)) {
+                return args[1];
+            }
+            if (args[0].isFinite() && args[0].sameAs(args[1])) {
+                return constant(1.0, 1.0, 1.0);
+            }
+        } else if (function instanceof Function.Mod) {
+            if (args[0].isZero()) {
+                return constant(1.0, 1.0, 1.0);
+            }
+        } else if (function instanceof Function.Min || function instanceof Function.Max || function instanceof Function.FloatAnd
+                || function instanceof Function.FloatOr) {
+            if (args[0].sameAs(args[1])) {
+                return args[0];
+            }
+        } else if (function instanceof Function.FloatXor || function instanceof Function.IntXor) {
+            if (args[0].sameAs(args[1])) {
+                return constant(0.0, 0.0, 0.0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an upper bound on the magnitude of the function's value, which is infinite if the value may be infinite or NaN.
+     */
+    private static double bound(final Function function, final Simplified[] args) {
+
+        if (function instanceof Function.Plus || function instanceof Function.Minus) {
+            return Math.nextUp(args[0].bound + args[1].bound);
+        } else if (function instanceof Function.Multiply) {
+            return Math.nextUp(args[0].bound * args[1].bound);
+        } else if (function instanceof Function.Abs) {
+            return args[0].bound;
+        } else if (function instanceof Function.Min || function instanceof Function.Max) {
+            return Math.max(args[0].bound, args[1].bound);
+        } else if (function instanceof Function.Sine || function instanceof Function.Cosine) {
+            return args[0].isFinite() ? 1 : UNBOUNDED;
+        } else if (function instanceof Function.Tangent) {
+            return args[0].isFinite() ? Double.MAX_VALUE : UNBOUNDED;
+        } else if (function instanceof Function.Expt) {
+            return args[0].isFinite() ? Math.nextUp(Math.exp(args[0].bound)) : UNBOUNDED;
+        } else if (function instanceof Function.Log) {
+            return args[0].isFinite() ? LOG_BOUND : UNBOUNDED;
+        } else if (function instanceof Function.Round) {
+            return ROUND_BOUND;
+        } else if (function instanceof Function.Mod) {
+            return args[0].isFinite() && args[1].isFinite() ? Math.max(1, args[1].bound) : UNBOUNDED;
+        } else if (isColorValued(function)) {
+            return COLOR_BOUND;
+        }
+        return UNBOUNDED;
+    }
+
+    /**
+     * Is every value of the function either positive or +0 (so never negative, -0 or NaN)?
+     */
+    private static boolean isNonNegative(final Function function, final Simplified[] args) {
+
+        if (function instanceof Function.Plus || function instanceof Function.Min || function instanceof Function.Max) {
+            return args[0].nonNegative && args[1].nonNegative;
+        } else if (function instanceof Function.Multiply) {
+            return args[0].nonNegative && args[1].nonNegative && args[0].isFinite() && args[1].isFinite();
+        } else if (function instanceof Function.Abs || function instanceof Function.Expt) {
+            return args[0].nonNegative || args[0].isFinite();
+        } else if (function instanceof Function.Round) {
+            return args[0].nonNegative;
+        } else if (function instanceof Function.Mod) {
+            return args[1].nonNegative && args[1].isFinite() && args[0].isFinite();
+        }
+        return isColorValued(function);
+    }
+
+    /**
+     * Does the function always produce integer color values between 0 and 255?
+     */
+    private static boolean isColorValued(final Function function) {
+        return function instanceof Function.IntAnd || function instanceof Function.IntOr || function instanceof Function.IntXor
+                || function instanceof Function.Blur || function instanceof Function.Sharpen || function instanceof Function.Emboss;
+    }
+
+    /**
+     * Returns a new terminal for the given constant color, or null if it cannot be represented exactly.
+     */
+    private static Simplified constant(final double r, final double g, final double b) {
+        if (Double.valueOf(r).equals(g) && Double.valueOf(r).equals(b)) {
+            return constant(new ScalarNode(r), r, g, b);
+        }
+        if (survivesVectorString(r) && survivesVectorString(g) && survivesVectorString(b)) {
+            return constant(new VectorNode(new ArrayList<>(Arrays.asList(r, g, b))), r, g, b);
+        }
+        return null;
+    }
+
+    private static Simplified constant(final Expression terminal, final double r, final double g, final double b) {
+        double bound = 0;
+        boolean nonNegative = true;
+        for (final double component : new double[] { r, g, b }) {
+            bound = Math.max(bound, Double.isNaN(component) ? UNBOUNDED : Math.abs(component));
+            nonNegative &= !Double.isNaN(component) && Double.compare(component, 0.0) >= 0;
+        }
+        return new Simplified(terminal, new double[] { r, g, b }, bound, nonNegative);
+    }
+
+    /**
+     * Does the value parse back unchanged from the fixed-point form used by {@link VectorNode#toString()}?
+     */
+    private static boolean survivesVectorString(final double component) {
+        try {
+            return Double.valueOf(String.format("%f", component)).equals(component);
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A simplified subtree along with the facts known about its value
+     */
+    private static final class Simplified {
+
+        private final Expression expression;
+
+        /**
+         * The (r, g, b) value if the subtree is a constant, otherwise null
+         */
+        private final double[] value;
+
+        private final double bound;
+        private final boolean nonNegative;
+
+        Simplified(final Expression expression, final double[] value, final double bound, final boolean nonNegative) {
+            this.expression = expression;
+            this.value = value;
+            this.bound = bound;
+            this.nonNegative = nonNegative;
+        }
+
+        boolean isFinite() {
+            return bound < UNBOUNDED;
+        }
+
+        /**
+         * Is this a constant whose components all equal {@code constant}, with the same sign if zero?
+         */
+        boolean is(final double constant) {
+            return value != null && Arrays.stream(value).allMatch(component -> Double.valueOf(constant).equals(component));
+        }
+
+        /**
+         * Is this a constant whose components are all +0 or -0?
+         */
+        boolean isZero() {
+            return value != null && Arrays.stream(value).allMatch(component -> component == 0);
+        }
+
+        boolean sameAs(final Simplified other) {
+            return expression.structurallyEquals(other.expression);
+        }
+    }
+}
@@ -1,16 +1,34 @@
 package com.github.adinsa.picevolve;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
 import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.expression.ExpressionLimits;
 import com.github.adinsa.picevolve.expression.Function;
 import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
 import com.github.adinsa.picevolve.expression.Terminal.VariableNode;
 import com.github.adinsa.picevolve.expression.Variable;
+import com.github.adinsa.picevolve.random.RandomImpl;
+import com.github.adinsa.picevolve.render.RenderFuture;
 
 public class PicEvolveTest {
 
@@ -37,4 +55,211 @@ public class PicEvolveTest {
         assertEquals(Variable.X, x.getValue());
         assertEquals(0.3, scalar.getValue(), 0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExpressionMetadata() {
+
+        final PicEvolve picEvolve = new PicEvolve();
+
+        final Expression expr = picEvolve.parse("(abs (- x 0.3))");
+        final Expression minus = expr.getChildren().get(0);
+
+        assertEquals(4, expr.getSize());
+        assertEquals(3, expr.getHeight());
+        assertEquals(0, expr.getDepth());
+        assertEquals(2, minus.getChildren().get(1).getDepth());
+        assertEquals(EnumSet.of(Variable.X), expr.getVariables());
+
+        minus.replaceChild(minus.getChildren().get(1), picEvolve.parse("(+ y (sin x))"));
+
+        assertEquals("(abs (- X (+ Y (sin X))))", expr.toString());
+        assertEquals(7, expr.getSize());
+        assertEquals(5, expr.getHeight());
+        assertEquals(4, minus.getChildren().get(1).getChildren().get(1).getChildren().get(0).getDepth());
+        assertEquals(EnumSet.of(Variable.X, Variable.Y), expr.getVariables());
+        assertTrue(minus.getChildren().get(1).dependsOn(Variable.Y));
+    }
+
+    @Test
+    public void testSeededRunsAreReproducible() {
+
+        final PicEvolve first = new PicEvolve(new RandomImpl(42));
+        final PicEvolve second = new PicEvolve(new RandomImpl(42));
+
+        final List<Expression> firstPopulation = first.initializePopulation(5);
+        final List<Expression> secondPopulation = second.initializePopulation(5);
+        assertEquals(firstPopulation.toString(), secondPopulation.toString());
+
+        assertEquals(first.mutate(firstPopulation.get(0), 5).toString(), second.mutate(secondPopulation.get(0), 5).toString());
+        assertEquals(first.crossover(firstPopulation.get(1), firstPopulation.get(2), 5).toString(),
+                second.crossover(secondPopulation.get(1), secondPopulation.get(2), 5).toString());
+    }
+
+    @Test
+    public void testOffspringAreDistinct() {
+
+        final PicEvolve picEvolve = new PicEvolve(new RandomImpl(7));
+        final Expression parent = picEvolve.parse("(+ (abs X) (sin Y))");
+
+        final OffspringGenerator.Result result = picEvolve.generateMutants(parent, 20);
+        final List<Expression> offspring = result.getOffspring();
+
+        assertEquals(20, offspring.size());
+        assertEquals(result.getAttempts(), offspring.size() + result.getRejected());
+        for (int i = 0; i < offspring.size(); i++) {
+            assertFalse(offspring.get(i).structurallyEquals(parent));
+            for (int j = i + 1; j < offspring.size(); j++) {
+                assertFalse(offspring.get(i).structurallyEquals(offspring.get(j)));
+            }
+        }
+
+        // A parent that is a single terminal (e.g. a simplified "0.0") is mutated by replacing its root
+        final List<Expression> fromTerminal = picEvolve.mutate(picEvolve.parse("0.0"), 5);
+        assertEquals(5, fromTerminal.size());
+        for (final Expression expr : fromTerminal) {
+            assertFalse(expr.toString().equals("0.0"));
+        }
+    }
+
+    @Test
+    public void testExpressionLimits() {
+
+        final ExpressionLimits limits = new ExpressionLimits(20, 6, 2, 4);
+        final RandomImpl random = new RandomImpl(3, limits);
+        final PicEvolve picEvolve = new PicEvolve(random, limits);
+
+        for (final Expression expr : picEvolve.initializePopulation(50)) {
+            assertTrue(expr.toString(), limits.permits(expr));
+            assertTrue(expr.toString(), expr.getHeight() >= 2);
+        }
+
+        final Expression deep = picEvolve.parse("(abs (abs (abs (abs (abs (abs (abs (abs X))))))))");
+        limits.repair(deep, random::nextTerminal);
+        assertEquals(6, deep.getHeight());
+        assertEquals(6, deep.getSize());
+
+        final Expression parent = picEvolve.parse("(+ (abs X) (sin Y))");
+        for (final Expression expr : picEvolve.crossover(parent, picEvolve.parse("(* X (cos (abs Y)))"), 10)) {
+            assertTrue(expr.toString(), limits.permits(expr));
+        }
+    }
+
+    @Test
+    public void testSizeFairCrossover() {
+
+        final PicEvolve picEvolve = new PicEvolve(new RandomImpl(11));
+
+        // Subtrees of dad have sizes 9, 5, 4, 3, 2 and 1
+        final Expression mom = picEvolve.parse("(+ (sin X) (abs (* X Y)))");
+        final Expression momSubtree = mom.getChildren().get(1);
+        final Expression dad = picEvolve.parse("(* (sin (abs X)) (cos (+ Y (log X))))");
+        assertEquals(4, momSubtree.getSize());
+
+        // Half to twice the size of the 4 node subtree it replaces
+        assertDonorSizes(mom, momSubtree, dad, ExpressionLimits.DEFAULT, 2, 8, 5);
+        // Capped so that the 3 remaining nodes of mom plus the donor fit in 6
+        assertDonorSizes(mom, momSubtree, dad, new ExpressionLimits(6, 10, 2, 5), 2, 3, 3);
+    }
+
+    private void assertDonorSizes(final Expression mom, final Expression momSubtree, final Expression dad, final ExpressionLimits limits,
+            final int minSize, final int maxSize, final int largestDonor) {
+        int smallest = Integer.MAX_VALUE;
+        int largest = 0;
+        for (int seed = 0; seed < 200; seed++) {
+            final int size = PicEvolve.nextSizeFairDonor(mom, momSubtree, dad, limits, new RandomImpl(seed)).getSize();
+            assertTrue(String.valueOf(size), size >= minSize && size <= maxSize);
+            smallest = Math.min(smallest, size);
+            largest = Math.max(largest, size);
+        }
+        // The smallest and largest donors dad has within the window are both picked
+        assertEquals(minSize, smallest);
+        assertEquals(largestDonor, largest);
+    }
+
+    @Test
+    public void testNearDuplicateOffspringAreRejected() {
+
+        final Fingerprinter fingerprinter = Fingerprinter.DEFAULT;
+        final PicEvolve picEvolve = new PicEvolve(new RandomImpl(13), new OffspringGenerator(fingerprinter), ExpressionLimits.DEFAULT);
+
+        // At 16x16 the two only differ between sampled values of X
+        assertTrue(fingerprinter.fingerprint(picEvolve.parse("(round X)")).equals(fingerprinter.fingerprint(picEvolve.parse("(round (* X 0.9))"))));
+        assertFalse(fingerprinter.fingerprint(picEvolve.parse("(round X)")).equals(fingerprinter.fingerprint(picEvolve.parse("(abs X)"))));
+
+        final Expression parent = picEvolve.parse("(+ (abs X) (sin Y))");
+        final OffspringGenerator.Result result = picEvolve.generateMutants(parent, 10);
+        final List<Expression> offspring = result.getOffspring();
+
+        assertEquals(result.getAttempts(), offspring.size() + result.getRejected());
+        for (int i = 0; i < offspring.size(); i++) {
+            assertFalse(fingerprinter.fingerprint(offspring.get(i)).equals(fingerprinter.fingerprint(parent)));
+            for (int j = i + 1; j < offspring.size(); j++) {
+                assertFalse(fingerprinter.fingerprint(offspring.get(i)).equals(fingerprinter.fingerprint(offspring.get(j))));
+            }
+        }
+    }
+
+    @Test
+    public void testCostBudget() {
+
+        final PicEvolve picEvolve = new PicEvolve(new RandomImpl(17));
+        final CostModel model = CostModel.DEFAULT;
+
+        final CostModel.Estimate plus = model.estimate(picEvolve.parse("(+ X Y)"));
+        final CostModel.Estimate blur = model.estimate(picEvolve.parse("(blur (+ X Y))"));
+        assertEquals(9, plus.getPixelPasses(), 0);
+        assertTrue(blur.getNanosPerPixel() > 10 * plus.getNanosPerPixel());
+        assertTrue(blur.getAllocatedBytes(200, 200) > plus.getAllocatedBytes(200, 200));
+
+        final double budget = model.estimate(picEvolve.parse("(+ (abs X) (sin Y))")).getNanosPerPixel() * 2;
+        picEvolve.setCostBudget(budget);
+        for (final Expression expr : picEvolve.mutate(picEvolve.parse("(+ (abs X) (sin Y))"), 10)) {
+            assertTrue(expr.toString(), model.estimate(expr).getNanosPerPixel() <= budget);
+        }
+    }
+
+    @Test
+    public void testEvaluateAsync() throws Exception {
+
+        final PicEvolve picEvolve = new PicEvolve(new RandomImpl(5));
+        final List<Expression> population = picEvolve.initializePopulation(6);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Image image = picEvolve.evaluateAsync(population.get(0), 8, 8, executor).get(10, TimeUnit.SECONDS);
+            assertArrayEquals(picEvolve.evaluate(population.get(0), 8, 8).asDoubleArray(), image.asDoubleArray(), 0);
+
+            final Set<Integer> rendered = ConcurrentHashMap.newKeySet();
+            final List<Image> images = picEvolve.evaluateAsync(population, 8, 8, executor, (i, rendering) -> rendered.add(i)).get(10,
+                    TimeUnit.SECONDS);
+            assertEquals(6, images.size());
+            assertEquals(6, rendered.size());
+            for (int i = 0; i < population.size(); i++) {
+                assertArrayEquals(picEvolve.evaluate(population.get(i), 8, 8).asDoubleArray(), images.get(i).asDoubleArray(), 0);
+            }
+
+            // An executor that rejects the third evaluation fails the whole population instead of leaving it pending
+            final AtomicInteger accepted = new AtomicInteger();
+            final Executor rejecting = command -> {
+                if (accepted.incrementAndGet() > 2) {
+                    throw new RejectedExecutionException("Full");
+                }
+                executor.execute(command);
+            };
+            try {
+                picEvolve.evaluateAsync(population, 8, 8, rejecting, (i, rendering) -> {
+                }).get(10, TimeUnit.SECONDS);
+                fail("Expected the rejection");
+            } catch (final ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            final RenderFuture<Image> slow = picEvolve.evaluateAsync(picEvolve.parse("(blur (sin (* X Y)))"), 2000, 2000, executor);
+            assertTrue(slow.cancel(true));
+            assertTrue(slow.isCancelled());
+            assertTrue(slow.getToken().isCancelled());
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.adinsa.picevolve.cli;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.adinsa.picevolve.library.Library;
+
+public class AppTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMontageOfEmptyPopulation() throws Exception {
+
+        final File images = new File(folder.getRoot(), "images");
+        final App app = new App(configuration(images, true));
+        try {
+            // Nothing saved yet, so the loaded page is empty
+            app.load();
+        } finally {
+            app.shutdown();
+        }
+        assertFalse(new File(images, "montage.png").exists());
+    }
+
+    @Test
+    public void testMontageOfPopulation() throws Exception {
+
+        final File images = new File(folder.getRoot(), "images");
+        final App app = new App(configuration(images, true));
+        try {
+            app.init(3);
+        } finally {
+            app.shutdown();
+        }
+        assertTrue(new File(images, "montage.png").isFile());
+    }
+
+    @Test
+    public void testLoadSkipsBadEntries() throws Exception {
+
+        final File libraryFile = new File(folder.getRoot(), "library.dat");
+        try (Library library = Library.open(libraryFile)) {
+            library.save("(+ X Y)");
+            library.save("(cosine X)");
+            library.save("(sin Y)");
+        }
+
+        final File images = new File(folder.getRoot(), "images");
+        final App app = new App(configuration(images, false));
+        try {
+            // Past the end, and far enough that the first index would overflow an int
+            app.page(Integer.MAX_VALUE);
+            app.load();
+        } finally {
+            app.shutdown();
+        }
+        assertTrue(new File(images, "0.png").isFile());
+        assertFalse(new File(images, "1.png").exists());
+        assertTrue(new File(images, "2.png").isFile());
+    }
+
+    private Configuration configuration(final File images, final boolean montage) throws Exception {
+        final Properties overrides = new Properties();
+        overrides.setProperty("images.dir", images.getPath());
+        overrides.setProperty("library.file", new File(folder.getRoot(), "library.dat").getPath());
+        overrides.setProperty("render.cache.dir", new File(folder.getRoot(), "cache").getPath());
+        overrides.setProperty("render.tiled.scratch.dir", folder.getRoot().getPath());
+        overrides.setProperty("preview.montage", String.valueOf(montage));
+        overrides.setProperty("preview.width", "8");
+        overrides.setProperty("preview.height", "8");
+        overrides.setProperty("cost.calibrate", "false");
+        return new Configuration(overrides);
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.adinsa.picevolve.expression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.adinsa.picevolve.PicEvolve;
+
+public class NodeIndexTest {
+
+    private PicEvolve picEvolve;
+
+    @Before
+    public void setup() {
+        picEvolve = new PicEvolve();
+    }
+
+    @Test
+    public void testPreorderLayout() {
+
+        final Expression expr = picEvolve.parse("(+ (abs X) (- Y 0.5))");
+        final NodeIndex index = expr.getNodeIndex();
+
+        assertEquals(6, index.size());
+        assertEquals("(+ (abs X) (- Y 0.5))", index.get(0).toString());
+        assertEquals("(abs X)", index.get(1).toString());
+        assertEquals("X", index.get(2).toString());
+        assertEquals("(- Y 0.5)", index.get(3).toString());
+
+        assertEquals(6, index.end(0));
+        assertEquals(3, index.end(1));
+        assertEquals(3, index.subtreeSize(3));
+        assertEquals(2, index.depth(5));
+        assertEquals(3, index.indexOf(expr.getChildren().get(1)));
+    }
+
+    @Test
+    public void testSelectionBySizeAndDepth() {
+
+        final NodeIndex index = picEvolve.parse("(+ (abs X) (- Y 0.5))").getNodeIndex();
+
+        assertEquals(3, index.countWithSize(1, 1));
+        assertEquals(2, index.countWithSize(2, 3));
+        for (int k = 0; k < index.countWithSize(2, 3); k++) {
+            final int size = index.subtreeSize(index.withSize(2, 3, k));
+            assertTrue(size >= 2 && size <= 3);
+        }
+        assertEquals(6, index.countWithSize(0, Integer.MAX_VALUE));
+
+        assertEquals(1, index.countAtDepth(0, 0));
+        assertEquals(3, index.countAtDepth(2, 2));
+        assertEquals(0, index.countAtDepth(3, 10));
+        for (int k = 0; k < index.countAtDepth(1, 1); k++) {
+            assertEquals(1, index.depth(index.atDepth(1, 1, k)));
+        }
+    }
+
+    @Test
+    public void testReplacement() {
+
+        final Expression expr = picEvolve.parse("(+ (abs X) (- Y 0.5))");
+        final NodeIndex index = expr.getNodeIndex();
+
+        final Expression copy = index.copyWithReplacement(3, picEvolve.parse("(sin Y)"));
+        assertEquals("(+ (abs X) (sin Y))", copy.toString());
+        assertEquals("(+ (abs X) (- Y 0.5))", expr.toString());
+        assertNull(copy.getParent());
+
+        assertTrue(expr == index.replace(2, picEvolve.parse("0.25")));
+        assertEquals("(+ (abs 0.25) (- Y 0.5))", expr.toString());
+        assertTrue("Index should be discarded after a structural change", index != expr.getNodeIndex());
+        assertEquals(3, expr.getNodeIndex().countWithSize(1, 1));
+    }
+}
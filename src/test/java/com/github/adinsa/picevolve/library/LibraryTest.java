@@ -0,0 +1,177 @@
+package com.github.adinsa.picevolve.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.adinsa.picevolve.PicEvolve;
+
+public class LibraryTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSaveDeleteAndReopen() throws Exception {
+
+        final File file = new File(folder.getRoot(), "library.dat");
+        try (Library library = Library.open(file)) {
+            library.save("(+ X Y)");
+            library.save("(sin X)");
+            library.save("(+ X Y)");
+            library.save("Y");
+            assertEquals(2, library.delete("(+ X Y)"));
+            assertEquals(0, library.delete("(cos X)"));
+            assertEquals(Arrays.asList("(sin X)", "Y"), library.readAll());
+        }
+
+        try (Library library = Library.open(file)) {
+            assertEquals(Arrays.asList("(sin X)", "Y"), library.readAll());
+            library.save("(abs Y)");
+        }
+
+        // Without the saved index, the whole log is replayed
+        Files.delete(new File(folder.getRoot(), "library.dat.idx").toPath());
+        try (Library library = Library.open(file)) {
+            assertEquals(Arrays.asList("(sin X)", "Y", "(abs Y)"), library.readAll());
+            assertEquals(Arrays.asList("Y", "(abs Y)"), library.page(1, 5));
+            assertEquals(Collections.emptyList(), library.page(3, 5));
+
+            final long before = file.length();
+            library.compact();
+            assertTrue(file.length() < before);
+            assertEquals(Arrays.asList("(sin X)", "Y", "(abs Y)"), library.readAll());
+        }
+    }
+
+    @Test
+    public void testTornWriteIsTruncated() throws Exception {
+
+        final File file = new File(folder.getRoot(), "library.dat");
+        final Library library = Library.open(file);
+        library.save("(sin X)");
+        library.save("(cos Y)");
+        // Simulate a crash part way through writing the last record, before the index is saved
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (Library reopened = Library.open(file)) {
+            assertEquals(Collections.singletonList("(sin X)"), reopened.readAll());
+            reopened.save("(abs X)");
+            assertEquals(Arrays.asList("(sin X)", "(abs X)"), reopened.readAll());
+        }
+    }
+
+    @Test
+    public void testCorruptRecordIsQuarantined() throws Exception {
+
+        final File file = new File(folder.getRoot(), "library.dat");
+        try (Library library = Library.open(file)) {
+            library.save("(sin X)");
+            library.save("(cos Y)");
+            library.save("(abs X)");
+            library.save("(+ X Y)");
+            library.delete("(sin X)");
+        }
+        Files.delete(new File(folder.getRoot(), "library.dat.idx").toPath());
+
+        // Flip a bit of the length of the second record (after the 16 byte header and the 28 byte first record)
+        final long offset = 16 + 28;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            final int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x40);
+        }
+
+        final long length = file.length();
+        try (Library reopened = Library.open(file)) {
+            // The records and the tombstone after the corrupt one are still replayed
+            assertEquals(Arrays.asList("(abs X)", "(+ X Y)"), reopened.readAll());
+        }
+        assertEquals(length, file.length());
+        assertEquals(28, Files.size(new File(folder.getRoot(), "library.dat.corrupt-" + offset).toPath()));
+    }
+
+    @Test
+    public void testMigrateTextLibrary() throws Exception {
+
+        final File file = folder.newFile("library.dat");
+        Files.write(file.toPath(), Arrays.asList("(+ X Y)", "", "(sin X) "));
+
+        try (Library library = Library.open(file)) {
+            assertEquals(Arrays.asList("(+ X Y)", "(sin X)"), library.readAll());
+        }
+        assertEquals(Arrays.asList("(+ X Y)", "", "(sin X) "), Files.readAllLines(new File(folder.getRoot(), "library.dat.bak").toPath()));
+    }
+
+    @Test
+    public void testViewDecodesLazily() throws Exception {
+
+        final File file = new File(folder.getRoot(), "library.dat");
+        try (Library library = Library.open(file)) {
+            for (int i = 0; i < 1000; i++) {
+                library.save(String.format("(+ X %d.0)", i));
+            }
+            library.delete("(+ X 0.0)");
+
+            final AtomicInteger decoded = new AtomicInteger();
+            final List<String> view = library.view(expression -> {
+                decoded.incrementAndGet();
+                return expression;
+            });
+            library.save("Y");
+
+            assertEquals(999, view.size());
+            assertEquals(0, decoded.get());
+            assertEquals("(+ X 500.0)", view.get(499));
+            assertEquals("(+ X 500.0)", view.get(499));
+            assertEquals(1, decoded.get());
+            assertEquals(library.page(0, 999), view);
+
+            // Mapped in segments of a few records each, as logs over 2 GB are
+            library.setMaxMappedBytes(100);
+            assertEquals(library.readAll(), library.view(expression -> expression));
+        }
+    }
+
+    @Test
+    public void testImportAndExport() throws Exception {
+
+        final File first = folder.newFile("first.txt");
+        final File second = folder.newFile("second.txt");
+        Files.write(first.toPath(), Arrays.asList("(+ X Y)", "(sin X)", "", "(+ X (sin Y) Y)", "(cosine X)"));
+        Files.write(second.toPath(), Arrays.asList("(+  X   Y)", "(abs Y)", "(sin X) (cos Y)", "(abs (sin X)"));
+
+        final LibraryTransfer transfer = new LibraryTransfer(new PicEvolve());
+        try (Library library = Library.open(new File(folder.getRoot(), "library.dat"))) {
+            library.save("(abs Y)");
+
+            final LibraryTransfer.Report imported = transfer.importFrom(Arrays.asList(first, second), library);
+            assertEquals(8, imported.getRead());
+            assertEquals(2, imported.getWritten());
+            assertEquals(2, imported.getDuplicates());
+            assertEquals(4, imported.getRejected());
+            assertEquals(Arrays.asList(first.getPath() + ":4: '+' takes 2 arguments but was given 3",
+                    first.getPath() + ":5: Unknown function: 'cosine'", second.getPath() + ":3: Expected one expression but found 2",
+                    second.getPath() + ":4: Unbalanced '('"), imported.getRejects());
+            assertEquals(Arrays.asList("(abs Y)", "(+ X Y)", "(sin X)"), library.readAll());
+
+            final File exported = new File(folder.getRoot(), "exported.txt");
+            assertEquals(3, transfer.exportTo(library, exported).getWritten());
+            assertEquals(library.readAll(), Files.readAllLines(exported.toPath()));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.adinsa.picevolve.random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.github.adinsa.picevolve.expression.Terminal.ScalarNode;
+import com.github.adinsa.picevolve.mutation.Mutation.AdjustScalarMutation;
+import com.github.adinsa.picevolve.mutation.MutationFactory;
+import com.github.adinsa.picevolve.mutation.MutationFactory.Sampler;
+
+public class AliasTableTest {
+
+    private static final int COINS = 10000;
+
+    /**
+     * Sweeps every column with evenly spaced coins, which yields each outcome's exact probability (up to the coin resolution).
+     */
+    private static double[] distribution(final AliasTable table, final int outcomes) {
+        final double[] counts = new double[outcomes];
+        for (int column = 0; column < table.size(); column++) {
+            for (int coin = 0; coin < COINS; coin++) {
+                counts[table.sample(column, (coin + 0.5) / COINS)]++;
+            }
+        }
+        for (int i = 0; i < outcomes; i++) {
+            counts[i] /= (double) table.size() * COINS;
+        }
+        return counts;
+    }
+
+    @Test
+    public void testDistribution() {
+        assertArrayEquals(new double[] { 0.1, 0.2, 0.3, 0.4 }, distribution(new AliasTable(1, 2, 3, 4), 4), 1e-4);
+        assertArrayEquals(new double[] { 0.0, 1.0, 0.0 }, distribution(new AliasTable(0, 5, 0), 3), 1e-4);
+        assertArrayEquals(new double[] { 1.0 }, distribution(new AliasTable(7), 1), 1e-4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAllZeroWeights() {
+        new AliasTable(0, 0);
+    }
+
+    @Test
+    public void testReconfigureMutationFrequency() {
+
+        final MutationFactory factory = new MutationFactory(new RandomImpl());
+        factory.setRelativeFrequency(ScalarNode.class, AdjustScalarMutation.class, 0);
+
+        final Sampler sampler = factory.getSampler(ScalarNode.class);
+        for (int column = 0; column < sampler.size(); column++) {
+            for (int coin = 0; coin < 100; coin++) {
+                final Class<?> sampled = sampler.sample(column, coin / 100.0).getClass();
+                assertFalse(sampled.equals(AdjustScalarMutation.class));
+            }
+        }
+        assertEquals(0, factory.getMutationFrequencies(ScalarNode.class).get(1).getRelativeFrequency());
+    }
+
+    @Test
+    public void testSplitSharesMutationFactory() {
+
+        final RandomImpl random = new RandomImpl(42);
+        final RandomImpl split = random.split();
+        assertSame(random.getMutationFactory(), split.getMutationFactory());
+
+        random.getMutationFactory().setRelativeFrequency(ScalarNode.class, AdjustScalarMutation.class, 0);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(split.nextMutation(ScalarNode.class) instanceof AdjustScalarMutation);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.github.adinsa.picevolve.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.adinsa.picevolve.PicEvolve;
+import com.github.adinsa.picevolve.expression.Expression;
+
+public class RenderCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final PicEvolve picEvolve = new PicEvolve();
+
+    @Test
+    public void testCache() throws Exception {
+
+        final File directory = folder.newFolder("cache");
+        final Expression expression = picEvolve.parse("(sin (* X Y))");
+        final byte[] image = { 1, 2, 3, 4 };
+
+        final RenderCache cache = new RenderCache(directory, 1 << 20);
+        assertFalse(cache.get(expression, 8, 8, "png").isPresent());
+        cache.put(expression, 8, 8, "png", image);
+        assertArrayEquals(image, cache.get(expression, 8, 8, "png").get());
+        assertFalse(cache.get(expression, 8, 16, "png").isPresent());
+        assertFalse(cache.get(picEvolve.parse("(cos (* X Y))"), 8, 8, "png").isPresent());
+
+        // Reopened, and then corrupted
+        final RenderCache reopened = new RenderCache(directory, 1 << 20);
+        assertArrayEquals(image, reopened.get(expression, 8, 8, "png").get());
+        final File[] entries = directory.listFiles();
+        assertEquals(1, entries.length);
+        final byte[] entry = Files.readAllBytes(entries[0].toPath());
+        entry[entry.length - 1] ^= 1;
+        Files.write(entries[0].toPath(), entry);
+        assertFalse(reopened.get(expression, 8, 8, "png").isPresent());
+        assertEquals(0, directory.listFiles().length);
+        assertEquals(0, reopened.getSizeBytes());
+    }
+
+    @Test
+    public void testCacheEvictsLeastRecentlyUsed() throws Exception {
+
+        final Expression[] expressions = { picEvolve.parse("X"), picEvolve.parse("Y"), picEvolve.parse("(abs X)") };
+        final byte[] image = new byte[1000];
+
+        final File directory = folder.newFolder("cache");
+        final RenderCache cache = new RenderCache(directory, 2500);
+        cache.put(expressions[0], 8, 8, "png", image);
+        cache.put(expressions[1], 8, 8, "png", image);
+        // Age the entries explicitly, the first one most, rather than relying on the resolution of modification times
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 2; i++) {
+            final String prefix = String.format("%016x-", expressions[i].structuralHash());
+            final File[] entries = directory.listFiles((dir, name) -> name.startsWith(prefix));
+            assertEquals(1, entries.length);
+            Files.setLastModifiedTime(entries[0].toPath(), FileTime.fromMillis(now - TimeUnit.HOURS.toMillis(2 - i)));
+        }
+        // Make the first entry the most recently used
+        assertTrue(cache.get(expressions[0], 8, 8, "png").isPresent());
+        cache.put(expressions[2], 8, 8, "png", image);
+
+        assertTrue(cache.get(expressions[0], 8, 8, "png").isPresent());
+        assertFalse(cache.get(expressions[1], 8, 8, "png").isPresent());
+        assertTrue(cache.get(expressions[2], 8, 8, "png").isPresent());
+        assertTrue(cache.getSizeBytes() <= 2500);
+    }
+
+    @Test
+    public void testConcurrentPutsOfSameKey() throws Exception {
+
+        final File directory = folder.newFolder("cache");
+        final Expression expression = picEvolve.parse("(sin (* X Y))");
+        final RenderCache cache = new RenderCache(directory, 1 << 20);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                cache.put(expression, 8, 8, "png", new byte[1000]);
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Every put replaced the same entry, so it is counted once
+        final File[] entries = directory.listFiles();
+        assertEquals(1, entries.length);
+        assertEquals(entries[0].length(), cache.getSizeBytes());
+    }
+}
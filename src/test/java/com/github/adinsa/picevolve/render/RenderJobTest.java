@@ -0,0 +1,70 @@
+package com.github.adinsa.picevolve.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.PicEvolve;
+import com.github.adinsa.picevolve.expression.Expression;
+
+public class RenderJobTest {
+
+    private final PicEvolve picEvolve = new PicEvolve();
+
+    @Test
+    public void testCancelledGenerationAbortsRender() throws Exception {
+
+        final Expression expression = picEvolve.parse("(sin (+ (* X X) (* Y Y)))");
+        final CancellationToken generation = new CancellationToken();
+        final RenderJob job = new RenderJob(1, "#0", generation, 0);
+
+        assertEquals(16, job.render(expression, 4, 4).asDoubleArray().length / 3);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> render = executor.submit(() -> job.render(expression, 2000, 2000));
+            Thread.sleep(50);
+            generation.cancel("Superseded");
+            render.get(10, TimeUnit.SECONDS);
+            fail("Render should have been cancelled");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof RenderCancelledException);
+            assertEquals("Superseded", e.getCause().getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = RenderCancelledException.class)
+    public void testDeadline() {
+        new RenderJob(1, "#0", new CancellationToken(), 1).render(picEvolve.parse("(blur (sin (* X Y)))"), 2000, 2000);
+    }
+
+    @Test
+    public void testDirectImageStorage() {
+
+        final Expression expression = picEvolve.parse("(+ (blur (sharpen (* X Y))) (warped-noise X Y (sin X) (* X X) (noise Y X #0.1,0.2,0.3)))");
+        final Image heap = new RenderJob(1, "#0", new CancellationToken(), 0).render(expression, 24, 16);
+        final Image direct = new RenderJob(1, "#0", new CancellationToken(), 0, null, Image.Storage.DIRECT).render(expression, 24, 16);
+        assertEquals(Image.Storage.HEAP, heap.getStorage());
+        assertEquals(Image.Storage.DIRECT, direct.getStorage());
+        assertArrayEquals(heap.asDoubleArray(), direct.asDoubleArray(), 0);
+        assertArrayEquals(heap.asBufferedImage().getRGB(0, 0, 24, 16, null, 0, 24), direct.asBufferedImage().getRGB(0, 0, 24, 16, null, 0, 24));
+
+        // Released buffers are reused, and cleared
+        direct.release();
+        final long reused = Image.getDirectPlanesReused();
+        assertArrayEquals(new double[24 * 16 * 3], new Image(24, 16, Image.Storage.DIRECT).asDoubleArray(), 0);
+        assertEquals(reused + 3, Image.getDirectPlanesReused());
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.adinsa.picevolve.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.adinsa.picevolve.FloatImageFormat;
+import com.github.adinsa.picevolve.Image;
+import com.github.adinsa.picevolve.PicEvolve;
+import com.github.adinsa.picevolve.expression.Expression;
+
+public class RenderPipelineTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final PicEvolve picEvolve = new PicEvolve();
+
+    @Test
+    public void testPackingMatchesColorRounding() {
+
+        final Image image = new RenderJob(1, "#0", new CancellationToken(), 0).render(picEvolve.parse("(+ (sin (* X Y)) (noise X Y X))"), 32, 32);
+
+        final BufferedImage expected = new BufferedImage(32, 32, BufferedImage.TYPE_4BYTE_ABGR);
+        final Graphics graphics = expected.getGraphics();
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                graphics.setColor(new Color((float) image.get(x, y).r(), (float) image.get(x, y).g(), (float) image.get(x, y).b()));
+                graphics.fillRect(x, y, 1, 1);
+            }
+        }
+
+        final BufferedImage packed = image.asBufferedImage();
+        for (int y = 0; y < 32; y++) {
+            for (int x = 0; x < 32; x++) {
+                assertEquals(expected.getRGB(x, y), packed.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testRenderToFile() throws Exception {
+
+        final RenderPipeline pipeline = new RenderPipeline(2, 1, 2);
+        final Expression expression = picEvolve.parse("(* X Y)");
+        final CountDownLatch published = new CountDownLatch(1);
+        final File file = folder.newFile("0.png");
+
+        pipeline.render(new RenderJob(1, "#0", new CancellationToken(), 0), expression, 16, 8, "png", file, partial -> {
+            assertEquals(file.getPath() + ".part", partial.getPath());
+            assertTrue(partial.renameTo(file));
+            published.countDown();
+        });
+        assertTrue(published.await(10, TimeUnit.SECONDS));
+
+        final BufferedImage written = ImageIO.read(file);
+        assertEquals(16, written.getWidth());
+        assertEquals(8, written.getHeight());
+        assertTrue(Files.notExists(new File(file.getPath() + ".part").toPath()));
+        assertTrue(pipeline.getStatistics().contains("WRITE    count=1"));
+        assertTrue(pipeline.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testFloatFormats() throws Exception {
+
+        final RenderPipeline pipeline = new RenderPipeline(2, 1, 2);
+        final Expression expression = picEvolve.parse("(+ (sin (* X Y)) (noise X Y X))");
+        final RenderJob job = new RenderJob(1, "#0", new CancellationToken(), 0);
+        final Image expected = job.render(expression, 17, 9);
+
+        for (final String formatName : new String[] { "pfm", "f32" }) {
+            final CountDownLatch published = new CountDownLatch(1);
+            final File file = folder.newFile("0." + formatName);
+            pipeline.render(job, expression, 17, 9, formatName, file, partial -> {
+                assertTrue(partial.renameTo(file));
+                published.countDown();
+            });
+            assertTrue(published.await(10, TimeUnit.SECONDS));
+
+            final File written = folder.newFile("1." + formatName);
+            expected.write(written, formatName);
+            for (final Image image : new Image[] { FloatImageFormat.read(file), FloatImageFormat.read(written) }) {
+                assertEquals(17, image.getWidth());
+                assertEquals(9, image.getHeight());
+                final double[] values = image.asDoubleArray();
+                final double[] expectedValues = expected.asDoubleArray();
+                for (int i = 0; i < values.length; i++) {
+                    assertEquals((float) expectedValues[i], values[i], 0);
+                }
+            }
+        }
+        assertTrue(pipeline.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMontage() throws Exception {
+
+        final String[] expressions = { "(* X Y)", "(sin (+ X Y))", "(noise X Y X)", "(abs X)", "(cos (* X X))" };
+        final Montage montage = new Montage(expressions.length, 3, 16, 8);
+        final Image[] images = new Image[expressions.length];
+        final ExecutorService executor = Executors.newFixedThreadPool(expressions.length);
+        final CountDownLatch placed = new CountDownLatch(expressions.length);
+        for (int i = 0; i < expressions.length; i++) {
+            images[i] = new RenderJob(1, "#" + i, new CancellationToken(), 0).render(picEvolve.parse(expressions[i]), 16, 8);
+            final int index = i;
+            executor.execute(() -> {
+                montage.place(index, images[index]);
+                placed.countDown();
+            });
+        }
+        assertTrue(placed.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        final RenderPipeline pipeline = new RenderPipeline(2, 1, 2);
+        final File file = folder.newFile("montage.png");
+        final CountDownLatch published = new CountDownLatch(1);
+        pipeline.writePacked(new RenderJob(1, "montage", new CancellationToken(), 0), montage.getImage(), "png", file, partial -> {
+            assertTrue(partial.renameTo(file));
+            published.countDown();
+        });
+        assertTrue(published.await(10, TimeUnit.SECONDS));
+
+        final BufferedImage sheet = ImageIO.read(file);
+        assertEquals(montage.getImage().getWidth(), sheet.getWidth());
+        assertEquals(montage.getImage().getHeight(), sheet.getHeight());
+        for (int i = 0; i < expressions.length; i++) {
+            final BufferedImage expected = images[i].asBufferedImage();
+            for (int y = 0; y < 8; y++) {
+                for (int x = 0; x < 16; x++) {
+                    assertEquals(expected.getRGB(x, y), sheet.getRGB(montage.getLeft(i) + x, montage.getTop(i) + y));
+                }
+            }
+        }
+        assertTrue(montage.getTop(3) > montage.getTop(2) + 8);
+        assertTrue(pipeline.shutdownAndAwaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStreamingMatchesRender() throws Exception {
+
+        // Odd sizes, so the last band is partial and X and Y are not symmetric
+        final Expression expression = picEvolve.parse("(+ (sin (* X Y)) (mod (abs X) #0.2,0.5,0.9))");
+        final RenderJob job = new RenderJob(1, "#0", new CancellationToken(), 0);
+        final StreamingRenderer streaming = new StreamingRenderer(7, 0);
+        assertTrue(streaming.accepts(expression, 33, 45, "png"));
+
+        final File file = folder.newFile("0.png");
+        streaming.render(job, expression, 33, 45, file);
+
+        final BufferedImage expected = job.render(expression, 33, 45).asBufferedImage();
+        final BufferedImage streamed = ImageIO.read(file);
+        for (int y = 0; y < 45; y++) {
+            for (int x = 0; x < 33; x++) {
+                assertEquals(expected.getRGB(x, y), streamed.getRGB(x, y));
+            }
+        }
+
+        assertFalse(streaming.accepts(picEvolve.parse("(+ X (blur Y))"), 33, 45, "png"));
+        assertFalse(streaming.accepts(picEvolve.parse("(sin (noise X Y X))"), 33, 45, "png"));
+        assertFalse(streaming.accepts(expression, 33, 45, "jpg"));
+        assertFalse(new StreamingRenderer(7, 33 * 45 + 1).accepts(expression, 33, 45, "png"));
+    }
+
+    @Test
+    public void testParallelPngEncoder() throws Exception {
+
+        // Tall enough for several chunks, each deflated with the end of the previous one as its dictionary
+        final BufferedImage image = new RenderJob(1, "#0", new CancellationToken(), 0)
+                .render(picEvolve.parse("(+ (sin (* X Y)) (noise X Y X))"), 300, 700).asBufferedImage();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (final int level : new int[] { 0, 1, 6, 9 }) {
+                final byte[] parallel = new PngEncoder(level, executor).encode(image);
+                assertArrayEquals(new PngEncoder(level, null).encode(image), parallel);
+
+                final BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(parallel));
+                for (int y = 0; y < image.getHeight(); y++) {
+                    for (int x = 0; x < image.getWidth(); x++) {
+                        assertEquals(image.getRGB(x, y), decoded.getRGB(x, y));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testTiledMatchesRender() throws Exception {
+
+        // Tiles that do not divide the image, halos wider than a tile (blur), a cache too small for one row of tiles, and tiles in parallel
+        final Expression expression = picEvolve.parse(
+                "(+ (blur (sharpen (* X Y))) (int-xor (emboss (noise X Y #0.5,0.1,0.9)) (warped-noise X Y (sin X) (* X X) (cos Y))))");
+        final RenderJob job = new RenderJob(1, "#0", new CancellationToken(), 0, new ForkJoinPool(4));
+        final File scratch = folder.newFolder("scratch");
+        final TiledRenderer tiled = new TiledRenderer(scratch, 8, 8 * 8 * 24 * 3, 0);
+        assertTrue(tiled.accepts(expression, 45, 37, "png"));
+
+        final File file = folder.newFile("0.png");
+        tiled.render(job, expression, 45, 37, file);
+
+        final BufferedImage expected = job.render(expression, 45, 37).asBufferedImage();
+        final BufferedImage rendered = ImageIO.read(file);
+        for (int y = 0; y < 37; y++) {
+            for (int x = 0; x < 45; x++) {
+                assertEquals(expected.getRGB(x, y), rendered.getRGB(x, y));
+            }
+        }
+        assertEquals(0, scratch.list().length);
+    }
+}
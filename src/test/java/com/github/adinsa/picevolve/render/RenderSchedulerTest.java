@@ -0,0 +1,64 @@
+package com.github.adinsa.picevolve.render;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.github.adinsa.picevolve.PicEvolve;
+import com.github.adinsa.picevolve.expression.Expression;
+
+public class RenderSchedulerTest {
+
+    @Test
+    public void testPriorityThenCostOrder() throws Exception {
+
+        final RenderScheduler scheduler = new RenderScheduler(1, 1, 10, 10);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = new CopyOnWriteArrayList<>();
+
+        scheduler.submit(RenderPriority.BATCH, 0, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+
+        scheduler.submit(RenderPriority.BATCH, 1, () -> order.add("batch"));
+        scheduler.submit(RenderPriority.INTERACTIVE, 3, () -> order.add("expensive preview"));
+        scheduler.submit(RenderPriority.INTERACTIVE, 2, () -> order.add("cheap preview"));
+        release.countDown();
+
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("cheap preview", "expensive preview", "batch"), order);
+    }
+
+    @Test
+    public void testParallelRowsMatchSequentialRows() throws Exception {
+
+        final RenderScheduler scheduler = new RenderScheduler(1, 4, 1, 1);
+        final Expression expression = new PicEvolve().parse("(+ (sin (* X Y)) (noise X Y (abs X)))");
+        final CancellationToken generation = new CancellationToken();
+
+        final double[] sequential = new RenderJob(1, "#0", generation, 0).render(expression, 64, 64).asDoubleArray();
+        final double[][] parallel = new double[1][];
+        final Future<?> render = scheduler.submit(RenderPriority.BATCH, 0,
+                () -> parallel[0] = new RenderJob(1, "#0", generation, 0, scheduler.getRowPool()).render(expression, 64, 64).asDoubleArray());
+        render.get(10, TimeUnit.SECONDS);
+
+        assertArrayEquals(sequential, parallel[0], 0);
+        scheduler.shutdown();
+    }
+}
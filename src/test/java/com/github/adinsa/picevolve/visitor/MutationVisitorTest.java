@@ -1,6 +1,7 @@
 package com.github.adinsa.picevolve.visitor;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Mockito.mock;
@@ -112,6 +113,26 @@ public class MutationVisitorTest {
         assertEquals("(abs (- X (- X 0.3)))", expr.toString());
     }
 
+    @Test
+    public void testTerminalRootMutation() {
+
+        final Expression expr = picEvolve.parse("0.3");
+
+        when(random.shouldMutate(any(), anyDouble())).then(new ShouldMutateAnswer(ScalarNode.class));
+
+        when(random.nextFunction()).thenReturn(new Function.Noise());
+        when(random.nextTerminal()).thenReturn(new Terminal.ScalarNode(0.1)).thenReturn(new Terminal.VariableNode(Variable.X));
+
+        when(random.nextMutation(any())).thenReturn(new Mutation.BecomeArgumentMutation(random));
+
+        final MutationVisitor visitor = new MutationVisitor(random);
+
+        final Expression mutated = visitor.mutate(expr);
+
+        assertEquals("(noise 0.3 0.1 X)", mutated.toString());
+        assertNull(mutated.getParent());
+    }
+
     @Test
     public void testVectorToRandomExpressionMutation() {
 
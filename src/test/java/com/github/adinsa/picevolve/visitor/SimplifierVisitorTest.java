@@ -0,0 +1,74 @@
+package com.github.adinsa.picevolve.visitor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.github.adinsa.picevolve.PicEvolve;
+import com.github.adinsa.picevolve.expression.Expression;
+import com.github.adinsa.picevolve.random.RandomImpl;
+
+public class SimplifierVisitorTest {
+
+    private static final int SIZE = 24;
+
+    private final PicEvolve picEvolve = new PicEvolve(new RandomImpl(5));
+
+    private String simplify(final String expression) {
+        return picEvolve.simplify(picEvolve.parse(expression)).toString();
+    }
+
+    private static double[] evaluate(final Expression expression) {
+        final EvaluatorVisitor evaluator = new EvaluatorVisitor(SIZE, SIZE);
+        expression.accept(evaluator);
+        return evaluator.getImage().asDoubleArray();
+    }
+
+    @Test
+    public void testIdentities() {
+
+        assertEquals("(abs (sin X))", simplify("(abs (abs (sin X)))"));
+        assertEquals("(expt X)", simplify("(abs (expt X))"));
+        assertEquals("(sin X)", simplify("(float-and (sin X) (sin X))"));
+        assertEquals("(cos Y)", simplify("(max (cos Y) (cos Y))"));
+        assertEquals("0.0", simplify("(int-xor X X)"));
+        assertEquals("0.0", simplify("(- X X)"));
+        assertEquals("(tan Y)", simplify("(- 0.0 (tan Y))"));
+        assertEquals("1.0", simplify("(/ 0.0 (log X))"));
+        assertEquals("1.0", simplify("(mod 0.0 X)"));
+        assertEquals("(cos X)", simplify("(/ 1.0 (cos X))"));
+        assertEquals("(sin Y)", simplify("(* (sin Y) #1.000000,1.000000,1.000000)"));
+        assertEquals("0.0", simplify("(* 0.0 (abs (sin X)))"));
+
+        // (- A A) is NaN for infinite A, and 0 * A is -0 for negative A
+        assertEquals("(- (/ X Y) (/ X Y))", simplify("(- (/ X Y) (/ X Y))"));
+        assertEquals("(* 0.0 (sin X))", simplify("(* 0.0 (sin X))"));
+    }
+
+    @Test
+    public void testConstantFolding() {
+
+        assertEquals("(+ " + Math.sin(0.5) + " X)", simplify("(+ (sin 0.5) X)"));
+        assertEquals("#0.500000,0.250000,0.750000", simplify("(abs #-0.5,-0.25,-0.75)"));
+        assertEquals("(+ X (blur 0.5))", simplify("(+ X (blur 0.5))"));
+    }
+
+    @Test
+    public void testSimplifiedExpressionsEvaluateIdentically() {
+
+        for (final Expression generated : picEvolve.initializePopulation(40)) {
+
+            // Start from the saved form, since vector terminals are saved with limited precision
+            final Expression expression = picEvolve.parse(generated.toString());
+            final Expression simplified = picEvolve.simplify(expression);
+            assertTrue(simplified.getSize() <= expression.getSize());
+            assertTrue(simplified.getParent() == null);
+
+            final double[] expected = evaluate(expression);
+            assertArrayEquals(expression.toString(), expected, evaluate(simplified), 0);
+            assertArrayEquals(expression.toString(), expected, evaluate(picEvolve.parse(simplified.toString())), 0);
+        }
+    }
+}